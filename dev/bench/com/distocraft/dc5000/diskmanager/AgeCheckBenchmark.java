@@ -0,0 +1,119 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * DiskManagerFileFilter.ageCheck over a directory of files, in both file age
+ * modes. Reported time is per file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AgeCheckBenchmark {
+
+  @Param({ "0", "1" })
+  public int fileAgeMode;
+
+  @Param({ "pm", "short" })
+  public String nameShape;
+
+  @Param({ "1000", "10000" })
+  public int fileCount;
+
+  private File dir;
+
+  private File[] files;
+
+  private BasicFileAttributes[] attributes;
+
+  private DiskManagerFileFilter filter;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    dir = BenchFiles.createDir("agecheck");
+    files = BenchFiles.createFiles(dir, nameShape, fileCount);
+    attributes = new BasicFileAttributes[fileCount];
+    for (int i = 0; i < fileCount; i++) {
+      attributes[i] = DirectoryWalker.attributes(files[i].toPath());
+    }
+
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.fileMask", ".*");
+    conf.setProperty("diskManager.dir.fileAgeDay", "5");
+    conf.setProperty("diskManager.dir.fileAgeMode", String.valueOf(fileAgeMode));
+    if ("pm".equals(nameShape)) {
+      conf.setProperty("diskManager.dir.timeMask", BenchFiles.PM_TIME_MASK);
+      conf.setProperty("diskManager.dir.dateFormatInput", BenchFiles.PM_DATE_FORMAT);
+    } else {
+      conf.setProperty("diskManager.dir.timeMask", "f(\\d+).*");
+      conf.setProperty("diskManager.dir.dateFormatInput", "HHmm");
+    }
+    filter = new CheckingFilter(conf);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    BenchFiles.delete(dir);
+  }
+
+  /**
+   * ageCheck(File) as used by listFiles(filter), asks file system each time.
+   */
+  @Benchmark
+  @OperationsPerInvocation(10000)
+  public void ageCheckFile(final Blackhole bh) throws Exception {
+    for (int i = 0; i < 10000; i++) {
+      bh.consume(filter.ageCheck(files[i % fileCount]));
+    }
+  }
+
+  /**
+   * ageCheck with attributes read by DirectoryWalker.
+   */
+  @Benchmark
+  @OperationsPerInvocation(10000)
+  public void ageCheckAttributes(final Blackhole bh) throws Exception {
+    for (int i = 0; i < 10000; i++) {
+      final int n = i % fileCount;
+      bh.consume(filter.ageCheck(files[n], attributes[n]));
+    }
+  }
+
+  /**
+   * Filter doing nothing but the age check.
+   */
+  static final class CheckingFilter extends DiskManagerFileFilter {
+
+    CheckingFilter(final Properties conf) throws Exception {
+      super(conf);
+    }
+
+    @Override
+    public boolean accept(final File f) {
+      return false;
+    }
+  }
+
+}
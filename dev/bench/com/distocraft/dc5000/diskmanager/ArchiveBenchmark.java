@@ -0,0 +1,83 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copy loop of ZippingFileFilter and DirectoryDiskManager: one file added
+ * into an archive with ArchiveWriter. Reported throughput is files per
+ * second, bytes per second is fileSize times that.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArchiveBenchmark {
+
+  @Param({ "1", "6", "9" })
+  public int compressionLevel;
+
+  @Param({ "xml", "random" })
+  public String payload;
+
+  @Param({ "4096", "1048576" })
+  public int fileSize;
+
+  @Param({ "true", "false" })
+  public boolean storeIncompressible;
+
+  private File dir;
+
+  private File source;
+
+  private ArchiveWriter out;
+
+  private int archives = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    dir = BenchFiles.createDir("archive");
+    source = BenchFiles.write(dir, "A20140101.0000-0015.xml", BenchFiles.payload(payload, fileSize));
+  }
+
+  @Setup(Level.Iteration)
+  public void openArchive() throws Exception {
+    out = new ArchiveWriter(new File(dir, "bench" + (archives++) + ".zip"), compressionLevel,
+        Deflater.DEFAULT_STRATEGY, new CompressionClassifier(storeIncompressible));
+  }
+
+  @TearDown(Level.Iteration)
+  public void closeArchive() throws Exception {
+    out.close();
+    out.getFile().delete();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    ArchiveWriter.releaseWorkspace();
+    BenchFiles.delete(dir);
+  }
+
+  @Benchmark
+  public long add() throws Exception {
+    return out.add(source, source.getName(), System.currentTimeMillis()).getCompressedSize();
+  }
+
+}
@@ -0,0 +1,93 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Test data of the benchmarks.
+ */
+final class BenchFiles {
+
+  /**
+   * File name of a PM measurement file, the common case in parser input.
+   */
+  static final String PM_NAME = "A20140101.%04d-%04d_SubNetwork=ONRM_RootMo,SubNetwork=RNC%03d,MeContext=RNC%03d_statsfile.xml";
+
+  static final String PM_TIME_MASK = "A(\\d{8}\\.\\d{4}).*";
+
+  static final String PM_DATE_FORMAT = "yyyyMMdd.HHmm";
+
+  private BenchFiles() {
+  }
+
+  /**
+   * Returns name number i of the given shape: short or pm.
+   */
+  static String name(final String shape, final int i) {
+    if ("pm".equals(shape)) {
+      return String.format(PM_NAME, i % 2400, (i + 15) % 2400, i % 1000, i % 1000);
+    }
+    return "f" + i + ".xml";
+  }
+
+  static File createDir(final String prefix) throws IOException {
+    return Files.createTempDirectory(prefix).toFile();
+  }
+
+  /**
+   * Creates count empty files named by shape, modified over the last 10 days.
+   */
+  static File[] createFiles(final File dir, final String shape, final int count) throws IOException {
+    final File[] files = new File[count];
+    final long now = System.currentTimeMillis();
+    for (int i = 0; i < count; i++) {
+      files[i] = new File(dir, name(shape, i));
+      files[i].createNewFile();
+      files[i].setLastModified(now - (i % 240) * 3600000L);
+    }
+    return files;
+  }
+
+  /**
+   * Returns payload of a kind: xml (compressible) or random (incompressible).
+   */
+  static byte[] payload(final String kind, final int size) {
+    final byte[] data = new byte[size];
+    if ("random".equals(kind)) {
+      new Random(1).nextBytes(data);
+      return data;
+    }
+    final StringBuilder sb = new StringBuilder(size + 100);
+    for (int i = 0; sb.length() < size; i++) {
+      sb.append("<mv><moid>ManagedElement=1,RncFunction=1,UtranCell=").append(i % 300).append("</moid><r>")
+          .append((i * 7919) % 100000).append("</r></mv>\n");
+    }
+    System.arraycopy(sb.toString().getBytes(), 0, data, 0, size);
+    return data;
+  }
+
+  static File write(final File dir, final String name, final byte[] data) throws IOException {
+    final File f = new File(dir, name);
+    final FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    return f;
+  }
+
+  static void delete(final File f) {
+    final File[] files = f.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+
+}
@@ -0,0 +1,61 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * fileMask matching of file names. Masks are typical action configurations:
+ * match all, a prefix and suffix, and a mask that rejects most names late.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileMaskBenchmark {
+
+  @Param({ ".*", "A.*\\.xml", ".*_RNC0[0-4]\\d_.*statsfile\\.xml", "A.*(RNC|NodeB).*\\.(xml|gz)" })
+  public String fileMask;
+
+  @Param({ "pm", "short" })
+  public String nameShape;
+
+  private String[] names;
+
+  private DiskManagerFileFilter filter;
+
+  @Setup
+  public void setUp() throws Exception {
+    names = new String[1000];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = BenchFiles.name(nameShape, i);
+    }
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.fileMask", fileMask);
+    filter = new AgeCheckBenchmark.CheckingFilter(conf);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(1000)
+  public void matches(final Blackhole bh) {
+    for (String name : names) {
+      bh.consume(filter.matchesMask(name));
+    }
+  }
+
+}
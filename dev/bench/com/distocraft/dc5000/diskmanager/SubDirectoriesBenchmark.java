@@ -0,0 +1,73 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DirectoryDiskManager.subDirectories over a parser archive directory of
+ * timestamped directories. Dominated by timestamp parsing of the names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubDirectoriesBenchmark {
+
+  @Param({ "100", "1000" })
+  public int dirCount;
+
+  private File root;
+
+  private File in;
+
+  private DirectoryDiskManager ddm;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    root = BenchFiles.createDir("subdirs");
+    in = new File(root, "in");
+    final File out = new File(root, "out");
+    in.mkdir();
+    out.mkdir();
+    for (int i = 0; i < dirCount; i++) {
+      new File(in, "parser" + (i % 7) + "_2014" + String.format("%02d%02d%02d%02d", 1 + i % 12, 1 + i % 28, i % 24,
+          i % 60)).mkdir();
+    }
+    new File(in, "_tmp_201401010000").mkdir();
+    new File(in, "notadirectory").createNewFile();
+
+    final Properties conf = new Properties();
+    conf.setProperty("directoryDiskManager.inDir", in.getPath());
+    conf.setProperty("directoryDiskManager.outDir", out.getPath());
+    conf.setProperty("directoryDiskManager.timeLimit", "2");
+    ddm = new DirectoryDiskManager(conf, "bench", "bench", "bench");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    BenchFiles.delete(root);
+  }
+
+  @Benchmark
+  public File[] subDirectories() throws Exception {
+    return ddm.subDirectories(in);
+  }
+
+}
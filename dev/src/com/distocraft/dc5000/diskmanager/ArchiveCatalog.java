@@ -0,0 +1,572 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Catalog of files archived into an outDir, so an archived file can be found
+ * without opening the archives. For every entry the file name, archive,
+ * offset of the entry in the archive, size and timestamp of the file are
+ * recorded.
+ *
+ * The catalog is a sequence of segments, each run appends one segment with
+ * its entries sorted by file name. A segment header holds its length, number
+ * of entries, time range and checksum, so segments outside a queried time
+ * range are skipped without reading them and names are looked up by binary
+ * search within a segment. When there are more than MAX_SEGMENTS segments
+ * they are merged into one, entries of archives no longer existing are dropped.
+ * Entries of an archive overwritten by a new one of the same name are dropped
+ * when the entries of the new one are appended.
+ * A segment left incomplete by a crash is ignored and overwritten by the next
+ * append.
+ *
+ * Can be run from command line to query a catalog, see main().
+ */
+public final class ArchiveCatalog {
+
+  private static final int MAGIC = 0x44534354; // DSCT
+
+  // magic, count, body length, min time, max time, crc
+  static final int HEADER_SIZE = 40;
+
+  // Segments merged when there are more than this
+  static final int MAX_SEGMENTS = 16;
+
+  private static final String SUFFIX = ".catalog";
+
+  private static final String TIME_FORMAT = "yyyyMMddHHmm";
+
+  // Appends of this JVM per canonical catalog path, the file lock is held by the whole JVM
+  private static final Map<String, Object> APPENDING = new HashMap<String, Object>();
+
+  private final File file;
+
+  ArchiveCatalog(final File file) {
+    this.file = file;
+  }
+
+  /**
+   * Returns catalog of archives with archivePrefix in outDir.
+   */
+  static ArchiveCatalog of(final File outDir, final String archivePrefix) {
+    return new ArchiveCatalog(new File(outDir, "diskmanager_" + archivePrefix + SUFFIX));
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns archive as stored in records: its name if it is in the catalog
+   * directory, otherwise its absolute path.
+   */
+  String name(final File archive) {
+    final File abs = archive.getAbsoluteFile();
+    return file.getAbsoluteFile().getParentFile().equals(abs.getParentFile()) ? abs.getName() : abs.getPath();
+  }
+
+  /**
+   * Returns archive of record.
+   */
+  File archive(final Record record) {
+    final File archive = new File(record.archive);
+    return archive.isAbsolute() ? archive : new File(file.getParentFile(), record.archive);
+  }
+
+  /**
+   * Appends entries of one run as a new segment. Appends are serialized within
+   * the JVM before the file lock is taken, a second lock of the same file from
+   * one JVM would fail.
+   */
+  void append(final List<Record> records) throws IOException {
+    append(records, Collections.<String>emptySet());
+  }
+
+  /**
+   * Appends entries of one run. Earlier entries of replaced archives, ones
+   * overwritten by an archive of the same name, are dropped by rewriting the
+   * catalog.
+   *
+   * @param replaced
+   *          replaced archives as returned by name()
+   */
+  void append(final List<Record> records, final Set<String> replaced) throws IOException {
+    if (records.isEmpty() && replaced.isEmpty()) {
+      return;
+    }
+    synchronized (appending()) {
+      appendLocked(records, replaced);
+    }
+  }
+
+  /**
+   * Returns object appends to this catalog synchronize on.
+   */
+  private Object appending() throws IOException {
+    final String path = file.getCanonicalPath();
+    synchronized (APPENDING) {
+      Object appending = APPENDING.get(path);
+      if (appending == null) {
+        appending = new Object();
+        APPENDING.put(path, appending);
+      }
+      return appending;
+    }
+  }
+
+  private void appendLocked(final List<Record> records, final Set<String> replaced) throws IOException {
+    final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      final FileLock lock = channel.lock();
+      try {
+        final List<Segment> segments = segments(channel);
+        final long end = segments.isEmpty() ? 0L : segments.get(segments.size() - 1).end();
+
+        if (segments.size() + 1 > MAX_SEGMENTS || (!replaced.isEmpty() && !segments.isEmpty())) {
+          final List<Record> all = new ArrayList<Record>(records);
+          for (Segment segment : segments) {
+            for (Record record : segment.read(channel)) {
+              if (!replaced.contains(record.archive) && archive(record).exists()) {
+                all.add(record);
+              }
+            }
+          }
+          compact(all);
+          return;
+        }
+
+        // Drops incomplete segment of a crashed run
+        channel.truncate(end);
+        if (!records.isEmpty()) {
+          write(channel, end, segment(records));
+        }
+        channel.force(false);
+      } finally {
+        lock.release();
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Returns entries whose name matches pattern and timestamp is within from
+   * and to, sorted by time.
+   *
+   * @param pattern
+   *          regular expression matching whole file name, null for all
+   * @param from
+   *          lowest timestamp, Long.MIN_VALUE for no limit
+   * @param to
+   *          highest timestamp, Long.MAX_VALUE for no limit
+   */
+  List<Record> find(final String pattern, final long from, final long to) throws IOException {
+    final List<Record> found = new ArrayList<Record>();
+    if (!file.exists()) {
+      return found;
+    }
+    final Pattern regex = pattern == null ? null : Pattern.compile(pattern);
+    final String prefix = pattern == null ? "" : literalPrefix(pattern);
+
+    final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      for (Segment segment : segments(channel)) {
+        if (segment.maxTime < from || segment.minTime > to) {
+          continue;
+        }
+        final List<Record> records = segment.read(channel);
+        for (int i = lowerBound(records, prefix); i < records.size(); i++) {
+          final Record record = records.get(i);
+          if (!record.name.startsWith(prefix)) {
+            break;
+          }
+          if (record.time >= from && record.time <= to && (regex == null || regex.matcher(record.name).matches())) {
+            found.add(record);
+          }
+        }
+      }
+    } finally {
+      channel.close();
+    }
+
+    Collections.sort(found, new Comparator<Record>() {
+      public int compare(final Record a, final Record b) {
+        return a.time < b.time ? -1 : (a.time > b.time ? 1 : a.name.compareTo(b.name));
+      }
+    });
+    return found;
+  }
+
+  /**
+   * Returns number of complete segments.
+   */
+  int getSegments() throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+    final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      return segments(channel).size();
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Replaces catalog with one segment of records. The file is replaced
+   * atomically, the lock of the old file is held by caller.
+   */
+  private void compact(final List<Record> records) throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    final FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    try {
+      if (!records.isEmpty()) {
+        write(out, 0L, segment(records));
+      }
+      out.force(false);
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads headers of complete segments.
+   */
+  private static List<Segment> segments(final FileChannel channel) throws IOException {
+    final List<Segment> segments = new ArrayList<Segment>();
+    final long size = channel.size();
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    long position = 0L;
+    while (position + HEADER_SIZE <= size) {
+      header.clear();
+      readFully(channel, header, position);
+      header.flip();
+      if (header.getInt() != MAGIC) {
+        break;
+      }
+      final Segment segment = new Segment(position, header.getInt(), header.getLong(), header.getLong(),
+          header.getLong(), header.getLong());
+      if (segment.count < 0 || segment.length < 0 || segment.end() > size) {
+        break;
+      }
+      segments.add(segment);
+      position = segment.end();
+    }
+    return segments;
+  }
+
+  /**
+   * Encodes records sorted by name as a segment. Archive names are stored once
+   * per segment.
+   */
+  private static ByteBuffer segment(final List<Record> records) throws IOException {
+    final List<Record> sorted = new ArrayList<Record>(records);
+    Collections.sort(sorted, new Comparator<Record>() {
+      public int compare(final Record a, final Record b) {
+        return a.name.compareTo(b.name);
+      }
+    });
+
+    final Map<String, Integer> archives = new HashMap<String, Integer>();
+    final List<String> archiveNames = new ArrayList<String>();
+    long minTime = Long.MAX_VALUE;
+    long maxTime = Long.MIN_VALUE;
+    for (Record record : sorted) {
+      if (!archives.containsKey(record.archive)) {
+        archives.put(record.archive, archives.size());
+        archiveNames.add(record.archive);
+      }
+      minTime = Math.min(minTime, record.time);
+      maxTime = Math.max(maxTime, record.time);
+    }
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream body = new DataOutputStream(bytes);
+    body.writeInt(archiveNames.size());
+    for (String archive : archiveNames) {
+      body.writeUTF(archive);
+    }
+    for (Record record : sorted) {
+      body.writeUTF(record.name);
+      body.writeInt(archives.get(record.archive));
+      body.writeLong(record.offset);
+      body.writeLong(record.size);
+      body.writeLong(record.time);
+    }
+    body.flush();
+
+    final byte[] data = bytes.toByteArray();
+    final CRC32 crc = new CRC32();
+    crc.update(data);
+
+    final ByteBuffer segment = ByteBuffer.allocate(HEADER_SIZE + data.length);
+    segment.putInt(MAGIC);
+    segment.putInt(sorted.size());
+    segment.putLong(data.length);
+    segment.putLong(minTime);
+    segment.putLong(maxTime);
+    segment.putLong(crc.getValue());
+    segment.put(data);
+    segment.flip();
+    return segment;
+  }
+
+  private static void write(final FileChannel channel, final long position, final ByteBuffer buffer)
+      throws IOException {
+    long pos = position;
+    while (buffer.hasRemaining()) {
+      pos += channel.write(buffer, pos);
+    }
+  }
+
+  private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+      throws IOException {
+    long pos = position;
+    while (buffer.hasRemaining()) {
+      final int read = channel.read(buffer, pos);
+      if (read < 0) {
+        throw new IOException("Unexpected end of catalog");
+      }
+      pos += read;
+    }
+  }
+
+  /**
+   * Returns index of first record with name not less than prefix.
+   */
+  private static int lowerBound(final List<Record> records, final String prefix) {
+    int low = 0;
+    int high = records.size();
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (records.get(mid).name.compareTo(prefix) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns characters pattern must start with, the part before any regular
+   * expression construct.
+   */
+  static String literalPrefix(final String pattern) {
+    final StringBuilder prefix = new StringBuilder();
+    if (pattern.indexOf('|') >= 0) {
+      return "";
+    }
+    for (int i = 0; i < pattern.length(); i++) {
+      final char c = pattern.charAt(i);
+      if (c == '\\' && i + 1 < pattern.length() && !Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+        prefix.append(pattern.charAt(++i));
+      } else if (".[]{}()*+?^$|\\".indexOf(c) >= 0) {
+        // Quantifier applies to the previous character
+        if ((c == '*' || c == '?' || c == '{') && prefix.length() > 0) {
+          prefix.setLength(prefix.length() - 1);
+        }
+        break;
+      } else {
+        prefix.append(c);
+      }
+    }
+    return prefix.toString();
+  }
+
+  /**
+   * Queries catalog from command line:
+   *
+   * <pre>
+   * ArchiveCatalog &lt;catalog file or outDir&gt; [-name regex] [-from yyyyMMddHHmm] [-to yyyyMMddHHmm]
+   * </pre>
+   *
+   * With an outDir all catalogs in it are queried. Prints timestamp, archive,
+   * entry offset, size and name of every matching file.
+   */
+  public static void main(final String[] args) {
+    System.exit(run(args, System.out, System.err));
+  }
+
+  static int run(final String[] args, final PrintStream out, final PrintStream err) {
+    if (args.length < 1 || args.length % 2 != 1) {
+      err.println("Usage: ArchiveCatalog <catalog file or outDir> [-name regex] [-from " + TIME_FORMAT + "] [-to "
+          + TIME_FORMAT + "]");
+      return 2;
+    }
+
+    final SimpleDateFormat format = new SimpleDateFormat(TIME_FORMAT);
+    format.setLenient(false);
+    String pattern = null;
+    long from = Long.MIN_VALUE;
+    long to = Long.MAX_VALUE;
+    try {
+      for (int i = 1; i < args.length; i += 2) {
+        if ("-name".equals(args[i])) {
+          pattern = args[i + 1];
+        } else if ("-from".equals(args[i])) {
+          from = format.parse(args[i + 1]).getTime();
+        } else if ("-to".equals(args[i])) {
+          // Whole minute is included
+          to = format.parse(args[i + 1]).getTime() + 59999L;
+        } else {
+          err.println("Unknown option " + args[i]);
+          return 2;
+        }
+      }
+    } catch (Exception e) {
+      err.println("Invalid argument: " + e.getMessage());
+      return 2;
+    }
+
+    final File target = new File(args[0]);
+    final List<File> catalogs = new ArrayList<File>();
+    if (target.isDirectory()) {
+      final File[] files = target.listFiles();
+      if (files != null) {
+        for (File f : files) {
+          if (f.getName().endsWith(SUFFIX)) {
+            catalogs.add(f);
+          }
+        }
+      }
+    } else {
+      catalogs.add(target);
+    }
+    if (catalogs.isEmpty()) {
+      err.println("No catalogs found in " + target);
+      return 1;
+    }
+
+    final SimpleDateFormat print = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    int found = 0;
+    try {
+      for (File catalog : catalogs) {
+        final ArchiveCatalog archives = new ArchiveCatalog(catalog);
+        for (Record record : archives.find(pattern, from, to)) {
+          final File archive = archives.archive(record);
+          out.println(print.format(record.time) + " " + archive + (archive.exists() ? "" : " (missing)") + " "
+              + record.offset + " " + record.size + " " + record.name);
+          found++;
+        }
+      }
+    } catch (Exception e) {
+      err.println("Reading catalog failed: " + e);
+      return 1;
+    }
+    err.println(found + " files found");
+    return 0;
+  }
+
+  /**
+   * One archived file.
+   */
+  static final class Record {
+
+    final String name;
+
+    // Archive name in the catalog directory, absolute path if elsewhere
+    final String archive;
+
+    final long offset;
+
+    final long size;
+
+    final long time;
+
+    Record(final String name, final String archive, final long offset, final long size, final long time) {
+      this.name = name;
+      this.archive = archive;
+      this.offset = offset;
+      this.size = size;
+      this.time = time;
+    }
+  }
+
+  /**
+   * Header of a segment.
+   */
+  private static final class Segment {
+
+    final long position;
+
+    final int count;
+
+    final long length;
+
+    final long minTime;
+
+    final long maxTime;
+
+    final long crc;
+
+    Segment(final long position, final int count, final long length, final long minTime, final long maxTime,
+        final long crc) {
+      this.position = position;
+      this.count = count;
+      this.length = length;
+      this.minTime = minTime;
+      this.maxTime = maxTime;
+      this.crc = crc;
+    }
+
+    long end() {
+      return position + HEADER_SIZE + length;
+    }
+
+    List<Record> read(final FileChannel channel) throws IOException {
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Catalog segment at " + position + " is too large");
+      }
+      final ByteBuffer body = ByteBuffer.allocate((int) length);
+      readFully(channel, body, position + HEADER_SIZE);
+      final CRC32 check = new CRC32();
+      check.update(body.array(), 0, body.limit());
+      if (check.getValue() != crc) {
+        throw new IOException("Checksum mismatch in catalog segment at " + position);
+      }
+
+      final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+      final int archiveCount = in.readInt();
+      final String[] archives = new String[archiveCount];
+      for (int i = 0; i < archiveCount; i++) {
+        archives[i] = in.readUTF();
+      }
+      final List<Record> records = new ArrayList<Record>(count);
+      for (int i = 0; i < count; i++) {
+        final String name = in.readUTF();
+        final int archive = in.readInt();
+        if (archive < 0 || archive >= archiveCount) {
+          throw new IOException("Invalid archive index " + archive + " in catalog segment at " + position);
+        }
+        records.add(new Record(name, archives[archive], in.readLong(), in.readLong(), in.readLong()));
+      }
+      return records;
+    }
+  }
+
+}
@@ -0,0 +1,441 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of temporary archives written by one ZippingFileFilter
+ * run. An entry is recorded after its data is written into the archive and
+ * before its source file is deleted, together with the archive length at that
+ * point. An archive left unfinished by a dead process can then be truncated
+ * to its last recorded entry and closed with the central directory rebuilt
+ * from the journal.
+ *
+ * Every record is written with a single write and carries a CRC, so a record
+ * torn by a crash ends the journal. The journal is locked while the run is
+ * active and removed when all archives of the run were finished.
+ *
+ * Journals are named by archivePrefix, so filters of several actions or
+ * rules sharing an outDir recover only their own archives.
+ */
+final class ArchiveJournal implements Closeable {
+
+  static final String PREFIX = "diskmanager_journal_";
+
+  static final String SUFFIX = ".log";
+
+  private static final byte OPEN = 1;
+
+  private static final byte ENTRY = 2;
+
+  private static final byte DONE = 3;
+
+  // Longest record accepted when reading, longer one is considered garbage
+  private static final int MAX_RECORD = 1 << 20;
+
+  // Canonical paths of journals written or replayed by this JVM. Closing a
+  // second channel of such a file would release the lock held on it.
+  private static final Set<String> ACTIVE = new HashSet<String>();
+
+  private final File file;
+
+  private final FileChannel channel;
+
+  private final FileLock lock;
+
+  private final ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+
+  private final DataOutputStream data = new DataOutputStream(record);
+
+  private final CRC32 crc = new CRC32();
+
+  // Archives opened and not yet finished
+  private int unfinished = 0;
+
+  private ArchiveJournal(final File file, final FileChannel channel, final FileLock lock) {
+    this.file = file;
+    this.channel = channel;
+    this.lock = lock;
+  }
+
+  /**
+   * Creates new journal into directory for archives with archivePrefix.
+   */
+  static ArchiveJournal create(final File dir, final String archivePrefix) throws IOException {
+    synchronized (ACTIVE) {
+      final File file = File.createTempFile(PREFIX + archivePrefix + "_", SUFFIX, dir);
+      final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+      try {
+        final ArchiveJournal journal = new ArchiveJournal(file, channel, channel.lock());
+        ACTIVE.add(file.getCanonicalPath());
+        return journal;
+      } catch (IOException e) {
+        channel.close();
+        file.delete();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Lists journals of archives with archivePrefix in directory.
+   */
+  static File[] list(final File dir, final String archivePrefix) {
+    final String start = PREFIX + archivePrefix + "_";
+    final File[] journals = dir.listFiles(new FileFilter() {
+      public boolean accept(final File f) {
+        final String name = f.getName();
+        // Journal of prefix a is not one of a_b: only digits follow the prefix
+        return name.startsWith(start) && name.endsWith(SUFFIX) && name.length() > start.length() + SUFFIX.length()
+            && digits(name.substring(start.length(), name.length() - SUFFIX.length())) && f.isFile();
+      }
+    });
+    return journals == null ? new File[0] : journals;
+  }
+
+  private static boolean digits(final String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (!Character.isDigit(s.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Records that a temporary archive was created.
+   */
+  synchronized void opened(final File archive) throws IOException {
+    begin(OPEN);
+    data.writeUTF(archive.getAbsolutePath());
+    commit();
+    unfinished++;
+  }
+
+  /**
+   * Records entry written into archive. Source is deleted after this, unless
+   * it is null for a range of a live log that is not deleted.
+   *
+   * @param end
+   *          archive length after the entry
+   * @param filemod
+   *          timestamp of the source used for archive naming
+   */
+  synchronized void committed(final File archive, final ArchiveWriter.Entry entry, final long end, final long filemod,
+      final File source) throws IOException {
+    begin(ENTRY);
+    data.writeUTF(archive.getAbsolutePath());
+    data.writeUTF(entry.getName());
+    data.writeLong(entry.dosTime);
+    data.writeLong(entry.getOffset());
+    data.writeBoolean(entry.zip64);
+    data.writeByte(entry.getMethod());
+    data.writeLong(entry.getCrc());
+    data.writeLong(entry.getSize());
+    data.writeLong(entry.getCompressedSize());
+    data.writeLong(end);
+    data.writeLong(filemod);
+    data.writeUTF(source == null ? "" : source.getPath());
+    commit();
+  }
+
+  /**
+   * Records that archive has been closed with its central directory and
+   * renamed. An archive closed but not renamed is completed again on recovery,
+   * rewriting the same central directory.
+   */
+  synchronized void done(final File archive) throws IOException {
+    begin(DONE);
+    data.writeUTF(archive.getAbsolutePath());
+    commit();
+    unfinished--;
+  }
+
+  /**
+   * Closes the journal. Journal is removed if every archive opened was also
+   * finished, otherwise it is left for recovery.
+   */
+  public synchronized void close() throws IOException {
+    try {
+      try {
+        lock.release();
+      } finally {
+        channel.close();
+      }
+      if (unfinished <= 0) {
+        file.delete();
+      }
+    } finally {
+      closed(file);
+    }
+  }
+
+  private static void closed(final File file) throws IOException {
+    synchronized (ACTIVE) {
+      ACTIVE.remove(file.getCanonicalPath());
+    }
+  }
+
+  private void begin(final byte type) throws IOException {
+    record.reset();
+    data.writeInt(0); // length, set in commit
+    data.writeByte(type);
+  }
+
+  private void commit() throws IOException {
+    final byte[] bytes = record.toByteArray();
+    final int len = bytes.length - 4;
+    crc.reset();
+    crc.update(bytes, 4, len);
+
+    final ByteBuffer buf = ByteBuffer.allocate(bytes.length + 4);
+    buf.putInt(len);
+    buf.put(bytes, 4, len);
+    buf.putInt((int) crc.getValue());
+    buf.flip();
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+  }
+
+  /**
+   * Reads journal left by an earlier run. Returns null if the journal is
+   * used by a run still active, in this JVM or another process. The returned
+   * replay holds the lock until closed.
+   */
+  static Replay replay(final File file) throws IOException {
+    final FileChannel channel;
+    final FileLock lock;
+    synchronized (ACTIVE) {
+      // Checked before opening, a channel closed here would unlock the journal
+      if (ACTIVE.contains(file.getCanonicalPath())) {
+        return null;
+      }
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+      try {
+        lock = channel.tryLock();
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+      if (lock == null) {
+        channel.close();
+        return null;
+      }
+      ACTIVE.add(file.getCanonicalPath());
+    }
+
+    final Replay replay = new Replay(file, channel, lock);
+    try {
+      replay.read();
+    } catch (IOException e) {
+      replay.close();
+      throw e;
+    }
+    return replay;
+  }
+
+  /**
+   * Contents of a journal read for recovery.
+   */
+  static final class Replay implements Closeable {
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final FileLock lock;
+
+    private final Map<String, Pending> archives = new LinkedHashMap<String, Pending>();
+
+    private boolean torn = false;
+
+    private Replay(final File file, final FileChannel channel, final FileLock lock) {
+      this.file = file;
+      this.channel = channel;
+      this.lock = lock;
+    }
+
+    private void read() throws IOException {
+      final File dir = file.getParentFile();
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+          ArchiveWriter.BUFFER_SIZE));
+      final CRC32 crc = new CRC32();
+      try {
+        while (true) {
+          final int first = in.read();
+          if (first < 0) {
+            break;
+          }
+
+          final byte[] bytes;
+          try {
+            final int len = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            if (len <= 0 || len > MAX_RECORD) {
+              torn = true;
+              break;
+            }
+            bytes = new byte[len];
+            in.readFully(bytes);
+            crc.reset();
+            crc.update(bytes, 0, len);
+            if (in.readInt() != (int) crc.getValue()) {
+              torn = true;
+              break;
+            }
+          } catch (EOFException e) {
+            // End of file inside a record, the last write was torn
+            torn = true;
+            break;
+          }
+
+          final DataInputStream rec = new DataInputStream(new ByteArrayInputStream(bytes));
+          final byte type = rec.readByte();
+          final String name = rec.readUTF();
+
+          if (type == OPEN) {
+            final File archive = new File(name);
+            archives.put(name, new Pending(archive.isAbsolute() ? archive : new File(dir, name)));
+          } else if (type == DONE) {
+            archives.remove(name);
+          } else if (type == ENTRY) {
+            final Pending pending = archives.get(name);
+            final ArchiveWriter.Entry entry = new ArchiveWriter.Entry(rec.readUTF(), rec.readLong(), rec.readLong(),
+                rec.readBoolean());
+            entry.method = rec.readByte();
+            entry.crc = rec.readLong();
+            entry.size = rec.readLong();
+            entry.csize = rec.readLong();
+            final long end = rec.readLong();
+            final long filemod = rec.readLong();
+            final File source = new File(rec.readUTF());
+            if (pending != null) {
+              pending.add(entry, end, filemod, source);
+            }
+          } else {
+            torn = true;
+            break;
+          }
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    File getFile() {
+      return file;
+    }
+
+    /**
+     * Returns true if the journal ended with an incomplete record.
+     */
+    boolean isTorn() {
+      return torn;
+    }
+
+    /**
+     * Archives opened but not finished, in order of creation.
+     */
+    List<Pending> getPending() {
+      return new ArrayList<Pending>(archives.values());
+    }
+
+    /**
+     * Removes the journal after recovery.
+     */
+    void delete() throws IOException {
+      if (!channel.isOpen()) {
+        return;
+      }
+      try {
+        release();
+        file.delete();
+      } finally {
+        closed(file);
+      }
+    }
+
+    public void close() throws IOException {
+      if (!channel.isOpen()) {
+        return;
+      }
+      try {
+        release();
+      } finally {
+        closed(file);
+      }
+    }
+
+    private void release() throws IOException {
+      try {
+        lock.release();
+      } finally {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Unfinished archive and the entries committed into it.
+   */
+  static final class Pending {
+
+    final File archive;
+
+    final List<ArchiveWriter.Entry> entries = new ArrayList<ArchiveWriter.Entry>();
+
+    final List<File> sources = new ArrayList<File>();
+
+    // Timestamps of the sources
+    final List<Long> times = new ArrayList<Long>();
+
+    // Archive length after the last committed entry
+    long end = 0L;
+
+    long minDate = Long.MAX_VALUE;
+
+    long maxDate = Long.MIN_VALUE;
+
+    Pending(final File archive) {
+      this.archive = archive;
+    }
+
+    private void add(final ArchiveWriter.Entry entry, final long end, final long filemod, final File source) {
+      entries.add(entry);
+      sources.add(source);
+      times.add(filemod);
+      this.end = end;
+      if (filemod < minDate) {
+        minDate = filemod;
+      }
+      if (filemod > maxDate) {
+        maxDate = filemod;
+      }
+    }
+  }
+
+}
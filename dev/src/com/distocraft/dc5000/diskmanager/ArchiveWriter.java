@@ -0,0 +1,743 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Zip archive writer shared by ZippingFileFilter and DirectoryDiskManager.
+ * Compression level and strategy of all archives are set here.
+ *
+ * Files are copied through a per thread workspace holding a Deflater, a CRC
+ * and the copy buffers, so adding an entry allocates next to nothing. Local
+ * headers are written before the data and patched with CRC and sizes
+ * afterwards, which lets STORED entries be written in one pass. Zip64
+ * extensions are used when sizes, offsets or the entry count need them.
+ *
+ * One ArchiveWriter must be used by one thread at a time.
+ */
+final class ArchiveWriter implements Closeable {
+
+  /**
+   * Size of copy buffers.
+   */
+  static final int BUFFER_SIZE = 65536;
+
+  /**
+   * Default compression level of ZippingFileFilter.
+   */
+  static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+  /**
+   * Default compression level of DirectoryDiskManager.
+   */
+  static final int FAST_LEVEL = Deflater.BEST_SPEED;
+
+  static final int STORED = 0;
+
+  static final int DEFLATED = 8;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final long LOCSIG = 0x04034b50L;
+
+  private static final long CENSIG = 0x02014b50L;
+
+  private static final long ENDSIG = 0x06054b50L;
+
+  private static final long ZIP64_ENDSIG = 0x06064b50L;
+
+  private static final long ZIP64_LOCSIG = 0x07064b50L;
+
+  private static final int LOCHDR = 30;
+
+  private static final int CENHDR = 46;
+
+  private static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+
+  private static final int ZIP64_MAGICCOUNT = 0xFFFF;
+
+  private static final int ZIP64_EXTID = 0x0001;
+
+  // Entries this large get zip64 local headers. The margin covers the worst
+  // case growth of deflated data.
+  static final long ZIP64_THRESHOLD = ZIP64_MAGICVAL - 0x200000L;
+
+  private static final int FLAG_UTF8 = 0x800;
+
+  // Estimated headers and central directory record of one entry
+  static final int ENTRY_OVERHEAD = 128;
+
+  // Test hook, close() leaves archives without central directory as a dead process would
+  static volatile boolean crashOnClose = false;
+
+  private static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>() {
+    @Override
+    protected Workspace initialValue() {
+      return new Workspace();
+    }
+  };
+
+  private final File file;
+
+  private final FileChannel channel;
+
+  private final int level;
+
+  private final int strategy;
+
+  private final CompressionClassifier classifier;
+
+  private final List<Entry> entries = new ArrayList<Entry>();
+
+  // Bytes written so far, data is always appended
+  private long position = 0L;
+
+  // Uncompressed size of entries added so far
+  private long inputSize = 0L;
+
+  private boolean closed = false;
+
+  private IoThrottle throttle = IoThrottle.UNLIMITED;
+
+  /**
+   * Creates (or truncates) archive file.
+   *
+   * @param file
+   *          archive file
+   * @param level
+   *          Deflater compression level
+   * @param strategy
+   *          Deflater strategy
+   * @param classifier
+   *          decides which entries are stored without compression
+   */
+  ArchiveWriter(final File file, final int level, final int strategy, final CompressionClassifier classifier)
+      throws IOException {
+    this(file, level, strategy, classifier, FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+  }
+
+  private ArchiveWriter(final File file, final int level, final int strategy, final CompressionClassifier classifier,
+      final FileChannel channel) {
+    this.file = file;
+    this.level = level;
+    this.strategy = strategy;
+    this.classifier = classifier;
+    this.channel = channel;
+  }
+
+  /**
+   * Reopens archive left unfinished. Data after end is discarded and entries
+   * must describe the data before it. New entries are appended after end and
+   * close() writes central directory of all entries.
+   *
+   * @param entries
+   *          entries written before end, in file order
+   * @param end
+   *          length of valid data in the archive
+   */
+  static ArchiveWriter resume(final File file, final List<Entry> entries, final long end, final int level,
+      final int strategy, final CompressionClassifier classifier) throws IOException {
+    final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+    final ArchiveWriter out = new ArchiveWriter(file, level, strategy, classifier, channel);
+    try {
+      if (channel.size() < end) {
+        throw new IOException("Archive " + file + " is shorter (" + channel.size() + ") than its last entry (" + end
+            + ")");
+      }
+      channel.truncate(end);
+    } catch (IOException e) {
+      out.abort();
+      throw e;
+    }
+    out.position = end;
+    out.entries.addAll(entries);
+    for (Entry entry : entries) {
+      out.inputSize += entry.size;
+    }
+    return out;
+  }
+
+  /**
+   * Parses compression level parameter. Empty value means the default.
+   */
+  static int parseLevel(final String value, final int defaultLevel) throws Exception {
+    if (value == null || value.trim().length() <= 0) {
+      return defaultLevel;
+    }
+    final int parsed;
+    try {
+      parsed = Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new Exception("Compression level \"" + value + "\" is invalid");
+    }
+    if (parsed != Deflater.DEFAULT_COMPRESSION && (parsed < Deflater.NO_COMPRESSION || parsed > Deflater.BEST_COMPRESSION)) {
+      throw new Exception("Compression level \"" + value + "\" is invalid");
+    }
+    return parsed;
+  }
+
+  /**
+   * Parses compression strategy parameter: default, filtered or huffman.
+   */
+  static int parseStrategy(final String value) throws Exception {
+    if (value == null || value.trim().length() <= 0 || "default".equalsIgnoreCase(value.trim())) {
+      return Deflater.DEFAULT_STRATEGY;
+    } else if ("filtered".equalsIgnoreCase(value.trim())) {
+      return Deflater.FILTERED;
+    } else if ("huffman".equalsIgnoreCase(value.trim())) {
+      return Deflater.HUFFMAN_ONLY;
+    }
+    throw new Exception("Compression strategy \"" + value + "\" is invalid");
+  }
+
+  /**
+   * Releases the workspace of calling thread. Called by threads that exit
+   * after archiving, the Deflater holds native memory.
+   */
+  static void releaseWorkspace() {
+    WORKSPACE.get().deflater.end();
+    WORKSPACE.remove();
+  }
+
+  /**
+   * Sets throttle of reading source files and writing the archive.
+   */
+  void setThrottle(final IoThrottle throttle) {
+    this.throttle = throttle;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns number of bytes written into the archive so far.
+   */
+  long size() {
+    return position;
+  }
+
+  int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Returns true if adding length more bytes would likely make the archive
+   * larger than maxSize, estimated from the compression ratio of the entries
+   * so far and central directory of ENTRY_OVERHEAD bytes per entry. An empty
+   * archive is never full, files are not split.
+   */
+  boolean isFull(final long length, final long maxSize) {
+    if (entries.isEmpty()) {
+      return false;
+    }
+    final double ratio = inputSize > 0 ? Math.min(1.0, (double) position / inputSize) : 1.0;
+    final long estimate = position + (long) (length * ratio) + (entries.size() + 1) * ENTRY_OVERHEAD;
+    return estimate > maxSize;
+  }
+
+  /**
+   * Adds file into archive.
+   *
+   * @param src
+   *          file to add
+   * @param name
+   *          entry name
+   * @param time
+   *          entry modification time
+   * @return added entry
+   */
+  Entry add(final File src, final String name, final long time) throws IOException {
+    final FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+    try {
+      return add(in, 0L, in.size(), name, time);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Adds range of a file into archive. Reading stops at end of file if file
+   * is shorter than position + length.
+   */
+  Entry add(final FileChannel in, final long from, final long length, final String name, final long time)
+      throws IOException {
+
+    if (closed) {
+      throw new IOException("Archive " + file + " is closed");
+    }
+
+    final Workspace ws = WORKSPACE.get();
+    final Entry entry = new Entry(name, javaToDosTime(ws.calendar, time), position, length > ZIP64_THRESHOLD);
+
+    try {
+
+      // First chunk is the sample for compression decision
+      long readPos = from;
+      long left = length;
+      int chunk = read(in, ws, readPos, left);
+      readPos += chunk;
+      left -= chunk;
+
+      if (classifier != null) {
+        final int sampled = Math.min(chunk, CompressionClassifier.SAMPLE_SIZE);
+        ws.readBuffer.get(ws.inArray, 0, sampled);
+        ws.readBuffer.position(0);
+        entry.method = classifier.shouldStore(ws.inArray, sampled, ws.histogram) ? STORED : DEFLATED;
+      }
+
+      writeLocalHeader(ws, entry);
+
+      final long started = System.nanoTime();
+      final CRC32 crc = ws.crc;
+      crc.reset();
+
+      if (entry.method == STORED) {
+
+        long size = 0L;
+        while (chunk > 0) {
+          crc.update(ws.readBuffer);
+          ws.readBuffer.position(0);
+          writeFully(ws.readBuffer);
+          size += chunk;
+
+          chunk = read(in, ws, readPos, left);
+          readPos += chunk;
+          left -= chunk;
+        }
+        entry.size = size;
+        entry.csize = size;
+
+        if (classifier != null) {
+          classifier.stored(size);
+        }
+
+      } else {
+
+        final Deflater def = ws.deflater;
+        def.reset();
+        if (ws.level != level) {
+          def.setLevel(level);
+          ws.level = level;
+        }
+        if (ws.strategy != strategy) {
+          def.setStrategy(strategy);
+          ws.strategy = strategy;
+        }
+
+        while (chunk > 0) {
+          ws.readBuffer.get(ws.inArray, 0, chunk);
+          crc.update(ws.inArray, 0, chunk);
+          def.setInput(ws.inArray, 0, chunk);
+          while (!def.needsInput()) {
+            deflate(ws);
+          }
+
+          chunk = read(in, ws, readPos, left);
+          readPos += chunk;
+          left -= chunk;
+        }
+        def.finish();
+        while (!def.finished()) {
+          deflate(ws);
+        }
+        entry.size = def.getBytesRead();
+        entry.csize = def.getBytesWritten();
+
+        if (classifier != null) {
+          classifier.deflated(entry.size, System.nanoTime() - started);
+        }
+      }
+
+      entry.crc = crc.getValue();
+
+      if (!entry.zip64 && (entry.size >= ZIP64_MAGICVAL || entry.csize >= ZIP64_MAGICVAL)) {
+        throw new IOException("Entry " + name + " grew over zip64 threshold");
+      }
+
+      patchLocalHeader(ws, entry);
+
+    } catch (IOException e) {
+      rollback(entry.offset);
+      throw e;
+    } catch (RuntimeException e) {
+      rollback(entry.offset);
+      throw e;
+    }
+
+    entries.add(entry);
+    inputSize += entry.size;
+    return entry;
+  }
+
+  /**
+   * Writes central directory and closes the archive.
+   */
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    if (crashOnClose) {
+      abort();
+      throw new IOException("Archive " + file + " left unfinished");
+    }
+    closed = true;
+
+    try {
+      final Workspace ws = WORKSPACE.get();
+      ByteBuffer buf = ws.header(BUFFER_SIZE);
+      buf.clear();
+
+      final long cenStart = position;
+
+      for (Entry entry : entries) {
+        final int len = CENHDR + entry.nameBytes.length + 28;
+        if (buf.remaining() < len) {
+          buf.flip();
+          writeFully(buf);
+          buf = ws.header(len);
+          buf.clear();
+        }
+        putCentralHeader(buf, entry);
+      }
+
+      final long cenEnd = position + buf.position();
+      final long cenSize = cenEnd - cenStart;
+      final int count = entries.size();
+
+      if (buf.remaining() < 98) {
+        buf.flip();
+        writeFully(buf);
+        buf.clear();
+      }
+
+      final boolean zip64 = count >= ZIP64_MAGICCOUNT || cenStart >= ZIP64_MAGICVAL || cenSize >= ZIP64_MAGICVAL;
+
+      if (zip64) {
+        // Zip64 end of central directory record and locator
+        putInt(buf, ZIP64_ENDSIG);
+        buf.putLong(44L);
+        buf.putShort((short) 45);
+        buf.putShort((short) 45);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putLong(count);
+        buf.putLong(count);
+        buf.putLong(cenSize);
+        buf.putLong(cenStart);
+
+        putInt(buf, ZIP64_LOCSIG);
+        buf.putInt(0);
+        buf.putLong(cenEnd);
+        buf.putInt(1);
+      }
+
+      putInt(buf, ENDSIG);
+      buf.putShort((short) 0);
+      buf.putShort((short) 0);
+      buf.putShort((short) (zip64 ? ZIP64_MAGICCOUNT : count));
+      buf.putShort((short) (zip64 ? ZIP64_MAGICCOUNT : count));
+      putInt(buf, zip64 ? ZIP64_MAGICVAL : cenSize);
+      putInt(buf, zip64 ? ZIP64_MAGICVAL : cenStart);
+      buf.putShort((short) 0);
+
+      buf.flip();
+      writeFully(buf);
+
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Closes the archive file without writing central directory. The file is
+   * not a valid archive after this.
+   */
+  void abort() {
+    closed = true;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Nothing to do
+    }
+  }
+
+  /**
+   * Reads next chunk into read buffer of the workspace. Returns number of
+   * bytes read, 0 at end.
+   */
+  private int read(final FileChannel in, final Workspace ws, final long from, final long left)
+      throws IOException {
+    final ByteBuffer buf = ws.readBuffer;
+    buf.clear();
+    if (left < buf.capacity()) {
+      buf.limit((int) left);
+    }
+    long pos = from;
+    while (buf.hasRemaining()) {
+      final int count = in.read(buf, pos);
+      if (count < 0) {
+        break;
+      }
+      pos += count;
+    }
+    buf.flip();
+    throttle.read(buf.remaining());
+    return buf.remaining();
+  }
+
+  private void deflate(final Workspace ws) throws IOException {
+    final int count = ws.deflater.deflate(ws.outArray, 0, ws.outArray.length);
+    if (count > 0) {
+      ws.outBuffer.clear();
+      ws.outBuffer.limit(count);
+      writeFully(ws.outBuffer);
+    }
+  }
+
+  private void writeFully(final ByteBuffer buf) throws IOException {
+    throttle.write(buf.remaining());
+    while (buf.hasRemaining()) {
+      position += channel.write(buf, position);
+    }
+  }
+
+  private void writeFully(final ByteBuffer buf, final long at) throws IOException {
+    throttle.write(buf.remaining());
+    long pos = at;
+    while (buf.hasRemaining()) {
+      pos += channel.write(buf, pos);
+    }
+  }
+
+  private void rollback(final long offset) {
+    try {
+      channel.truncate(offset);
+      position = offset;
+    } catch (IOException e) {
+      // Archive is unusable, central directory will point to entries before
+      // offset anyway
+      position = offset;
+    }
+  }
+
+  private void writeLocalHeader(final Workspace ws, final Entry entry) throws IOException {
+    final ByteBuffer buf = ws.header(LOCHDR + entry.nameBytes.length + 20);
+    buf.clear();
+    putInt(buf, LOCSIG);
+    buf.putShort((short) entry.versionNeeded());
+    buf.putShort((short) entry.flags);
+    buf.putShort((short) entry.method);
+    putInt(buf, entry.dosTime);
+    buf.putInt(0); // crc, patched
+    if (entry.zip64) {
+      putInt(buf, ZIP64_MAGICVAL);
+      putInt(buf, ZIP64_MAGICVAL);
+    } else {
+      buf.putInt(0); // sizes, patched
+      buf.putInt(0);
+    }
+    buf.putShort((short) entry.nameBytes.length);
+    buf.putShort((short) (entry.zip64 ? 20 : 0));
+    buf.put(entry.nameBytes);
+    if (entry.zip64) {
+      buf.putShort((short) ZIP64_EXTID);
+      buf.putShort((short) 16);
+      buf.putLong(0L); // sizes, patched
+      buf.putLong(0L);
+    }
+    buf.flip();
+    writeFully(buf);
+  }
+
+  private void patchLocalHeader(final Workspace ws, final Entry entry) throws IOException {
+    final ByteBuffer buf = ws.header(16);
+    buf.clear();
+    putInt(buf, entry.crc);
+    if (entry.zip64) {
+      buf.flip();
+      writeFully(buf, entry.offset + 14);
+
+      buf.clear();
+      buf.putLong(entry.size);
+      buf.putLong(entry.csize);
+      buf.flip();
+      writeFully(buf, entry.offset + LOCHDR + entry.nameBytes.length + 4);
+    } else {
+      putInt(buf, entry.csize);
+      putInt(buf, entry.size);
+      buf.flip();
+      writeFully(buf, entry.offset + 14);
+    }
+  }
+
+  private static void putCentralHeader(final ByteBuffer buf, final Entry entry) {
+    final boolean bigSize = entry.size >= ZIP64_MAGICVAL;
+    final boolean bigCsize = entry.csize >= ZIP64_MAGICVAL;
+    final boolean bigOffset = entry.offset >= ZIP64_MAGICVAL;
+    final int extra = (bigSize ? 8 : 0) + (bigCsize ? 8 : 0) + (bigOffset ? 8 : 0);
+    final int version = extra > 0 ? 45 : entry.versionNeeded();
+
+    putInt(buf, CENSIG);
+    buf.putShort((short) version);
+    buf.putShort((short) version);
+    buf.putShort((short) entry.flags);
+    buf.putShort((short) entry.method);
+    putInt(buf, entry.dosTime);
+    putInt(buf, entry.crc);
+    putInt(buf, bigCsize ? ZIP64_MAGICVAL : entry.csize);
+    putInt(buf, bigSize ? ZIP64_MAGICVAL : entry.size);
+    buf.putShort((short) entry.nameBytes.length);
+    buf.putShort((short) (extra > 0 ? extra + 4 : 0));
+    buf.putShort((short) 0); // comment
+    buf.putShort((short) 0); // disk
+    buf.putShort((short) 0); // internal attributes
+    buf.putInt(0); // external attributes
+    putInt(buf, bigOffset ? ZIP64_MAGICVAL : entry.offset);
+    buf.put(entry.nameBytes);
+    if (extra > 0) {
+      buf.putShort((short) ZIP64_EXTID);
+      buf.putShort((short) extra);
+      if (bigSize) {
+        buf.putLong(entry.size);
+      }
+      if (bigCsize) {
+        buf.putLong(entry.csize);
+      }
+      if (bigOffset) {
+        buf.putLong(entry.offset);
+      }
+    }
+  }
+
+  private static void putInt(final ByteBuffer buf, final long value) {
+    buf.putInt((int) (value & 0xFFFFFFFFL));
+  }
+
+  /**
+   * Converts Java time to MS-DOS date and time as java.util.zip does.
+   */
+  private static long javaToDosTime(final Calendar cal, final long time) {
+    cal.setTimeInMillis(time);
+    final int year = cal.get(Calendar.YEAR);
+    if (year < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return ((long) (year - 1980) << 25) | ((cal.get(Calendar.MONTH) + 1) << 21) | (cal.get(Calendar.DAY_OF_MONTH) << 16)
+        | (cal.get(Calendar.HOUR_OF_DAY) << 11) | (cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) >> 1);
+  }
+
+  /**
+   * Entry written into the archive.
+   */
+  static final class Entry {
+
+    final String name;
+
+    final byte[] nameBytes;
+
+    final int flags;
+
+    final long dosTime;
+
+    final long offset;
+
+    final boolean zip64;
+
+    int method = DEFLATED;
+
+    long crc = 0L;
+
+    long size = 0L;
+
+    long csize = 0L;
+
+    Entry(final String name, final long dosTime, final long offset, final boolean zip64) {
+      this.name = name;
+      this.nameBytes = name.getBytes(UTF8);
+      this.flags = nameBytes.length != name.length() ? FLAG_UTF8 : 0;
+      this.dosTime = dosTime;
+      this.offset = offset;
+      this.zip64 = zip64;
+    }
+
+    int versionNeeded() {
+      return zip64 ? 45 : (method == STORED ? 10 : 20);
+    }
+
+    String getName() {
+      return name;
+    }
+
+    int getMethod() {
+      return method;
+    }
+
+    /**
+     * Offset of the local header in archive.
+     */
+    long getOffset() {
+      return offset;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    long getCompressedSize() {
+      return csize;
+    }
+
+    long getCrc() {
+      return crc;
+    }
+  }
+
+  /**
+   * Per thread Deflater and buffers.
+   */
+  private static final class Workspace {
+
+    final Deflater deflater = new Deflater(DEFAULT_LEVEL, true);
+
+    int level = DEFAULT_LEVEL;
+
+    int strategy = Deflater.DEFAULT_STRATEGY;
+
+    final CRC32 crc = new CRC32();
+
+    final Calendar calendar = Calendar.getInstance();
+
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    final byte[] inArray = new byte[BUFFER_SIZE];
+
+    final byte[] outArray = new byte[BUFFER_SIZE];
+
+    final ByteBuffer outBuffer = ByteBuffer.wrap(outArray);
+
+    final int[] histogram = new int[256];
+
+    private ByteBuffer header = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+
+    ByteBuffer header(final int capacity) {
+      if (header.capacity() < capacity) {
+        header = ByteBuffer.allocate(Math.max(capacity, header.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      return header;
+    }
+  }
+
+}
@@ -0,0 +1,34 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named name-N that release their archiving workspace
+ * on exit.
+ */
+final class ArchivingThreadFactory implements ThreadFactory {
+
+  private final String name;
+
+  private final AtomicInteger count = new AtomicInteger(0);
+
+  ArchivingThreadFactory(final String name) {
+    this.name = name;
+  }
+
+  public Thread newThread(final Runnable r) {
+    final Thread t = new Thread(new Runnable() {
+      public void run() {
+        try {
+          r.run();
+        } finally {
+          ArchiveWriter.releaseWorkspace();
+        }
+      }
+    }, name + "-" + count.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  }
+
+}
@@ -0,0 +1,193 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides per archive entry whether deflating it pays off. The decision is
+ * made from a small prefix of the file: known magic bytes of compressed
+ * formats and an entropy estimate of the sampled bytes. Entries that would
+ * not compress are written STORED.
+ *
+ * Counters are per run and shared by all threads writing archives.
+ */
+final class CompressionClassifier {
+
+  /**
+   * Number of bytes sampled from start of each file.
+   */
+  static final int SAMPLE_SIZE = 4096;
+
+  /**
+   * Samples with higher entropy (bits per byte) are considered incompressible.
+   */
+  static final double ENTROPY_LIMIT = 7.5;
+
+  /**
+   * Samples shorter than this are always deflated, entropy of few bytes says
+   * nothing.
+   */
+  static final int MIN_ENTROPY_SAMPLE = 256;
+
+  // Magic bytes of formats that are already compressed
+  private static final int[][] MAGICS = {
+      { 0x1f, 0x8b }, // gzip
+      { 0x1f, 0x9d }, // compress
+      { 0x50, 0x4b, 0x03, 0x04 }, // zip
+      { 0x50, 0x4b, 0x05, 0x06 }, // empty zip
+      { 0x42, 0x5a, 0x68 }, // bzip2
+      { 0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00 }, // xz
+      { 0x28, 0xb5, 0x2f, 0xfd }, // zstd
+      { 0x04, 0x22, 0x4d, 0x18 }, // lz4
+      { 0x37, 0x7a, 0xbc, 0xaf, 0x27, 0x1c }, // 7z
+      { 0x52, 0x61, 0x72, 0x21 }, // rar
+      { 0x89, 0x50, 0x4e, 0x47 }, // png
+      { 0xff, 0xd8, 0xff }, // jpeg
+      { 0x47, 0x49, 0x46, 0x38 } // gif
+  };
+
+  private final boolean enabled;
+
+  private final AtomicLong storedEntries = new AtomicLong();
+
+  private final AtomicLong storedBytes = new AtomicLong();
+
+  private final AtomicLong deflatedEntries = new AtomicLong();
+
+  private final AtomicLong deflatedBytes = new AtomicLong();
+
+  private final AtomicLong deflateNanos = new AtomicLong();
+
+  /**
+   * @param enabled
+   *          if false every entry is deflated
+   */
+  CompressionClassifier(final boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Returns true if the sampled file should be stored without compression.
+   *
+   * @param sample
+   *          first bytes of the file
+   * @param len
+   *          number of valid bytes in sample
+   * @param histogram
+   *          scratch array of 256 ints, contents are overwritten
+   */
+  boolean shouldStore(final byte[] sample, final int len, final int[] histogram) {
+    if (!enabled) {
+      return false;
+    }
+
+    if (len <= 0) {
+      return true; // Nothing to compress
+    }
+
+    if (isCompressedFormat(sample, len)) {
+      return true;
+    }
+
+    if (len < MIN_ENTROPY_SAMPLE) {
+      return false;
+    }
+
+    return entropy(sample, len, histogram) > ENTROPY_LIMIT;
+  }
+
+  /**
+   * Checks sample against known magic bytes.
+   */
+  static boolean isCompressedFormat(final byte[] sample, final int len) {
+    for (int[] magic : MAGICS) {
+      if (len < magic.length) {
+        continue;
+      }
+      int i = 0;
+      while (i < magic.length && (sample[i] & 0xff) == magic[i]) {
+        i++;
+      }
+      if (i == magic.length) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Shannon entropy of the sample in bits per byte (0.0 - 8.0).
+   */
+  static double entropy(final byte[] sample, final int len, final int[] histogram) {
+    for (int i = 0; i < 256; i++) {
+      histogram[i] = 0;
+    }
+    for (int i = 0; i < len; i++) {
+      histogram[sample[i] & 0xff]++;
+    }
+
+    double entropy = 0.0;
+    for (int i = 0; i < 256; i++) {
+      if (histogram[i] > 0) {
+        final double p = (double) histogram[i] / len;
+        entropy -= p * Math.log(p);
+      }
+    }
+    return entropy / Math.log(2);
+  }
+
+  /**
+   * Counts entry stored without compression.
+   */
+  void stored(final long size) {
+    storedEntries.incrementAndGet();
+    storedBytes.addAndGet(size);
+  }
+
+  /**
+   * Counts deflated entry and time spent deflating it.
+   */
+  void deflated(final long size, final long nanos) {
+    deflatedEntries.incrementAndGet();
+    deflatedBytes.addAndGet(size);
+    deflateNanos.addAndGet(nanos);
+  }
+
+  long getStoredEntries() {
+    return storedEntries.get();
+  }
+
+  long getStoredBytes() {
+    return storedBytes.get();
+  }
+
+  long getDeflatedEntries() {
+    return deflatedEntries.get();
+  }
+
+  long getDeflatedBytes() {
+    return deflatedBytes.get();
+  }
+
+  /**
+   * Estimated time saved by not deflating the stored entries, based on the
+   * deflate rate measured during this run.
+   */
+  long getSavedMillis() {
+    final long deflated = deflatedBytes.get();
+    if (deflated <= 0) {
+      return 0;
+    }
+    final double nanosPerByte = (double) deflateNanos.get() / deflated;
+    return (long) (storedBytes.get() * nanosPerByte / 1000000.0);
+  }
+
+  /**
+   * One line summary for the run log.
+   */
+  String summary() {
+    return "Stored " + storedEntries.get() + " entries (" + storedBytes.get() + "B) without compression, deflated "
+        + deflatedEntries.get() + " entries (" + deflatedBytes.get() + "B), estimated " + getSavedMillis()
+        + " ms deflate time saved";
+  }
+
+}
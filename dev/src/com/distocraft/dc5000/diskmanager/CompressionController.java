@@ -0,0 +1,222 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.util.zip.Deflater;
+
+/**
+ * Chooses Deflater level and strategy of each new archive so that archiving
+ * keeps up with a target throughput or finishes within a time budget.
+ *
+ * Settings are steps on a ladder from fastest to smallest output: level 0,
+ * Huffman coding only, then levels 1-9 with the configured strategy. Rate
+ * and compression ratio of every finished archive are recorded for its step.
+ * When the archive writers are slower than needed the next archives are
+ * written one step faster (two if less than half of the rate needed), when
+ * there is enough headroom one step smaller. A smaller step is not used if
+ * its measured ratio is not at least MIN_GAIN better, and a faster step whose
+ * ratio is as good is returned to. The step is changed at most once per
+ * finished archive written with it.
+ *
+ * The step is chosen when an archive is opened and nothing is kept between
+ * runs, so compression adapts only in runs writing several archives per
+ * writer.
+ *
+ * With a target the rate needed per writer is target / writers. With a
+ * budget it is estimated from the progress reported by the caller: work left
+ * in the proportion of bytes per unit done so far, divided by time left.
+ *
+ * Shared by all threads writing archives.
+ */
+final class CompressionController {
+
+  // Step at which levels 1-9 start
+  private static final int LEVEL_STEP = 2;
+
+  private static final int STEPS = LEVEL_STEP + Deflater.BEST_COMPRESSION;
+
+  // Rate must exceed the need this much before compressing harder
+  private static final double HEADROOM = 1.3;
+
+  // Fraction of input a smaller step must save to be worth its time
+  private static final double MIN_GAIN = 0.01;
+
+  // Weight of the latest archive in the averages of a step
+  private static final double ALPHA = 0.5;
+
+  private final int strategy;
+
+  private final long targetBytesPerSecond;
+
+  private final long budgetMillis;
+
+  private final int writers;
+
+  private final long start = System.currentTimeMillis();
+
+  private int step;
+
+  // Has an archive written at current step finished since the step changed
+  private boolean measured = false;
+
+  private final double[] rate = new double[STEPS];
+
+  private final double[] ratio = new double[STEPS];
+
+  private final int[] archives = new int[STEPS];
+
+  private final long[] input = new long[STEPS];
+
+  private long totalInput = 0L;
+
+  private int unitsDone = 0;
+
+  private int unitsTotal = 0;
+
+  /**
+   * @param level
+   *          configured level, where adapting starts from
+   * @param strategy
+   *          configured Deflater strategy, used with levels 1-9
+   * @param targetBytesPerSecond
+   *          throughput of all writers together, 0 if not used
+   * @param budgetMillis
+   *          time the run should finish in, 0 if not used
+   * @param writers
+   *          number of threads writing archives
+   */
+  CompressionController(final int level, final int strategy, final long targetBytesPerSecond,
+      final long budgetMillis, final int writers) {
+    this.strategy = strategy;
+    this.targetBytesPerSecond = targetBytesPerSecond;
+    this.budgetMillis = budgetMillis;
+    this.writers = Math.max(1, writers);
+    if (level == Deflater.NO_COMPRESSION) {
+      step = 0;
+    } else if (level == Deflater.DEFAULT_COMPRESSION) {
+      step = LEVEL_STEP + 5;
+    } else {
+      step = LEVEL_STEP + level - 1;
+    }
+  }
+
+  /**
+   * Returns the step for a new archive.
+   */
+  synchronized int next() {
+    final double needed = neededRate();
+    final double current = rate[step];
+    if (!measured || needed <= 0 || current <= 0) {
+      return step;
+    }
+
+    if (current < needed) {
+      step = Math.max(0, step - (current < needed / 2 ? 2 : 1));
+      measured = false;
+    } else if (step > 0 && ratio[step - 1] > 0 && ratio[step - 1] <= ratio[step] + MIN_GAIN) {
+      // Faster step compresses as well
+      step--;
+      measured = false;
+    } else if (step < STEPS - 1 && current > needed * HEADROOM
+        && (rate[step + 1] <= 0 || rate[step + 1] >= needed)
+        && (ratio[step + 1] <= 0 || ratio[step + 1] < ratio[step] - MIN_GAIN)) {
+      step++;
+      measured = false;
+    }
+    return step;
+  }
+
+  /**
+   * Records archive written at step.
+   *
+   * @param bytes
+   *          uncompressed bytes archived
+   * @param compressed
+   *          size of the archive
+   * @param nanos
+   *          time spent adding the files
+   */
+  synchronized void finished(final int step, final long bytes, final long compressed, final long nanos) {
+    if (bytes <= 0 || nanos <= 0) {
+      return;
+    }
+    final double r = bytes * 1e9 / nanos;
+    final double c = (double) compressed / bytes;
+    rate[step] = rate[step] > 0 ? ALPHA * r + (1 - ALPHA) * rate[step] : r;
+    ratio[step] = ratio[step] > 0 ? ALPHA * c + (1 - ALPHA) * ratio[step] : c;
+    archives[step]++;
+    input[step] += bytes;
+    totalInput += bytes;
+    if (step == this.step) {
+      measured = true;
+    }
+  }
+
+  /**
+   * Sets amount of work of a run with a budget, for example number of
+   * directories to archive.
+   */
+  synchronized void setUnits(final int total) {
+    unitsTotal = total;
+  }
+
+  /**
+   * Reports one unit of work done.
+   */
+  synchronized void unitDone() {
+    unitsDone++;
+  }
+
+  static int level(final int step) {
+    if (step == 0) {
+      return Deflater.NO_COMPRESSION;
+    } else if (step == 1) {
+      return Deflater.BEST_SPEED;
+    }
+    return step - LEVEL_STEP + 1;
+  }
+
+  int strategy(final int step) {
+    return step == 1 ? Deflater.HUFFMAN_ONLY : strategy;
+  }
+
+  /**
+   * Returns levels used with their rates and ratios.
+   */
+  synchronized String summary() {
+    final StringBuilder sb = new StringBuilder("Compression levels used:");
+    for (int s = 0; s < STEPS; s++) {
+      if (archives[s] == 0) {
+        continue;
+      }
+      sb.append(' ').append(s == 1 ? "huffman" : "level " + level(s)).append(": ").append(archives[s])
+          .append(" archives ").append(input[s] / 1048576L).append("MB ")
+          .append(Math.round(rate[s] / 1048576.0 * writers)).append("MB/s ratio ")
+          .append(Math.round(ratio[s] * 100)).append("%;");
+    }
+    final double needed = neededRate();
+    if (needed == Double.MAX_VALUE) {
+      sb.append(" budget exceeded");
+    } else if (needed > 0) {
+      sb.append(" needed ").append(Math.round(needed / 1048576.0 * writers)).append("MB/s");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns bytes per second one writer needs to archive, 0 if unknown.
+   */
+  private double neededRate() {
+    if (targetBytesPerSecond > 0) {
+      return (double) targetBytesPerSecond / writers;
+    }
+    if (budgetMillis <= 0 || unitsDone <= 0 || totalInput <= 0) {
+      return 0;
+    }
+    final long left = budgetMillis - (System.currentTimeMillis() - start);
+    if (left <= 0) {
+      return Double.MAX_VALUE;
+    }
+    final double bytesLeft = (double) totalInput / unitsDone * Math.max(0, unitsTotal - unitsDone);
+    return bytesLeft * 1000.0 / left / writers;
+  }
+
+}
@@ -0,0 +1,146 @@
+package com.distocraft.dc5000.diskmanager;
+
+/**
+ * Limits number of file operations in flight and adapts the limit to their
+ * latency, additive increase and multiplicative decrease like TCP congestion
+ * control.
+ *
+ * The limit starts from min. Latencies are averaged over windows of WINDOW
+ * operations. If the mean of a window is above the target, the limit is
+ * halved, otherwise it is increased by one if the limit was reached during the
+ * window. Without a configured target the target is TOLERANCE times the
+ * lowest window mean seen, which follows slowly when latency stays higher.
+ * The limit is kept between min and max.
+ *
+ * Shared by all threads doing the operations.
+ */
+final class ConcurrencyLimiter {
+
+  // Operations per window
+  static final int WINDOW = 64;
+
+  // Latency may grow this much over the lowest seen before backing off
+  static final double TOLERANCE = 2.0;
+
+  static final double DECREASE = 0.5;
+
+  // Weight of a higher window mean in the lowest one
+  private static final double DRIFT = 0.02;
+
+  private final int min;
+
+  private final int max;
+
+  private final long targetNanos;
+
+  private int limit;
+
+  private int inFlight = 0;
+
+  // Has the limit been reached during the window
+  private boolean saturated = false;
+
+  private long windowNanos = 0L;
+
+  private int windowCount = 0;
+
+  private double lowest = 0.0;
+
+  private int increases = 0;
+
+  private int decreases = 0;
+
+  private int windows = 0;
+
+  private long limitSum = 0L;
+
+  private int highest;
+
+  /**
+   * @param min
+   *          lowest limit, also the initial one
+   * @param max
+   *          highest limit
+   * @param targetNanos
+   *          latency above which limit is decreased, 0 to derive it from the
+   *          lowest latency seen
+   */
+  ConcurrencyLimiter(final int min, final int max, final long targetNanos) {
+    this.max = Math.max(1, max);
+    this.min = Math.max(1, Math.min(min, this.max));
+    this.targetNanos = targetNanos;
+    this.limit = this.min;
+    this.highest = this.limit;
+  }
+
+  /**
+   * Waits until an operation may start.
+   */
+  synchronized void acquire() {
+    boolean interrupted = false;
+    while (inFlight >= limit) {
+      saturated = true;
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    inFlight++;
+    if (inFlight >= limit) {
+      saturated = true;
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Ends an operation that took nanos.
+   */
+  synchronized void release(final long nanos) {
+    inFlight--;
+    windowNanos += nanos;
+    if (++windowCount >= WINDOW) {
+      adjust((double) windowNanos / windowCount);
+      windowNanos = 0L;
+      windowCount = 0;
+      saturated = inFlight >= limit;
+    }
+    notifyAll();
+  }
+
+  private void adjust(final double mean) {
+    if (lowest <= 0 || mean < lowest) {
+      lowest = mean;
+    } else {
+      lowest += (mean - lowest) * DRIFT;
+    }
+    final double target = targetNanos > 0 ? targetNanos : lowest * TOLERANCE;
+
+    if (mean > target && limit > min) {
+      limit = Math.max(min, (int) (limit * DECREASE));
+      decreases++;
+    } else if (mean <= target && saturated && limit < max) {
+      limit++;
+      increases++;
+      highest = Math.max(highest, limit);
+    }
+    windows++;
+    limitSum += limit;
+  }
+
+  synchronized int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Returns limits chosen.
+   */
+  synchronized String summary() {
+    return "Concurrency " + limit + " at end, " + (windows > 0 ? Math.round((double) limitSum / windows) : limit)
+        + " on average, highest " + highest + " within " + min + "-" + max + ", " + increases + " increases "
+        + decreases + " decreases, lowest mean latency " + Math.round(lowest / 1000.0) + " us";
+  }
+
+}
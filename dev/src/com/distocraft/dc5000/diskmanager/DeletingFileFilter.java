@@ -1,6 +1,7 @@
 package com.distocraft.dc5000.diskmanager;
 
 import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -37,8 +38,9 @@ public class DeletingFileFilter extends DiskManagerFileFilter {
 
           if (age > 0) {
             log.fine("File "+dirPath+" is over 60 days old!!");
-            boolean suc = f.delete();
+            boolean suc = unlink(f);
             if(suc){
+              stats.deleted();
               log.fine("File successfully deleted in failed directory : "+dirPath);
             }
             return true;
@@ -67,10 +69,12 @@ public class DeletingFileFilter extends DiskManagerFileFilter {
 
         if(super.ageCheck(f) > 0) {
           if(!f.getName().equals(".tagfile")) { // HP49595, diskmanager should skip .tagfile(used by NAS)deletion
-            boolean suc = f.delete(); 
+            boolean suc = unlink(f); 
             if(!suc){
               log.info("Cannot delete file " + f);
-			}
+			} else {
+              stats.deleted();
+            }
           }
             }
 
@@ -102,24 +106,77 @@ public class DeletingFileFilter extends DiskManagerFileFilter {
     
     long start = System.currentTimeMillis();
     totalfiles++;
+    stats.scanned();
     log.finest("FileAge for file "+file+" is :" + fileAge);
     long filemodtime = -1;
 
     log.finest("Name of file to be deleted is :" + file.getName());
     filemodtime = file.lastModified();
     log.finest("filemodtime for file to be deleted is : " + filemodtime);
-    long time = start - filemodtime;
     log.finest("starttime for file to be deleted is: " + start);
-    if (filemodtime==0){
-        // 0L if the file does not exist (if a symbolic link exists but real files does not).
-        // We want to remove the file in this case. 
-        files++;
-        return 1L;      
-      } else if ((time) > fileAge) {
-        files++;
-        return filemodtime;
+    final long age = checkAge(filemodtime, start);
+    if (age > 0) {
+      files++;
+      stats.matched(1);
+    }
+    return age;
+  }
+
+  /**
+   * Deletes file the way recurseDeleteFiles does: fileMask is not used and
+   * .tagfiles are kept. Used when deleted files are watched.
+   */
+  @Override
+  boolean accept(final File f, final BasicFileAttributes attrs) {
+
+    if (attrs.isDirectory()) {
+      return true;
+    }
+
+    final boolean old = checkAge(attrs.lastModifiedTime().toMillis(), System.currentTimeMillis()) > 0;
+    addCounts(1, old ? 1 : 0);
+
+    // HP49595, diskmanager should skip .tagfile(used by NAS)deletion
+    if (old && !f.getName().equals(".tagfile")) {
+      log.finest("Deleting file :" + f);
+      if (!unlink(f)) {
+        log.info("Cannot delete file " + f);
       } else {
-        return -1;
+        stats.deleted();
       }
+    }
+
+    return false;
+  }
+
+  /**
+   * Deletion does not use fileMask, files age from their modification time.
+   */
+  @Override
+  long expiryTime(final File file, final BasicFileAttributes attrs) throws Exception {
+    final long filemodtime = attrs == null ? file.lastModified() : attrs.lastModifiedTime().toMillis();
+    return filemodtime == 0 ? 0 : filemodtime + fileAge + 1;
+  }
+
+  /**
+   * Age check of ageCheck() without updating counters, may be called by
+   * several threads at the same time.
+   *
+   * @param filemodtime
+   *          modification time of the file, 0 if file does not exist
+   * @param now
+   *          current time
+   * @return date of file or -1 if not to be deleted
+   */
+  long checkAge(final long filemodtime, final long now) {
+    if (filemodtime == 0) {
+      // 0L if the file does not exist (if a symbolic link exists but real files does not).
+      // We want to remove the file in this case.
+      return 1L;
+    } else if ((now - filemodtime) > fileAge) {
+      return filemodtime;
+    } else {
+      return -1;
+    }
   }
 }
\ No newline at end of file
@@ -52,6 +52,79 @@ package com.distocraft.dc5000.diskmanager;
  * <td>Maximum number of files inserted per archive. If there are more files than maxEntriesPerZip extra numbered archives are created.</td>
  * <td>50000</td>
  * </tr>
+ * <tr>
+ * <td></td>
+ * <td>maxArchiveMB</td>
+ * <td>Maximum size of an archive in megabytes. Files are added into a new numbered archive when the estimated size would exceed it, a single file larger than this gets an archive of its own. 0 rotates by maxEntriesPerZip only.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td></td>
+ * <td>storeIncompressible</td>
+ * <td>Are already compressed or otherwise incompressible files stored into the archive without compression.</td>
+ * <td>true</td>
+ * </tr>
+ * <tr>
+ * <td></td>
+ * <td>compressionLevel</td>
+ * <td>Deflate compression level 0-9.</td>
+ * <td>1</td>
+ * </tr>
+ * <tr>
+ * <td></td>
+ * <td>compressionStrategy</td>
+ * <td>Deflate strategy: default, filtered or huffman.</td>
+ * <td>default</td>
+ * </tr>
+ * <tr>
+ * <td></td>
+ * <td>compressionTargetMBs</td>
+ * <td>Throughput in MB/s the archiving threads together should sustain. Compression level and strategy of each new archive are adapted from the rate and ratio measured so far, starting from compressionLevel. 0 uses compressionLevel for all archives.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td></td>
+ * <td>compressionBudgetMinutes</td>
+ * <td>Time in minutes the run should finish in. Compression is adapted like with compressionTargetMBs to the rate needed for the directories left. 0 uses compressionLevel for all archives.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td></td>
+ * <td>parallelism</td>
+ * <td>Number of directories archived at the same time. If more than 1, archived directories are deleted in
+ * background while next ones are archived.</td>
+ * <td>1</td>
+ * </tr>
+ * <tr>
+ * <td></td>
+ * <td>maxInFlight</td>
+ * <td>Maximum number of directories being archived or waiting for deletion at the same time.</td>
+ * <td>2 * parallelism</td>
+ * </tr>
+ * <tr>
+ * <td></td>
+ * <td>throttleReadMBs</td>
+ * <td>Megabytes per second all archiving threads together may read, 0 for no limit.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td></td>
+ * <td>throttleWriteMBs</td>
+ * <td>Megabytes per second all archiving threads together may write, 0 for no limit.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td></td>
+ * <td>throttleOpsPerSecond</td>
+ * <td>Files per second that may be deleted, 0 for no limit.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td></td>
+ * <td>preview</td>
+ * <td>If set to 1 nothing is archived or deleted. Files of the directories that would be archived are counted with their bytes, up to 32 MB of them compressed to measure throughput, and a report with an estimated runtime is logged.</td>
+ * <td>0</td>
+ * </tr>
  * </table>
  * <br> 
  *
@@ -59,31 +132,35 @@ package com.distocraft.dc5000.diskmanager;
  * Copyright Distocraft 2006
  */
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 public class DirectoryDiskManager {
 
-  private static final int ZIP_BUFFER = 16384;
-
   int timeLimit = 2;
 
   boolean deleteDirectory = true;
 
   int maxEntriesPerZip = 50000;
 
-  private SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmm");
+  // Archive size limit in bytes, 0 if archives are rotated by count only
+  long maxArchiveBytes = 0L;
+
+  int parallelism = 1;
+
+  int maxInFlight = 2;
+
+  private final TimestampCodec sdf = TimestampCodec.compile("yyyyMMddHHmm");
 
   // COMMON PARAMETERS
   private static Logger log;
@@ -96,6 +173,21 @@ public class DirectoryDiskManager {
 
   private String prefix;
 
+  private CompressionClassifier classifier;
+
+  private int compressionLevel;
+
+  private int compressionStrategy;
+
+  // Adapts compression of new archives, null if compressionLevel is fixed
+  private CompressionController controller;
+
+  // What the run would do, null unless preview is set
+  private PreviewReport preview;
+
+  // Limits I/O of all threads
+  private IoThrottle throttle;
+
   /**
    * Initializes DirectoryDiskManager for defined instance.
    * 
@@ -128,6 +220,30 @@ public class DirectoryDiskManager {
     this.timeLimit = toInt(conf.getProperty("directoryDiskManager.timeLimit"));
     this.deleteDirectory = "true".equalsIgnoreCase(conf.getProperty("directoryDiskManager.deleteDirectory", "true"));
     this.maxEntriesPerZip = toInt(conf.getProperty("directoryDiskManager.maxEntriesPerZip", "50000"));
+    this.maxArchiveBytes = Math.max(0L, toInt(conf.getProperty("directoryDiskManager.maxArchiveMB", "0")) * 1048576L);
+    this.classifier = new CompressionClassifier("true".equalsIgnoreCase(conf.getProperty(
+        "directoryDiskManager.storeIncompressible", "true")));
+    this.compressionLevel = ArchiveWriter.parseLevel(conf.getProperty("directoryDiskManager.compressionLevel"),
+        ArchiveWriter.FAST_LEVEL);
+    this.compressionStrategy = ArchiveWriter.parseStrategy(conf.getProperty("directoryDiskManager.compressionStrategy"));
+    this.parallelism = Math.max(1, toInt(conf.getProperty("directoryDiskManager.parallelism", "1")));
+    this.maxInFlight = Math.max(this.parallelism, toInt(conf.getProperty("directoryDiskManager.maxInFlight",
+        String.valueOf(2 * this.parallelism))));
+
+    this.throttle = IoThrottle.create(toInt(conf.getProperty("directoryDiskManager.throttleReadMBs", "0")),
+        toInt(conf.getProperty("directoryDiskManager.throttleWriteMBs", "0")),
+        toInt(conf.getProperty("directoryDiskManager.throttleOpsPerSecond", "0")));
+
+    if (PreviewReport.isSet(conf, "directoryDiskManager.preview")) {
+      this.preview = new PreviewReport();
+    }
+
+    final long targetMBs = toInt(conf.getProperty("directoryDiskManager.compressionTargetMBs", "0"));
+    final long budgetMinutes = toInt(conf.getProperty("directoryDiskManager.compressionBudgetMinutes", "0"));
+    if (targetMBs > 0 || budgetMinutes > 0) {
+      this.controller = new CompressionController(compressionLevel, compressionStrategy, targetMBs * 1048576L,
+          budgetMinutes * 60000L, parallelism);
+    }
   }
 
   /**
@@ -148,21 +264,118 @@ public class DirectoryDiskManager {
 
     File[] dirToZip = subDirectories(in);
 
-    for (int i = 0; i < dirToZip.length; i++) {
-      log.info("Archiving directory " + dirToZip[i]);
-      
-      zipDirectory(dirToZip[i]);
+    if (preview != null) {
+      for (File dir : dirToZip) {
+        previewDirectory(dir);
+      }
+      log.info(preview.summary());
+      return;
+    }
+
+    if (controller != null) {
+      controller.setUnits(dirToZip.length);
+    }
+
+    if (parallelism > 1) {
+      executePipelined(dirToZip);
+    } else {
+      for (int i = 0; i < dirToZip.length; i++) {
+        log.info("Archiving directory " + dirToZip[i]);
 
-      if (deleteDirectory){
-        delDirectory(dirToZip[i]);
-	  }
+        zipDirectory(dirToZip[i]);
+
+        if (deleteDirectory){
+          delDirectory(dirToZip[i]);
+        }
+      }
     }
 
     log.fine("Directory diskmanager finnished.");
+    if (throttle.isLimited()) {
+      log.info("Throttled for " + throttle.getWaitMillis() + " ms");
+    }
+    if (classifier.getStoredEntries() > 0) {
+      log.info(classifier.summary());
+    }
+    if (controller != null) {
+      log.info(controller.summary());
+    }
     long endtime = (System.currentTimeMillis());
     log.finest("Execution time in seconds: " + new Date(endtime - starttime).getSeconds());
   }
 
+  /**
+   * Archives directories with parallelism threads. Archived directories are
+   * deleted by a background thread while the next ones are archived. At most
+   * maxInFlight directories are being archived or waiting for deletion. First
+   * failure stops taking new directories and is thrown when running ones have
+   * finished.
+   */
+  private void executePipelined(final File[] dirToZip) throws Exception {
+
+    log.fine("Archiving " + dirToZip.length + " directories with " + parallelism + " threads, " + maxInFlight
+        + " directories in flight");
+
+    final ExecutorService zippers = Executors.newFixedThreadPool(parallelism,
+        new ArchivingThreadFactory("DirectoryDiskManager-zip"));
+    final ExecutorService deleter = Executors.newSingleThreadExecutor(
+        new ArchivingThreadFactory("DirectoryDiskManager-delete"));
+    final Semaphore inFlight = new Semaphore(maxInFlight);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    try {
+      for (final File dir : dirToZip) {
+        inFlight.acquire();
+        if (failure.get() != null) {
+          inFlight.release();
+          break;
+        }
+
+        zippers.execute(new Runnable() {
+          public void run() {
+            boolean deleting = false;
+            try {
+              log.info("Archiving directory " + dir);
+
+              zipDirectory(dir);
+
+              if (deleteDirectory) {
+                deleter.execute(new Runnable() {
+                  public void run() {
+                    try {
+                      delDirectory(dir);
+                    } catch (Exception e) {
+                      failure.compareAndSet(null, e);
+                    } finally {
+                      inFlight.release();
+                    }
+                  }
+                });
+                deleting = true;
+              }
+            } catch (Exception e) {
+              failure.compareAndSet(null, e);
+            } finally {
+              if (!deleting) {
+                inFlight.release();
+              }
+            }
+          }
+        });
+      }
+    } finally {
+      // Deletions are queued by zipping threads, so those must finish first
+      zippers.shutdown();
+      zippers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      deleter.shutdown();
+      deleter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+
   /**
    * Zip the contents of the directory, and save it in the zipfile
    * 
@@ -180,14 +393,12 @@ public class DirectoryDiskManager {
     log.finest("File list length: " + entries.length);
 
     int zippedEntries = 0;
-    byte[] buffer = new byte[ZIP_BUFFER]; // Create a buffer for copying
-    int bytesRead;
     int count = 0;
 
     // there should be atleast one entry in directory
     if (entries.length > 0) {
 
-      // if entrie count is larger than maxEntriesPerZip
+      // if entrie count is larger than maxEntriesPerZip or files are larger than maxArchiveMB
       while ((entries.length - zippedEntries) > 0) {
 
         File zout;
@@ -200,42 +411,67 @@ public class DirectoryDiskManager {
 
         // create zipfile
         log.info("Outputfile is: " + zout);
-        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zout));
-        out.setLevel(1); // fastest
+        final int step = controller != null ? controller.next() : 0;
+        ArchiveWriter out = controller != null ? new ArchiveWriter(zout, CompressionController.level(step),
+            controller.strategy(step), classifier) : new ArchiveWriter(zout, compressionLevel, compressionStrategy,
+            classifier);
+        out.setThrottle(throttle);
+        final long begin = System.nanoTime();
+        long archived = 0L;
+
+        int zip = zippedEntries + maxEntriesPerZip;
+        if (zip > entries.length){
+          zip = entries.length;
+		}
 
         try {
 
-          int zip = zippedEntries + maxEntriesPerZip;
-          if (zip > entries.length){
-            zip = entries.length;
-		  }
-
-          for (int i = zippedEntries; i < zip; i++) {
-            BufferedInputStream in = new BufferedInputStream(new FileInputStream(entries[i]), ZIP_BUFFER);
-
-            ZipEntry entry = new ZipEntry(entries[i].getPath()); // Make a
-            // ZipEntry
-            log.fine(i + " Adding file: " + entries[i]);
-            out.putNextEntry(entry); // Store entry
-
-            while ((bytesRead = in.read(buffer)) != -1){
-              out.write(buffer, 0, bytesRead);
-			}
-            in.close();
+          while (zippedEntries < zip) {
+            final File entry = entries[zippedEntries];
+            if (maxArchiveBytes > 0 && out.isFull(entry.length(), maxArchiveBytes)) {
+              log.fine("Archive " + zout + " is full at " + out.size() + " bytes");
+              break;
+            }
+            log.fine(zippedEntries + " Adding file: " + entry);
+            zippedEntries++;
+            archived += out.add(entry, entry.getPath(), System.currentTimeMillis()).getSize(); // Store entry
           }
 
         } catch (Exception e) {
           log.log(Level.WARNING, "ZipDirectory Exception", e);
+          zippedEntries = zip;
         } finally {
-          out.finish();
           out.close();
+          if (controller != null) {
+            controller.finished(step, archived, out.size(), System.nanoTime() - begin);
+          }
         }
 
-        zippedEntries += maxEntriesPerZip;
         count++;
       }
 
     }
+
+    if (controller != null) {
+      controller.unitDone();
+    }
+  }
+
+  /**
+   * Records what archiving and deleting directory would do.
+   */
+  private void previewDirectory(final File dir) {
+    final File[] entries = dir.listFiles();
+    if (entries == null) {
+      return;
+    }
+    log.fine("Would archive " + entries.length + " files of directory " + dir);
+    for (File entry : entries) {
+      preview.compress(entry, entry.length(), compressionLevel);
+    }
+    if (deleteDirectory) {
+      preview.directory();
+    }
   }
 
   /**
@@ -259,7 +495,7 @@ public class DirectoryDiskManager {
 
     log.info("Delete directory: " + d.getAbsolutePath() + "\\");
 
-    boolean success = deleteDir(d, entries);
+    boolean success = deleteDir(d, entries, throttle);
 
     log.info("Deletion: " + success);
 
@@ -275,9 +511,18 @@ public class DirectoryDiskManager {
    * to delete and returns false.
    */
   public static boolean deleteDir(File dir, File[] entries) {
+    return deleteDir(dir, entries, IoThrottle.UNLIMITED);
+  }
+
+  /**
+   * Deletes all files and subdirectories under dir like deleteDir(dir,
+   * entries), at most as fast as throttle allows.
+   */
+  static boolean deleteDir(File dir, File[] entries, IoThrottle throttle) {
     if (dir.isDirectory()) {
       for (int i = 0; i < entries.length; i++) {
         log.fine("Deleting file : " + entries[i].getAbsolutePath());
+        throttle.op();
         boolean success = entries[i].delete();
         if (!success) {
           return false;
@@ -285,6 +530,7 @@ public class DirectoryDiskManager {
       }
     }
     // The directory is now empty so delete it
+    throttle.op();
     return dir.delete();
   }
 
@@ -322,8 +568,7 @@ public class DirectoryDiskManager {
 
           String[] tmp = name.split("_");
           log.fine("Folder timestamp: " + tmp[1]);
-          Date date = sdf.parse(tmp[1]);
-          long folderTime = date.getTime();
+          long folderTime = sdf.parse(tmp[1]);
           long currentTime = System.currentTimeMillis();
 
           long diff = (currentTime - folderTime) / 3600000;
@@ -0,0 +1,251 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Walks a directory tree down to maxDepth and hands every entry to a
+ * DiskManagerFileFilter together with its attributes. Entries are streamed
+ * from the directory, only subdirectories still to be walked are kept in
+ * memory. Attributes are read once per entry, following symbolic links.
+ *
+ * With a ScanIndex, directories that cannot contain files to handle are not
+ * listed, their subdirectories are walked from the index.
+ *
+ * Files of a directory are handled before its subdirectories. The filter is
+ * told when all entries of a directory have been handled. If empty
+ * directories are deleted, a directory is deleted after its subdirectories
+ * have been walked, so a parent emptied by deletions below it is deleted in
+ * the same walk. Entries left in a directory are counted while it is listed:
+ * files the filter removed from it and subdirectories deleted are not left.
+ * Files handed by the filter to threads of its own are removed later, the
+ * filter is flushed to count them only if the directory is empty without
+ * them. The directory is not listed again, a directory counted as empty is
+ * just deleted, which fails if something is left in it after all.
+ */
+final class DirectoryWalker {
+
+  /**
+   * Attributes of an entry that could not be read, like a symbolic link to a
+   * missing file. Modification time is 0 as returned by File.lastModified().
+   */
+  static final BasicFileAttributes MISSING = new BasicFileAttributes() {
+
+    private final FileTime zero = FileTime.fromMillis(0L);
+
+    public FileTime lastModifiedTime() {
+      return zero;
+    }
+
+    public FileTime lastAccessTime() {
+      return zero;
+    }
+
+    public FileTime creationTime() {
+      return zero;
+    }
+
+    public boolean isRegularFile() {
+      return false;
+    }
+
+    public boolean isDirectory() {
+      return false;
+    }
+
+    public boolean isSymbolicLink() {
+      return false;
+    }
+
+    public boolean isOther() {
+      return true;
+    }
+
+    public long size() {
+      return 0L;
+    }
+
+    public Object fileKey() {
+      return null;
+    }
+  };
+
+  private final int maxDepth;
+
+  private final boolean deleteEmptyDirs;
+
+  private final ScanIndex index;
+
+  private final Logger log;
+
+  DirectoryWalker(final int maxDepth, final boolean deleteEmptyDirs, final Logger log) {
+    this(maxDepth, deleteEmptyDirs, null, log);
+  }
+
+  /**
+   * @param maxDepth
+   *          depth of subdirectories walked, 0 walks only the root
+   * @param deleteEmptyDirs
+   *          are walked directories deleted if empty after their files have
+   *          been handled and its subdirectories walked
+   * @param index
+   *          index of unchanged directories, null if not used
+   */
+  DirectoryWalker(final int maxDepth, final boolean deleteEmptyDirs, final ScanIndex index, final Logger log) {
+    this.maxDepth = maxDepth;
+    this.deleteEmptyDirs = deleteEmptyDirs;
+    this.index = index;
+    this.log = log;
+  }
+
+  void walk(final Path root, final DiskManagerFileFilter filter) {
+    walk(root, 0, filter);
+  }
+
+  /**
+   * Reads attributes of an entry, MISSING if that fails.
+   */
+  static BasicFileAttributes attributes(final Path path) {
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException e) {
+      return MISSING;
+    }
+  }
+
+  /**
+   * Walks dir, returns true if it was deleted as empty.
+   */
+  private boolean walk(final Path dir, final int depth, final DiskManagerFileFilter filter) {
+    if (depth > maxDepth) {
+      return false;
+    }
+
+    long modified = 0L;
+    if (index != null) {
+      modified = attributes(dir).lastModifiedTime().toMillis();
+      final String[] indexed = index.skip(dir, modified, filter.start);
+      if (indexed != null) {
+        log.finest("Directory " + dir + " unchanged, not listed");
+        if (depth < maxDepth) {
+          for (String name : indexed) {
+            walk(dir.resolve(name), depth + 1, filter);
+          }
+        }
+        return false;
+      }
+    }
+
+    log.fine("Managing subdirectory " + dir);
+    filter.stats.directory(dir);
+
+    final File file = dir.toFile();
+    if (deleteEmptyDirs) {
+      filter.countRemovals(file);
+    }
+
+    final List<Path> subdirs = new ArrayList<Path>();
+
+    // Index data of this directory
+    final int handled = filter.getFiles();
+    final List<String> names = new ArrayList<String>();
+    long oldest = Long.MAX_VALUE;
+    long newest = Long.MIN_VALUE;
+
+    // Entries listed, those removed by the filter are subtracted below
+    int live = 0;
+
+    try {
+      final DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+      try {
+        for (Path path : stream) {
+          live++;
+          final long begin = System.nanoTime();
+          final BasicFileAttributes attrs = attributes(path);
+          filter.stats.stat(System.nanoTime() - begin);
+          if (index != null && attrs.isRegularFile() && filter.matchesMask(path.getFileName().toString())) {
+            final long time = attrs.lastModifiedTime().toMillis();
+            oldest = Math.min(oldest, time);
+            newest = Math.max(newest, time);
+          }
+          if (filter.accept(path.toFile(), attrs)) {
+            if (index != null) {
+              names.add(path.getFileName().toString());
+            }
+            if (depth < maxDepth) {
+              subdirs.add(path);
+            }
+          }
+        }
+      } finally {
+        stream.close();
+      }
+    } catch (NoSuchFileException e) {
+      log.fine("File " + dir + " does not exist!");
+      filter.takeRemovals(file);
+      return false;
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Listing for " + dir + " failed, ignoring!", e);
+      filter.takeRemovals(file);
+      return false;
+    }
+
+    filter.directoryDone(file);
+
+    // Files matched, removed by now unless handed to other threads or kept
+    final int matched = filter.getFiles() - handled;
+
+    if (index != null && filter.getFiles() == handled) {
+      index.record(dir, modified, oldest, newest, names);
+    }
+
+    log.fine("Subdirectory " + dir + " managed");
+
+    for (Path subdir : subdirs) {
+      if (walk(subdir, depth + 1, filter)) {
+        live--;
+      }
+    }
+
+    if (!deleteEmptyDirs) {
+      return false;
+    }
+    if (live <= matched) {
+      filter.flush();
+    }
+    return live - filter.takeRemovals(file) <= 0 && deleteEmpty(dir, filter.preview);
+  }
+
+  /**
+   * Deletes directory counted as empty. Deleting a directory that is not
+   * empty fails, so nothing is lost if the count was wrong.
+   */
+  private boolean deleteEmpty(final Path dir, final PreviewReport preview) {
+    if (preview != null) {
+      preview.directory();
+      return true;
+    }
+    if (dir.toFile().delete()) {
+      log.info("Directory " + dir + " deleted");
+      return true;
+    }
+    if (Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+      log.finer("Directory " + dir + " is not empty?");
+    } else {
+      log.warning("Cannot delete directory " + dir);
+    }
+    return false;
+  }
+
+}
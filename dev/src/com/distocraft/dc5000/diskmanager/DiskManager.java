@@ -2,15 +2,21 @@ package com.distocraft.dc5000.diskmanager;
 
 import com.ericsson.eniq.common.CommonUtils;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,7 +53,19 @@ import java.util.logging.Logger;
  * "create archive named by youngest and oldest file" creates an arcive named
  * archive prefix + timestamp of the younges file in archive + "_" + oldest file
  * in archive.<br>
- * "delete files" Deletes files.</td>
+ * "delete files" Deletes files.<br>
+ * "free space by watermarks" (5) deletes the oldest files matching fileMask
+ * in the whole tree, regardless of fileAge, when the file system is used above
+ * highWatermarkPercent, until it is used at lowWatermarkPercent.<br>
+ * "keep within quota" (6) keeps in every directory down to directoryDepth
+ * the newest files matching fileMask within maxDirectoryMB and
+ * keepNewestFiles, and deletes the older ones regardless of fileAge.<br>
+ * "apply rules" (7) walks the tree once and hands each file to the first of
+ * the rules diskManager.rule.1, diskManager.rule.2, ... whose fileMask matches
+ * it. A rule has archiveMode 0-4 and any other parameter of this table, for
+ * example diskManager.rule.1.fileMask or diskManager.rule.1.fileAgeDay.
+ * Parameters not given for a rule are taken from diskManager.dir, except
+ * fileMask. Files of each rule are counted and logged separately.</td>
  * <td>"move files to out dir"</td>
  * </tr>
  * <tr>
@@ -77,7 +95,9 @@ import java.util.logging.Logger;
  * <tr>
  * <td>File mask</td>
  * <td>fileMask</td>
- * <td>RegExp mask to select managed files from IN Directory.</td>
+ * <td>RegExp mask to select managed files from IN Directory. More masks can
+ * be given as fileMask.1, fileMask.2, ... A file is managed if any of the
+ * masks matches.</td>
  * <td>&nbsp;</td>
  * </tr>
  * <tr>
@@ -89,7 +109,11 @@ import java.util.logging.Logger;
  * <tr>
  * <td>&nbsp;</td>
  * <td>preview</td>
- * <td>If preview is set to 1 no actual changes are made.</td>
+ * <td>If preview is set to 1 no actual changes are made. The tree is walked
+ * and files that would be moved, archived or deleted are counted with their
+ * bytes. Up to 32 MB of them are read to measure throughput, and a report
+ * with an estimated runtime is logged. Scan index is not saved and
+ * watchMinutes is ignored.</td>
  * <td>0</td>
  * </tr>
  * <tr>
@@ -97,7 +121,11 @@ import java.util.logging.Logger;
  * <td>fileList</td>
  * <td>If fileList is set to 1 filelist (list of all files managed by
  * diskmanager) are generated. Name of the list is same as archives name except
- * the file extension is fileListExt </td>
+ * the file extension is fileListExt. Archived files are also added into
+ * catalog outDir/diskmanager_&lt;archivePrefix&gt;.catalog, queried by name or
+ * time without opening the archives with java
+ * com.distocraft.dc5000.diskmanager.ArchiveCatalog &lt;outDir&gt; [-name regex]
+ * [-from yyyyMMddHHmm] [-to yyyyMMddHHmm] </td>
  * <td>0</td>
  * </tr>
  * <tr>
@@ -109,6 +137,174 @@ import java.util.logging.Logger;
  * </tr>
  * <tr>
  * <td>&nbsp;</td>
+ * <td>maxArchiveMB</td>
+ * <td>Maximum size of an archive in megabytes. Files are added into a new
+ * archive when the estimated size would exceed it, a single file larger than
+ * this gets an archive of its own. 0 rotates by maxFilesToArchive only.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>zipThreads</td>
+ * <td>Number of threads creating archives. Each thread writes its own
+ * (numbered) archives.</td>
+ * <td>1</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>storeIncompressible</td>
+ * <td>Are already compressed or otherwise incompressible files stored into
+ * archives without compression.</td>
+ * <td>true</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>compressionLevel</td>
+ * <td>Deflate compression level 0-9.</td>
+ * <td>-1 (zlib default)</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>compressionStrategy</td>
+ * <td>Deflate strategy: default, filtered or huffman.</td>
+ * <td>default</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>compressionTargetMBs</td>
+ * <td>Throughput in MB/s the zipping threads together should sustain.
+ * Compression level and strategy of each new archive are adapted from the
+ * rate and ratio measured so far, starting from compressionLevel. Adapted
+ * only when a new archive is opened, so set maxArchiveMB for each zipping
+ * thread to write several archives per run. 0 uses compressionLevel for all
+ * archives.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>journal</td>
+ * <td>Are archived files recorded in a journal in outDir, so that archives
+ * left unfinished by a crash are completed on next run.</td>
+ * <td>true</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>logCheckpoint</td>
+ * <td>File keeping offsets of live logs (catalina.out) archived so far. Live
+ * logs are not deleted, each run archives only what has been appended since
+ * the previous one.</td>
+ * <td>outDir/diskmanager_&lt;archivePrefix&gt;.logs</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>mountParallelism</td>
+ * <td>Number of workers handling failed directories of etldata mount points.
+ * Mount points on the same device are handled by one worker. 1 handles mount
+ * points one after another, 0 uses a worker per device.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>deleteParallelism</td>
+ * <td>Number of threads deleting files in archiveMode 4 (deleted). Each
+ * subdirectory is handled as a separate task.</td>
+ * <td>1</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>minDeleteParallelism</td>
+ * <td>If less than deleteParallelism, the number of files checked and deleted
+ * at the same time starts from this and is adapted to their latency: it is
+ * increased by one while latency stays low and halved when latency grows,
+ * never above deleteParallelism. The concurrency chosen is logged.</td>
+ * <td>deleteParallelism</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>deleteLatencyMicros</td>
+ * <td>Latency of checking and deleting a file in microseconds above which
+ * adapted concurrency is halved. 0 halves it when latency is twice the lowest
+ * seen.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>throttleReadMBs</td>
+ * <td>Megabytes per second all threads of the action together may read while
+ * moving or archiving files, 0 for no limit.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>throttleWriteMBs</td>
+ * <td>Megabytes per second all threads of the action together may write, 0
+ * for no limit.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>throttleOpsPerSecond</td>
+ * <td>Files per second that may be deleted or renamed, 0 for no limit.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>highWatermarkPercent</td>
+ * <td>Usage of the file system of inDir in percent above which archiveMode 5
+ * starts deleting files.</td>
+ * <td>90</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>lowWatermarkPercent</td>
+ * <td>Usage in percent archiveMode 5 deletes files down to.</td>
+ * <td>80</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>evictionCandidates</td>
+ * <td>Maximum number of oldest files archiveMode 5 collects during one walk
+ * of the tree. The tree is walked again if they were not enough.</td>
+ * <td>100000</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>maxDirectoryMB</td>
+ * <td>Megabytes of files archiveMode 6 keeps in each directory, 0 for no
+ * limit.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>keepNewestFiles</td>
+ * <td>Number of newest files archiveMode 6 keeps in each directory, 0 for no
+ * limit. maxDirectoryMB, keepNewestFiles or both must be set.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>scanIndex</td>
+ * <td>File where modification times of walked directories are kept between
+ * runs. Unchanged directories holding no files old enough are not listed
+ * again. Used only with fileAgeMode 0.</td>
+ * <td>&nbsp;</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>watchMinutes</td>
+ * <td>If set, the action watches inDir for this many minutes and handles
+ * every file as soon as it is old enough, instead of walking the tree once.</td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
+ * <td>reconcileMinutes</td>
+ * <td>Interval of walks over the whole tree while watching, to find files
+ * the watch has missed.</td>
+ * <td>60</td>
+ * </tr>
+ * <tr>
+ * <td>&nbsp;</td>
  * <td>locale</td>
  * <td>Defines the locale used (timestamp).</td>
  * <td>en</td>
@@ -149,11 +345,16 @@ import java.util.logging.Logger;
  * <td>Delete empty directories</td>
  * <td>deleteEmptyDirectories</td>
  * <td>Are empty directories removed after files have been
- * moved/archived/deleted.</td>
+ * moved/archived/deleted. Parents emptied by removed subdirectories are
+ * removed in the same run.</td>
  * <td>false</td>
  * </tr>
  * </table><br>
  * <p/>
+ * Each action publishes live counters of its runs as MBean
+ * com.distocraft.dc5000.diskmanager:type=DiskManager,techpack=..,setType=..,setName=..
+ * (see DiskManagerStatsMBean).<br>
+ * <p/>
  * Copyright Ab LM Ericsson Oy 2005-7 <br>
  *
  * @author savinen
@@ -163,7 +364,7 @@ class DiskManager {
 
   public static final int MAX_FILES_PER_ZIP = 60000;
 
-  public static final int ZIP_BUFFER = 16384;
+  public static final int ZIP_BUFFER = ArchiveWriter.BUFFER_SIZE;
 
   // Archiving modes
 
@@ -177,6 +378,12 @@ class DiskManager {
 
   public static final int DELETED = 4;
 
+  public static final int WATERMARK = 5;
+
+  public static final int QUOTA = 6;
+
+  public static final int RULES = 7;
+
   // File age modes
 
   public static final int FILE_SYSTEM_AGE = 0;
@@ -196,6 +403,13 @@ class DiskManager {
 
   private int maxDepth = 2;
 
+  private DiskManagerStats stats;
+
+  // What the run would do, null unless preview is set
+  private PreviewReport preview = null;
+
+  private IoThrottle throttle = IoThrottle.UNLIMITED;
+
   /**
    * Initializes DiskManager for defined instance.
    *
@@ -208,6 +422,7 @@ class DiskManager {
               final String set_name) throws Exception {
     this.conf = conf;
     this.log = Logger.getLogger("etl." + techPack + "." + set_type + "." + set_name + ".diskManager");
+    this.stats = DiskManagerStats.forAction("DiskManager", techPack, set_type, set_name, log);
   }
 
   /**
@@ -259,15 +474,30 @@ class DiskManager {
       deleteEmptyDirs = true;
     }
 
+    if (PreviewReport.isSet(conf, "diskManager.dir.preview")) {
+      preview = new PreviewReport();
+      // Latency of the previous run, counters are reset when this one starts
+      if (stats.getUnlinkCount() > 0) {
+        preview.setUnlinkMicros(stats.getUnlinkMeanMicros());
+      }
+      log.info("Preview mode, no files are changed");
+    }
+
+    throttle = IoThrottle.create(parseLong("diskManager.dir.throttleReadMBs"),
+      parseLong("diskManager.dir.throttleWriteMBs"), parseLong("diskManager.dir.throttleOpsPerSecond"));
+
     // Execute parameters handled
 
+    stats.start();
+
     try {
 
       log.info("Managing directory " + inDir);
 
       if (archiveMode == NOT_ARCHIVED) {
         final MovingFileFilter mff = new MovingFileFilter(conf, log);
-        recurseDirectory(inDir, 0, mff);
+        share(mff);
+        walk(inDir, mff);
 
         log.info("Successfully managed " + mff.getFiles() + "/" + mff.getTotalFiles() + " files (" + mff.getBytes()
           + "B) in " + (System.currentTimeMillis() - execstart) + " ms");
@@ -279,28 +509,26 @@ class DiskManager {
 
           final int numMountPoints = CommonUtils.getNumOfDirectories(log);
           zff = new ZippingFileFilter(conf, log);
+          share(zff);
           if (numMountPoints > 0) {
             log.finest("Number of mount points is: " + numMountPoints
               + ". Expanding path");
             final List<File> expandedFiles = expandEtlPathWithMountPoints(numMountPoints);
             log.finest("Expanded File list is: " + expandedFiles);
-            for (File file : expandedFiles) {
-              log.finest("Sending file : "
-                + file.getAbsolutePath() + " for zipping");
-              sendFilesForZipping(file, zff);
-
-            }
+            handleMountPoints(expandedFiles, zff);
 
           } else {
             log.finest("Single Directory Structure detected for zipping. No need to expand mount points.");
             sendFilesForZipping(inDir, zff);
 
           }
+          zff.close();
 
         } else {
           // Normal behaviour
           zff = new ZippingFileFilter(conf, log);
-          recurseDirectory(inDir, 0, zff);
+          share(zff);
+          walk(inDir, zff);
           zff.close();
 
         }
@@ -309,6 +537,7 @@ class DiskManager {
           + "B) in " + (System.currentTimeMillis() - execstart) + " ms");
       } else if (archiveMode == DELETED) {
         DeletingFileFilter dff = new DeletingFileFilter(conf, log);
+        share(dff);
 
         /**** Check if the delete is for failed dirs in $etldata/ ***/
         if (inDir.getAbsolutePath().contains("etldata")) {
@@ -318,10 +547,7 @@ class DiskManager {
             log.finest("Number of mount points is" + numMountPoints + ". Expanding path");
             final List<File> expandedFiles = expandEtlPathWithMountPoints(numMountPoints);
             log.finest("Expanded File list is: " + expandedFiles);
-            for (File file : expandedFiles) {
-              log.finest("Sending file : " + file.getAbsolutePath() + " for deletion");
-              sendFilesForDeletion(file, dff);
-            }
+            handleMountPoints(expandedFiles, dff);
 
           } else {
             log.finest("Single Directory Structure detected. No need to expand mount points.");
@@ -333,24 +559,242 @@ class DiskManager {
 
         } else{
           // normal behaviour
-       		Path dir = FileSystems.getDefault().getPath(inDir.getAbsolutePath());
-       		recurseDeleteFiles(dir, dff);
+          Path dir = FileSystems.getDefault().getPath(inDir.getAbsolutePath());
+          final long parallelism = dff.parsePropertyAsLong(conf.getProperty("diskManager.dir.deleteParallelism", "1"),
+              "diskManager.dir.deleteParallelism");
+          final long watchMillis = watchMillis(dff);
+          if (watchMillis > 0 && preview == null) {
+            watch(inDir, Integer.MAX_VALUE, dff, watchMillis);
+          } else if (parallelism > 1) {
+            final int threads = (int) Math.min(parallelism, ParallelTreeDeleter.MAX_PARALLELISM);
+            final long minParallelism = dff.parsePropertyAsLong(conf.getProperty("diskManager.dir.minDeleteParallelism",
+                String.valueOf(threads)), "diskManager.dir.minDeleteParallelism");
+            if (minParallelism < threads) {
+              final long targetMicros = dff.parsePropertyAsLong(conf.getProperty(
+                  "diskManager.dir.deleteLatencyMicros", "0"), "diskManager.dir.deleteLatencyMicros");
+              final ConcurrencyLimiter limiter = new ConcurrencyLimiter((int) Math.max(1, minParallelism), threads,
+                  targetMicros * 1000L);
+              new ParallelTreeDeleter(dff, log, threads, limiter).delete(dir);
+              log.info(limiter.summary());
+            } else {
+              new ParallelTreeDeleter(dff, log, threads).delete(dir);
+            }
+          } else {
+            recurseDeleteFiles(dir, dff);
+          }
         	
         	log.info("Successfully managed " + dff.getFiles() + "/" + dff.getTotalFiles() + " files in "
       	          + (System.currentTimeMillis() - execstart) + " ms");
 		  }
+      } else if (archiveMode == WATERMARK) {
+        final EvictingFileFilter eff = new EvictingFileFilter(conf, log);
+        share(eff);
+        eff.evict(inDir.toPath(), new DirectoryWalker(Integer.MAX_VALUE, deleteEmptyDirs, log));
+
+        log.info("Successfully managed " + eff.getFiles() + "/" + eff.getTotalFiles() + " files (" + eff.getFreed()
+          + "B freed) in " + (System.currentTimeMillis() - execstart) + " ms");
+      } else if (archiveMode == QUOTA) {
+        final QuotaFileFilter qff = new QuotaFileFilter(conf, log);
+        share(qff);
+        new DirectoryWalker(maxDepth, deleteEmptyDirs, log).walk(inDir.toPath(), qff);
+
+        log.info("Successfully managed " + qff.getFiles() + "/" + qff.getTotalFiles() + " files (" + qff.getFreed()
+          + "B freed) in " + (System.currentTimeMillis() - execstart) + " ms");
+      } else if (archiveMode == RULES) {
+        final RuleFileFilter rff = new RuleFileFilter(conf, log);
+        share(rff);
+        try {
+          new DirectoryWalker(maxDepth, deleteEmptyDirs, log).walk(inDir.toPath(), rff);
+        } finally {
+          rff.close();
+        }
+
+        log.info("Successfully managed " + rff.getFiles() + "/" + rff.getTotalFiles() + " files (" + rff.getBytes()
+          + "B) in " + (System.currentTimeMillis() - execstart) + " ms");
       } else {
         throw new Exception("Unknown archive mode " + archiveMode);
       }
 
+      if (preview != null) {
+        log.info(preview.summary());
+      }
+      if (throttle.isLimited()) {
+        log.info("Throttled for " + throttle.getWaitMillis() + " ms");
+      }
+
     } catch (Exception e) {
       log.log(Level.WARNING, "Manage " + inDir + " failed in " + (System.currentTimeMillis() - execstart) + " ms", e);
       throw e;
+    } finally {
+      stats.stop();
     }
 
   }
 
 
+  /**
+   * Sets live counters, preview report and throttle of the run to filter.
+   */
+  private void share(final DiskManagerFileFilter filter) {
+    filter.setStats(stats);
+    filter.setPreview(preview);
+    filter.setThrottle(throttle);
+  }
+
+  /**
+   * Returns value of key, 0 if not set.
+   */
+  private long parseLong(final String key) throws Exception {
+    final String value = conf.getProperty(key, "0").trim();
+    try {
+      return value.length() > 0 ? Long.parseLong(value) : 0L;
+    } catch (NumberFormatException e) {
+      throw new Exception("Parameter " + key.substring(key.lastIndexOf('.') + 1) + " is invalid: " + value);
+    }
+  }
+
+  /**
+   * Handles failed directories of etldata mount points. Mount points on the
+   * same device are handled one after another, devices in parallel by
+   * mountParallelism workers. Each worker has a filter of its own whose counts
+   * are added into filter when the worker is done.
+   *
+   * @param mounts mount points in etldata_
+   * @param filter ZippingFileFilter or DeletingFileFilter of the action
+   */
+  void handleMountPoints(final List<File> mounts, final DiskManagerFileFilter filter) throws Exception {
+
+    final Map<Object, List<File>> devices = new LinkedHashMap<Object, List<File>>();
+    for (File mount : mounts) {
+      final Object device = device(mount);
+      List<File> group = devices.get(device);
+      if (group == null) {
+        group = new ArrayList<File>();
+        devices.put(device, group);
+      }
+      group.add(mount);
+    }
+
+    int workers = devices.size();
+    final long parallelism = filter.parsePropertyAsLong(conf.getProperty("diskManager.dir.mountParallelism", "0"),
+      "diskManager.dir.mountParallelism");
+    if (parallelism > 0 && parallelism < workers) {
+      workers = (int) parallelism;
+    }
+
+    log.fine(mounts.size() + " mount points on " + devices.size() + " devices, " + workers + " workers");
+
+    if (workers <= 1) {
+      for (File mount : mounts) {
+        handleMountPoint(mount, filter);
+      }
+      return;
+    }
+
+    final ExecutorService pool = Executors.newFixedThreadPool(workers, new ArchivingThreadFactory("DiskManager-mount"));
+    final List<DiskManagerFileFilter> filters = new ArrayList<DiskManagerFileFilter>();
+    final List<Future<?>> results = new ArrayList<Future<?>>();
+    try {
+      // Every filter is created before the first task starts, zipping filter
+      // recovers journals of its prefix and must not see ones of a worker
+      for (int i = 0; i < devices.size(); i++) {
+        final DiskManagerFileFilter worker;
+        try {
+          if (filter instanceof ZippingFileFilter) {
+            worker = new ZippingFileFilter(conf, log);
+          } else {
+            worker = new DeletingFileFilter(conf, log);
+          }
+        } catch (Exception e) {
+          for (DiskManagerFileFilter created : filters) {
+            if (created instanceof ZippingFileFilter) {
+              ((ZippingFileFilter) created).close();
+            }
+          }
+          filters.clear();
+          throw e;
+        }
+        share(worker);
+        filters.add(worker);
+      }
+
+      int i = 0;
+      for (final List<File> group : devices.values()) {
+        final DiskManagerFileFilter worker = filters.get(i++);
+        results.add(pool.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            try {
+              for (File mount : group) {
+                handleMountPoint(mount, worker);
+              }
+            } finally {
+              if (worker instanceof ZippingFileFilter) {
+                ((ZippingFileFilter) worker).close();
+              }
+            }
+            return null;
+          }
+        }));
+      }
+
+      Exception failure = null;
+      for (Future<?> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+
+    } finally {
+      pool.shutdownNow();
+      for (DiskManagerFileFilter worker : filters) {
+        // Not addCounts, live counters were updated by the worker
+        filter.totalfiles += worker.getTotalFiles();
+        filter.files += worker.getFiles();
+        filter.bytes += worker.getBytes();
+      }
+    }
+  }
+
+  /**
+   * Returns device of mount point, the mount point itself if it cannot be
+   * resolved.
+   */
+  Object device(final File mount) {
+    try {
+      return Files.getFileStore(mount.toPath());
+    } catch (IOException e) {
+      log.log(Level.FINE, "Unable to resolve device of " + mount, e);
+      return mount;
+    }
+  }
+
+  /**
+   * Handles failed directories of one mount point and logs its counts.
+   */
+  private void handleMountPoint(final File mount, final DiskManagerFileFilter filter) {
+    final long start = System.currentTimeMillis();
+    final int total = filter.getTotalFiles();
+    final int files = filter.getFiles();
+
+    if (filter instanceof ZippingFileFilter) {
+      log.finest("Sending file : " + mount.getAbsolutePath() + " for zipping");
+      sendFilesForZipping(mount, (ZippingFileFilter) filter);
+    } else {
+      log.finest("Sending file : " + mount.getAbsolutePath() + " for deletion");
+      sendFilesForDeletion(mount, (DeletingFileFilter) filter);
+    }
+
+    log.fine("Mount point " + mount + " managed " + (filter.getFiles() - files) + "/"
+      + (filter.getTotalFiles() - total) + " files in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
   /**
    * *
    * check Files For Deletion
@@ -359,7 +803,7 @@ class DiskManager {
    * @param dff   Filter to get files to delete
    */
 
-  private void sendFilesForDeletion(File inDir, DeletingFileFilter dff) {
+  void sendFilesForDeletion(File inDir, DeletingFileFilter dff) {
     File[] files = inDir.listFiles();
 
     for (File dcDir : files) {
@@ -403,7 +847,7 @@ class DiskManager {
    * @param zff    file file filter
    */
 
-  private void sendFilesForZipping(File inDir, ZippingFileFilter zff) {
+  void sendFilesForZipping(File inDir, ZippingFileFilter zff) {
     File[] files = inDir.listFiles();
 
     for (File dcDir : files) {
@@ -434,7 +878,7 @@ class DiskManager {
         //Will check ZippingFileFilter::accept()
         //Results stored in the file filter
         //noinspection ResultOfMethodCallIgnored
-        inDir.listFiles(zff);
+        new DirectoryWalker(0, false, log).walk(inDir.toPath(), zff);
         //zff.close();
       } else {
         log.finest("No failed directory found in:" + inDir.getAbsolutePath());
@@ -475,43 +919,64 @@ class DiskManager {
 
 
   /**
-   * Recurse one directory.
+   * Walks directory tree down to directoryDepth.
    */
-  private void recurseDirectory(final File filedir, final int depth, final FileFilter filter) {
-    if (filedir == null) {
-      log.fine("File is null!");
-    } else if (!filedir.exists()) {
-      log.fine("File " + filedir.getPath() + " does not exist!");
-    } else if (depth <= maxDepth) {
-      log.fine("Managing subdirectory " + filedir.getPath());
-      final File[] subdirs = filedir.listFiles(filter);
-      if (subdirs == null) {
-        log.warning("Listing for " + filedir.getPath() + " returned null, ignoring!");
+  private void walk(final File dir, final DiskManagerFileFilter filter) throws Exception {
+
+    final long watchMillis = watchMillis(filter);
+    if (watchMillis > 0 && preview == null) {
+      watch(dir, maxDepth, filter, watchMillis);
+      return;
+    }
+
+    ScanIndex index = null;
+    final String indexFile = conf.getProperty("diskManager.dir.scanIndex");
+    if (indexFile != null && indexFile.trim().length() > 0) {
+      if (filter.getMode() == FILE_SYSTEM_AGE) {
+        index = ScanIndex.load(new File(indexFile.trim()), dir.toPath(), filter.fileAge, filter.getFileMask(), maxDepth,
+          log);
       } else {
-        if (deleteEmptyDirs) {
-          log.fine("Checking directory " + filedir.getPath() + " for deletion");
-          final String[] containedFiles = filedir.list();
-          if (containedFiles == null) {
-            log.log(Level.WARNING, "Empty listing failed, null value returned for " + filedir.getPath());
-          } else if (containedFiles.length == 0) {
-            if (filedir.delete()) {
-              log.info("Directory " + filedir.getPath() + " deleted");
-            } else {
-              log.warning("Cannot delete directory " + filedir.getPath() + ", still contains " +
-                containedFiles.length + " files?");
-            }
-          } else {
-            log.finer("Directory " + filedir.getPath() + " is not empty?");
-          }
-        }
-        log.fine("Subdirectory " + filedir.getPath() + " managed");
-        for (File subdir : subdirs) {
-          recurseDirectory(subdir, depth + 1, filter);
-        }
+        log.info("Parameter scanIndex is used only with fileAgeMode " + FILE_SYSTEM_AGE + ", ignored");
       }
     }
+
+    new DirectoryWalker(maxDepth, deleteEmptyDirs, index, log).walk(dir.toPath(), filter);
+
+    if (index != null) {
+      log.info("Scan index skipped " + index.getSkipped() + " unchanged directories, " + index.size() + " indexed");
+      if (preview != null) {
+        return;
+      }
+      try {
+        index.save();
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Unable to save scan index " + indexFile, e);
+      }
+    }
+  }
+
+  /**
+   * Returns watchMinutes in milliseconds, 0 if files are not watched.
+   */
+  private long watchMillis(final DiskManagerFileFilter filter) throws Exception {
+    final long minutes = filter.parsePropertyAsLong(conf.getProperty("diskManager.dir.watchMinutes", "0"),
+      "diskManager.dir.watchMinutes");
+    return minutes > 0 ? minutes * 60000L : 0L;
   }
-  
+
+  /**
+   * Handles files of directory tree as they get old enough for watchMillis.
+   */
+  private void watch(final File dir, final int depth, final DiskManagerFileFilter filter, final long watchMillis)
+    throws Exception {
+    final long reconcileMinutes = filter.parsePropertyAsLong(conf.getProperty("diskManager.dir.reconcileMinutes", "60"),
+      "diskManager.dir.reconcileMinutes");
+    if (reconcileMinutes <= 0) {
+      throw new Exception("Parameter reconcileMinutes must be positive");
+    }
+    new ExpiryDaemon(filter, dir.toPath(), depth, reconcileMinutes * 60000L, log).run(watchMillis);
+  }
+
   public void recurseDeleteFiles(Path filedir, DeletingFileFilter filter) throws IOException{
 	DirectoryStream<Path> stream = null;
 	File file = null;
@@ -535,9 +1000,12 @@ class DiskManager {
 					if(filter.ageCheck(file) > 0 ){
 						log.finest("Deleting file :" + file );
 						if(!file.getName().equals(".tagfile")) { // HP49595, diskmanager should skip .tagfile(used by NAS)deletion
-							boolean suc = file.delete(); 
+							boolean suc = filter.unlink(file); 
 							if(!suc){
 								log.finest("Cannot delete file " + file);									}
+							else {
+								filter.stats.deleted();
+							}
 							}	
 						}	
 					} catch (Exception e) {
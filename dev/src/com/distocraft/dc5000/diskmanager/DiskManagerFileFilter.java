@@ -2,9 +2,13 @@ package com.distocraft.dc5000.diskmanager;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.text.SimpleDateFormat;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -31,13 +35,14 @@ public abstract class DiskManagerFileFilter implements FileFilter {
 
   private Pattern timePattern = null;
 
-  private SimpleDateFormat dateFormat = null;
+  private TimestampCodec dateFormat = null;
 
-  private Calendar calendar = null;
+  // Reused for every file name, ageCheck is called by one thread at a time
+  private Matcher timeMatcher = null;
 
   private int currentyear = 0;
   
-  private Pattern fileMask = null;
+  private FileMaskMatcher fileMask = null;
 
   // This is fixed so that if zip file name, if start and stop times
   // are used in name, would be as consistent as possible
@@ -51,6 +56,18 @@ public abstract class DiskManagerFileFilter implements FileFilter {
   protected int files = 0;
   
   long bytes = 0;
+
+  // Live counters published through JMX, unregistered unless set by DiskManager
+  DiskManagerStats stats = new DiskManagerStats();
+
+  // What would be done in preview mode, null if files are handled for real
+  PreviewReport preview = null;
+
+  // Limits I/O of the run, shared by its filters
+  IoThrottle throttle = IoThrottle.UNLIMITED;
+
+  // Files removed from the directories registered by DirectoryWalker
+  private final ConcurrentHashMap<File, AtomicInteger> removals = new ConcurrentHashMap<File, AtomicInteger>();
   
   DiskManagerFileFilter(Properties conf) throws Exception {
 
@@ -60,6 +77,10 @@ public abstract class DiskManagerFileFilter implements FileFilter {
 
     fileAge = (((fileAgeDay * 24L) + fileAgeHour) * 3600000L) + (fileAgeMinutes * 60000L);
 
+    if (PreviewReport.isSet(conf, "diskManager.dir.preview")) {
+      preview = new PreviewReport();
+    }
+
     mode = Integer.parseInt(conf.getProperty("diskManager.dir.fileAgeMode", String.valueOf(FILE_SYSTEM_AGE)));
 
     if (mode == FILENAME_AGE) {
@@ -71,6 +92,7 @@ public abstract class DiskManagerFileFilter implements FileFilter {
 
       try {
         timePattern = Pattern.compile(conf.getProperty("diskManager.dir.timeMask"));
+        timeMatcher = timePattern.matcher("");
       } catch (Exception e) {
         throw new Exception("TimeMask parameter \"" + timePattern + "\" is invalid");
       }
@@ -82,12 +104,12 @@ public abstract class DiskManagerFileFilter implements FileFilter {
       }
 
       try {
-        dateFormat = new SimpleDateFormat(sdf);
+        dateFormat = TimestampCodec.compile(sdf);
       } catch (Exception e) {
         throw new Exception("Dateformat parameter \"" + dateFormat + "\" is invalid");
       }
 
-      calendar = Calendar.getInstance();
+      final Calendar calendar = Calendar.getInstance();
       calendar.setTimeInMillis(start);
 
       currentyear = calendar.get(Calendar.YEAR);
@@ -98,15 +120,25 @@ public abstract class DiskManagerFileFilter implements FileFilter {
       throw new Exception("Unknown FileAgeMode " + mode);
     }
     
+    // fileMask and fileMask.1, fileMask.2, ... are all used
+    final List<String> masks = new ArrayList<String>();
     String sfileMask = conf.getProperty("diskManager.dir.fileMask");
-    if (sfileMask == null || sfileMask.length() <= 0) {
+    if (sfileMask != null && sfileMask.length() > 0) {
+      masks.add(sfileMask);
+    }
+    for (int i = 1; (sfileMask = conf.getProperty("diskManager.dir.fileMask." + i)) != null; i++) {
+      if (sfileMask.length() > 0) {
+        masks.add(sfileMask);
+      }
+    }
+    if (masks.isEmpty()) {
       throw new Exception("Parameter fileMask not defined");
     }
   
     try {
-      fileMask = Pattern.compile(sfileMask);
+      fileMask = FileMaskMatcher.compile(masks);
     } catch (Exception e) {
-      throw new Exception("FileMask parameter \"" + timePattern + "\" is invalid");
+      throw new Exception("FileMask parameter \"" + masks + "\" is invalid");
     }
   
   }
@@ -117,7 +149,43 @@ public abstract class DiskManagerFileFilter implements FileFilter {
 
   @Override
   public abstract boolean accept(File f);
+
+  /**
+   * Handles entry listed by DirectoryWalker, attributes have been read by the
+   * walker. Returns true for directories to be walked.
+   */
+  boolean accept(final File f, final BasicFileAttributes attrs) {
+    return accept(f);
+  }
+
+  /**
+   * Called by DirectoryWalker when all entries of directory have been handled,
+   * before its subdirectories are walked.
+   */
+  void directoryDone(final File dir) {
+  }
   
+  /**
+   * Returns fileAgeMode.
+   */
+  int getMode() {
+    return mode;
+  }
+
+  /**
+   * Returns fileMask patterns, separated by newlines if there are several.
+   */
+  String getFileMask() {
+    return fileMask.toString();
+  }
+
+  /**
+   * Returns true if file name matches any fileMask.
+   */
+  boolean matchesMask(final String name) {
+    return fileMask.matches(name);
+  }
+
   /**
    * Returns total amount of files checked.
    */
@@ -133,65 +201,130 @@ public abstract class DiskManagerFileFilter implements FileFilter {
   }
   
   /**
-   * Returns total number of bytes written while moving or zipping.
+   * Adds counts of files checked and handled outside ageCheck, for example by
+   * parallel tasks.
    */
-  long getBytes() {
-    return bytes;
+  synchronized void addCounts(final int checked, final int handled) {
+    totalfiles += checked;
+    files += handled;
+    stats.scanned(checked);
+    stats.matched(handled);
   }
 
   /**
-   * Checks if file date. Returns date of file or -1 if not to be archived.
+   * Sets live counters updated by this filter.
    */
-  long ageCheck(File file) throws Exception {
-    
-    totalfiles++;
-    
-    long filemodtime = -1;
-    
-    Matcher m = fileMask.matcher(file.getName());
+  void setStats(final DiskManagerStats stats) {
+    this.stats = stats;
+  }
 
+  /**
+   * Sets report of a run in preview mode shared by the filters of the run.
+   */
+  void setPreview(final PreviewReport preview) {
+    this.preview = preview;
+  }
 
+  /**
+   * Sets throttle shared by the filters of the run.
+   */
+  void setThrottle(final IoThrottle throttle) {
+    this.throttle = throttle;
+  }
 
-    if (!m.matches()){
-      return filemodtime;
+  /**
+   * Deletes file recording the latency of the unlink. In preview mode the file
+   * is only recorded in the report.
+   */
+  final boolean unlink(final File file) {
+    if (preview != null) {
+      preview.delete(file.length());
+      removed(file);
+      return true;
     }
+    throttle.op();
+    final long begin = System.nanoTime();
+    final boolean deleted = file.delete();
+    stats.unlink(System.nanoTime() - begin);
+    if (deleted) {
+      removed(file);
+    }
+    return deleted;
+  }
 
-    if (mode == FILE_SYSTEM_AGE) { // check from FS
-
-      filemodtime = file.lastModified();
+  /**
+   * Counts file removed from its directory if the directory is registered by
+   * countRemovals. In preview mode counts file that would be removed.
+   */
+  final void removed(final File file) {
+    final AtomicInteger count = removals.get(file.getParentFile());
+    if (count != null) {
+      count.incrementAndGet();
+    }
+  }
 
-    } else if (mode == FILENAME_AGE) { // parse from fileName
+  /**
+   * Starts counting files removed from dir.
+   */
+  void countRemovals(final File dir) {
+    removals.put(dir, new AtomicInteger(0));
+  }
 
-      Matcher matcher = timePattern.matcher(file.getName());
-      matcher.find();
-      String time = matcher.group(1);
+  /**
+   * Stops counting files removed from dir, returns the number removed since
+   * countRemovals.
+   */
+  int takeRemovals(final File dir) {
+    final AtomicInteger count = removals.remove(dir);
+    return count == null ? 0 : count.get();
+  }
 
-      calendar.setTime(dateFormat.parse(time));
+  /**
+   * Waits until files handed to other threads have been handled, so that
+   * their removals are counted. Nothing to wait for if files are handled by
+   * the calling thread.
+   */
+  void flush() {
+  }
 
-      // if files year is 1970 (eg. no date is found from datetime) insert
-      // current year
-      if (calendar.get(Calendar.YEAR) == 1970) {
-        calendar.set(Calendar.YEAR, currentyear);
+  /**
+   * Returns total number of bytes written while moving or zipping.
+   */
+  long getBytes() {
+    return bytes;
+  }
 
-        // if given date is from future, reduce year by 1 ...
-        if (calendar.getTimeInMillis() > start){
-          calendar.add(Calendar.YEAR, -1);
-		}
+  /**
+   * Checks if file date. Returns date of file or -1 if not to be archived.
+   */
+  long ageCheck(File file) throws Exception {
+    return ageCheck(file, null);
+  }
 
-      }
+  /**
+   * Checks file date using attributes read by DirectoryWalker. File system is
+   * asked for modification time only if attrs is null.
+   */
+  long ageCheck(final File file, final BasicFileAttributes attrs) throws Exception {
 
-      filemodtime = calendar.getTimeInMillis();
+    totalfiles++;
+    stats.scanned();
 
+    if (!fileMask.matches(file.getName())) {
+      return -1;
     }
 
+    final long filemodtime = fileTime(file, attrs);
 
     if (filemodtime==0){
       // 0L if the file does not exist (if a symbolic link exists but real files does not).
       // We want to remove the file in this case. 
       files++;
+      stats.matched(1);
       return 1L;      
     } else if ((start - filemodtime) > fileAge) {
       files++;
+      stats.matched(1);
       return filemodtime;
     } else {
       return -1;
@@ -199,6 +332,57 @@ public abstract class DiskManagerFileFilter implements FileFilter {
       
   }
 
+  /**
+   * Returns the time age of file is counted from: modification time or time
+   * parsed from file name according to fileAgeMode. File must match fileMask.
+   */
+  long fileTime(final File file, final BasicFileAttributes attrs) throws Exception {
+
+    long filemodtime = -1;
+
+    if (mode == FILE_SYSTEM_AGE) { // check from FS
+
+      if (attrs == null) {
+        final long begin = System.nanoTime();
+        filemodtime = file.lastModified();
+        stats.stat(System.nanoTime() - begin);
+      } else {
+        filemodtime = attrs.lastModifiedTime().toMillis();
+      }
+
+    } else if (mode == FILENAME_AGE) { // parse from fileName
+
+      final String name = file.getName();
+      final Matcher matcher = timeMatcher.reset(name);
+      if (!matcher.find()) {
+        throw new IllegalStateException("No match found");
+      }
+
+      // if no year is in the timestamp insert current year
+      filemodtime = dateFormat.parse(name, matcher.start(1), matcher.end(1), currentyear);
+
+      // if given date is from future, reduce year by 1 ...
+      if (!dateFormat.hasYear() && filemodtime > start) {
+        filemodtime = dateFormat.parse(name, matcher.start(1), matcher.end(1), currentyear - 1);
+      }
+
+    }
+
+    return filemodtime;
+  }
+
+  /**
+   * Returns the time file becomes old enough to be handled, 0 if it already is
+   * regardless of age and -1 if it is never handled.
+   */
+  long expiryTime(final File file, final BasicFileAttributes attrs) throws Exception {
+    if (!fileMask.matches(file.getName())) {
+      return -1;
+    }
+    final long filemodtime = fileTime(file, attrs);
+    return filemodtime == 0 ? 0 : filemodtime + fileAge + 1;
+  }
+
   /**
    * Get config setting from action_contents as a long.
    * 
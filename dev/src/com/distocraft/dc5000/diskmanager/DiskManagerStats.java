@@ -0,0 +1,272 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live metrics of one DiskManager action, registered to the platform MBean
+ * server as
+ * com.distocraft.dc5000.diskmanager:type=DiskManager,techpack=..,setType=..,setName=..
+ *
+ * Filters, walkers and archive writers update the counters while the action
+ * runs. Filters not created by DiskManager get an unregistered instance.
+ */
+public class DiskManagerStats implements DiskManagerStatsMBean {
+
+  static final String DOMAIN = "com.distocraft.dc5000.diskmanager";
+
+  // Registered instances by object name, reused by later runs of the action
+  private static final Map<String, DiskManagerStats> REGISTERED = new HashMap<String, DiskManagerStats>();
+
+  private final AtomicLong scanned = new AtomicLong();
+
+  private final AtomicLong matched = new AtomicLong();
+
+  private final AtomicLong archived = new AtomicLong();
+
+  private final AtomicLong moved = new AtomicLong();
+
+  private final AtomicLong deleted = new AtomicLong();
+
+  private final AtomicLong bytes = new AtomicLong();
+
+  private final LatencyHistogram stat = new LatencyHistogram();
+
+  private final LatencyHistogram compress = new LatencyHistogram();
+
+  private final LatencyHistogram unlink = new LatencyHistogram();
+
+  private volatile boolean running = false;
+
+  private volatile long runStart = 0L;
+
+  private volatile long runEnd = 0L;
+
+  private volatile long progress = 0L;
+
+  private volatile String currentDirectory = "";
+
+  /**
+   * Returns the registered instance of an action, registering it on first
+   * call. If registration fails the returned instance is only not visible
+   * through JMX.
+   */
+  static DiskManagerStats forAction(final String type, final String techPack, final String setType,
+      final String setName, final Logger log) {
+    final String name = DOMAIN + ":type=" + type + ",techpack=" + value(techPack) + ",setType=" + value(setType)
+        + ",setName=" + value(setName);
+    synchronized (REGISTERED) {
+      DiskManagerStats stats = REGISTERED.get(name);
+      if (stats == null) {
+        stats = new DiskManagerStats();
+        try {
+          final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+          final ObjectName objectName = new ObjectName(name);
+          if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+          }
+          server.registerMBean(stats, objectName);
+        } catch (Exception e) {
+          log.log(Level.INFO, "Unable to register MBean " + name, e);
+        }
+        REGISTERED.put(name, stats);
+      }
+      return stats;
+    }
+  }
+
+  private static String value(final String value) {
+    final String v = value == null ? "" : value;
+    for (int i = 0; i < v.length(); i++) {
+      if (",=:\"*?\n".indexOf(v.charAt(i)) >= 0) {
+        return ObjectName.quote(v);
+      }
+    }
+    return v;
+  }
+
+  /**
+   * Resets counters at start of a run.
+   */
+  void start() {
+    scanned.set(0L);
+    matched.set(0L);
+    archived.set(0L);
+    moved.set(0L);
+    deleted.set(0L);
+    bytes.set(0L);
+    stat.reset();
+    compress.reset();
+    unlink.reset();
+    runStart = System.currentTimeMillis();
+    runEnd = 0L;
+    progress = runStart;
+    currentDirectory = "";
+    running = true;
+  }
+
+  void stop() {
+    runEnd = System.currentTimeMillis();
+    running = false;
+    currentDirectory = "";
+  }
+
+  void directory(final Object dir) {
+    currentDirectory = String.valueOf(dir);
+  }
+
+  void scanned() {
+    scanned.incrementAndGet();
+    progress = System.currentTimeMillis();
+  }
+
+  void scanned(final int count) {
+    scanned.addAndGet(count);
+    progress = System.currentTimeMillis();
+  }
+
+  void matched(final int count) {
+    matched.addAndGet(count);
+  }
+
+  void archived(final long size) {
+    archived.incrementAndGet();
+    bytes.addAndGet(size);
+  }
+
+  void moved(final long size) {
+    moved.incrementAndGet();
+    bytes.addAndGet(size);
+  }
+
+  void deleted() {
+    deleted.incrementAndGet();
+  }
+
+  void stat(final long nanos) {
+    stat.record(nanos);
+  }
+
+  void compress(final long nanos) {
+    compress.record(nanos);
+  }
+
+  void unlink(final long nanos) {
+    unlink.record(nanos);
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  public long getRunStartTime() {
+    return runStart;
+  }
+
+  public long getRunMillis() {
+    if (runStart == 0L) {
+      return 0L;
+    }
+    return (running ? System.currentTimeMillis() : runEnd) - runStart;
+  }
+
+  public long getMillisSinceProgress() {
+    return running ? System.currentTimeMillis() - progress : 0L;
+  }
+
+  public String getCurrentDirectory() {
+    return currentDirectory;
+  }
+
+  public long getFilesScanned() {
+    return scanned.get();
+  }
+
+  public long getFilesMatched() {
+    return matched.get();
+  }
+
+  public long getFilesArchived() {
+    return archived.get();
+  }
+
+  public long getFilesMoved() {
+    return moved.get();
+  }
+
+  public long getFilesDeleted() {
+    return deleted.get();
+  }
+
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  public long getStatCount() {
+    return stat.getCount();
+  }
+
+  public long getStatMeanMicros() {
+    return stat.getMeanMicros();
+  }
+
+  public long getStatMaxMicros() {
+    return stat.getMaxMicros();
+  }
+
+  public long getStat99thPercentileMicros() {
+    return stat.getPercentileMicros(0.99);
+  }
+
+  public long[] getStatHistogram() {
+    return stat.getBuckets();
+  }
+
+  public long getCompressCount() {
+    return compress.getCount();
+  }
+
+  public long getCompressMeanMicros() {
+    return compress.getMeanMicros();
+  }
+
+  public long getCompressMaxMicros() {
+    return compress.getMaxMicros();
+  }
+
+  public long getCompress99thPercentileMicros() {
+    return compress.getPercentileMicros(0.99);
+  }
+
+  public long[] getCompressHistogram() {
+    return compress.getBuckets();
+  }
+
+  public long getUnlinkCount() {
+    return unlink.getCount();
+  }
+
+  public long getUnlinkMeanMicros() {
+    return unlink.getMeanMicros();
+  }
+
+  public long getUnlinkMaxMicros() {
+    return unlink.getMaxMicros();
+  }
+
+  public long getUnlink99thPercentileMicros() {
+    return unlink.getPercentileMicros(0.99);
+  }
+
+  public long[] getUnlinkHistogram() {
+    return unlink.getBuckets();
+  }
+
+}
@@ -0,0 +1,65 @@
+package com.distocraft.dc5000.diskmanager;
+
+/**
+ * Live counters of a DiskManager action. Counters are reset when a run
+ * starts and updated while it runs. Latencies are in microseconds,
+ * histograms have power of two buckets (see LatencyHistogram).
+ */
+public interface DiskManagerStatsMBean {
+
+  boolean isRunning();
+
+  long getRunStartTime();
+
+  long getRunMillis();
+
+  /**
+   * Milliseconds since a file was last checked, shows stalled runs.
+   */
+  long getMillisSinceProgress();
+
+  String getCurrentDirectory();
+
+  long getFilesScanned();
+
+  long getFilesMatched();
+
+  long getFilesArchived();
+
+  long getFilesMoved();
+
+  long getFilesDeleted();
+
+  long getBytes();
+
+  long getStatCount();
+
+  long getStatMeanMicros();
+
+  long getStatMaxMicros();
+
+  long getStat99thPercentileMicros();
+
+  long[] getStatHistogram();
+
+  long getCompressCount();
+
+  long getCompressMeanMicros();
+
+  long getCompressMaxMicros();
+
+  long getCompress99thPercentileMicros();
+
+  long[] getCompressHistogram();
+
+  long getUnlinkCount();
+
+  long getUnlinkMeanMicros();
+
+  long getUnlinkMaxMicros();
+
+  long getUnlink99thPercentileMicros();
+
+  long[] getUnlinkHistogram();
+
+}
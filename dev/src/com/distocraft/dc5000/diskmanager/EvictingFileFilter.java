@@ -0,0 +1,244 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * File filter that frees disk space when usage of the file system goes above
+ * highWatermarkPercent. The oldest files matching fileMask anywhere in the
+ * tree are deleted until usage is at lowWatermarkPercent, regardless of
+ * fileAge.
+ *
+ * While the tree is walked the oldest files are kept in a heap with the newest
+ * of them on top. The newest are dropped as long as the rest are enough to
+ * free the space needed, so the heap holds at most the files to be deleted
+ * and never more than evictionCandidates files. Candidates are then deleted
+ * oldest first. If the space was not freed, for example because the number of
+ * candidates was limited or deleted files are still open, the tree is walked
+ * again.
+ */
+class EvictingFileFilter extends DiskManagerFileFilter {
+
+  // Walks of the tree in one run at most
+  static final int MAX_PASSES = 5;
+
+  private static final Comparator<Candidate> NEWEST_FIRST = new Comparator<Candidate>() {
+
+    @Override
+    public int compare(final Candidate a, final Candidate b) {
+      return a.time > b.time ? -1 : (a.time < b.time ? 1 : 0);
+    }
+  };
+
+  private final Logger log;
+
+  private final long highPercent;
+
+  private final long lowPercent;
+
+  private final int maxCandidates;
+
+  private final PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>(1024, NEWEST_FIRST);
+
+  private long heapBytes = 0L;
+
+  // Bytes to free in current pass
+  private long needed = 0L;
+
+  private long freed = 0L;
+
+  EvictingFileFilter(final Properties conf, final Logger log) throws Exception {
+    super(conf);
+    this.log = log;
+
+    highPercent = parsePropertyAsLong(conf.getProperty("diskManager.dir.highWatermarkPercent", "90"),
+        "diskManager.dir.highWatermarkPercent");
+    lowPercent = parsePropertyAsLong(conf.getProperty("diskManager.dir.lowWatermarkPercent", "80"),
+        "diskManager.dir.lowWatermarkPercent");
+    if (lowPercent < 0 || lowPercent >= highPercent || highPercent > 100) {
+      throw new Exception("Parameters lowWatermarkPercent " + lowPercent + " and highWatermarkPercent " + highPercent
+          + " must be 0 <= low < high <= 100");
+    }
+
+    final long candidates = parsePropertyAsLong(conf.getProperty("diskManager.dir.evictionCandidates", "100000"),
+        "diskManager.dir.evictionCandidates");
+    if (candidates <= 0) {
+      throw new Exception("Parameter evictionCandidates must be positive");
+    }
+    maxCandidates = (int) Math.min(candidates, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Frees space of the file system of root if it is used above the high
+   * watermark.
+   *
+   * @param walker
+   *          walker used to list the tree
+   */
+  void evict(final Path root, final DirectoryWalker walker) throws IOException {
+    for (int pass = 1; pass <= MAX_PASSES; pass++) {
+      // Once started, space is freed until the low watermark is reached
+      final long excess = excess(root, pass == 1 ? highPercent : lowPercent);
+      if (excess <= 0) {
+        if (pass == 1) {
+          log.fine("Usage of " + root + " is below " + highPercent + "%, nothing to evict");
+        }
+        return;
+      }
+
+      log.info("Usage of " + root + " is above " + (pass == 1 ? highPercent : lowPercent) + "%, freeing " + excess
+          + " bytes to get to " + lowPercent + "%");
+      needed = excess;
+      heap.clear();
+      heapBytes = 0L;
+
+      walker.walk(root, this);
+
+      if (deleteCandidates() == 0) {
+        log.warning("No files to evict in " + root + ", " + excess + " bytes could not be freed");
+        return;
+      }
+      if (preview != null) {
+        // Nothing was freed, another pass would find the same files
+        return;
+      }
+    }
+    if (excess(root, lowPercent) > 0) {
+      log.warning("Usage of " + root + " still above " + lowPercent + "% after " + MAX_PASSES + " passes");
+    }
+  }
+
+  /**
+   * Returns bytes to free to get to the low watermark, 0 if usage is not above
+   * the high watermark.
+   */
+  long excess(final Path root) throws IOException {
+    return excess(root, highPercent);
+  }
+
+  private long excess(final Path root, final long percent) throws IOException {
+    final long total = totalSpace(root);
+    final long usable = usableSpace(root);
+    if (total <= 0 || (total - usable) * 100.0 <= percent * (double) total) {
+      return 0L;
+    }
+    return (long) Math.ceil(total * (100 - lowPercent) / 100.0) - usable;
+  }
+
+  long totalSpace(final Path root) throws IOException {
+    return store(root).getTotalSpace();
+  }
+
+  long usableSpace(final Path root) throws IOException {
+    return store(root).getUsableSpace();
+  }
+
+  private FileStore store(final Path root) throws IOException {
+    return Files.getFileStore(root);
+  }
+
+  /**
+   * Returns bytes of deleted files.
+   */
+  long getFreed() {
+    return freed;
+  }
+
+  @Override
+  public boolean accept(final File f) {
+    return accept(f, DirectoryWalker.attributes(f.toPath()));
+  }
+
+  /**
+   * Offers files matching fileMask as candidates. .tagfiles are kept.
+   */
+  @Override
+  boolean accept(final File f, final BasicFileAttributes attrs) {
+    if (attrs.isDirectory()) {
+      return true;
+    }
+    if (!attrs.isRegularFile()) {
+      return false;
+    }
+
+    addCounts(1, 0);
+    // HP49595, diskmanager should skip .tagfile(used by NAS)deletion
+    if (!f.getName().equals(".tagfile") && matchesMask(f.getName())) {
+      offer(new Candidate(f, attrs.lastModifiedTime().toMillis(), attrs.size()));
+    }
+    return false;
+  }
+
+  /**
+   * Adds file to the candidates unless enough older files are already there.
+   */
+  void offer(final Candidate candidate) {
+    final Candidate newest = heap.peek();
+    if (newest != null && candidate.time >= newest.time
+        && (heapBytes >= needed || heap.size() >= maxCandidates)) {
+      return;
+    }
+    heap.add(candidate);
+    heapBytes += candidate.size;
+    while (heap.size() > maxCandidates || (heap.size() > 1 && heapBytes - heap.peek().size >= needed)) {
+      heapBytes -= heap.poll().size;
+    }
+  }
+
+  /**
+   * Deletes candidates oldest first until needed bytes have been freed.
+   * Returns number of files deleted.
+   */
+  private int deleteCandidates() {
+    final Candidate[] candidates = heap.toArray(new Candidate[heap.size()]);
+    heap.clear();
+    heapBytes = 0L;
+    Arrays.sort(candidates, NEWEST_FIRST);
+
+    int deleted = 0;
+    long freedNow = 0L;
+    for (int i = candidates.length - 1; i >= 0 && freedNow < needed; i--) {
+      final Candidate c = candidates[i];
+      log.finest("Evicting file " + c.file + " modified " + c.time);
+      if (unlink(c.file)) {
+        stats.deleted();
+        addCounts(0, 1);
+        freedNow += c.size;
+        deleted++;
+      } else {
+        log.info("Cannot delete file " + c.file);
+      }
+    }
+    freed += freedNow;
+    log.info("Evicted " + deleted + " files, " + freedNow + " bytes");
+    return deleted;
+  }
+
+  /**
+   * File that may be evicted.
+   */
+  static final class Candidate {
+
+    final File file;
+
+    final long time;
+
+    final long size;
+
+    Candidate(final File file, final long time, final long size) {
+      this.file = file;
+      this.time = time;
+      this.size = size;
+    }
+  }
+
+}
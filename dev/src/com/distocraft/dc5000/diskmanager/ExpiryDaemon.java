@@ -0,0 +1,291 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the directory tree for the given time and hands files to the filter
+ * as soon as they are old enough, instead of finding them by walking the tree.
+ *
+ * Directories down to maxDepth are registered with a WatchService. Every new
+ * or modified file is scheduled into a TimingWheel at the time it becomes old
+ * enough (DiskManagerFileFilter.expiryTime) and checked again when that time
+ * comes. The tree is walked at start and every reconcile interval, and after
+ * the WatchService has lost events, so files missed by the watch are handled
+ * by the next walk at the latest.
+ */
+final class ExpiryDaemon {
+
+  /**
+   * Resolution of expiry times.
+   */
+  static final long TICK_MILLIS = 1000L;
+
+  private final DiskManagerFileFilter filter;
+
+  private final Path root;
+
+  private final int maxDepth;
+
+  private final long reconcileMillis;
+
+  private final Logger log;
+
+  private final Map<WatchKey, Watched> keys = new HashMap<WatchKey, Watched>();
+
+  // Expiry time of each scheduled file, wheel entries not matching are stale
+  private final Map<Path, Long> pending = new HashMap<Path, Long>();
+
+  private WatchService watcher;
+
+  private TimingWheel<Path> wheel;
+
+  private int events = 0;
+
+  private int expired = 0;
+
+  private int reconciliations = 0;
+
+  /**
+   * @param maxDepth
+   *          depth of subdirectories watched, 0 watches only the root
+   * @param reconcileMillis
+   *          interval of walks over the whole tree
+   */
+  ExpiryDaemon(final DiskManagerFileFilter filter, final Path root, final int maxDepth, final long reconcileMillis,
+      final Logger log) {
+    this.filter = filter;
+    this.root = root;
+    this.maxDepth = maxDepth;
+    this.reconcileMillis = reconcileMillis;
+    this.log = log;
+  }
+
+  /**
+   * Watches the tree for watchMillis, returns when the time is up or the
+   * thread is interrupted.
+   */
+  void run(final long watchMillis) throws IOException {
+
+    final long end = System.currentTimeMillis() + watchMillis;
+
+    watcher = root.getFileSystem().newWatchService();
+    try {
+      wheel = new TimingWheel<Path>(TICK_MILLIS, System.currentTimeMillis());
+
+      reconcile();
+      long nextReconcile = System.currentTimeMillis() + reconcileMillis;
+
+      while (true) {
+        final long now = System.currentTimeMillis();
+        if (now >= end) {
+          break;
+        }
+
+        if (now >= nextReconcile) {
+          reconcile();
+          nextReconcile = System.currentTimeMillis() + reconcileMillis;
+        }
+
+        WatchKey key;
+        try {
+          key = watcher.poll(Math.min(TICK_MILLIS, end - now), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          log.info("Watching " + root + " interrupted");
+          break;
+        }
+
+        boolean overflow = false;
+        while (key != null) {
+          overflow |= handle(key);
+          key = watcher.poll();
+        }
+
+        if (overflow) {
+          log.info("Events of " + root + " lost, walking the tree");
+          reconcile();
+        }
+
+        expire(System.currentTimeMillis());
+      }
+    } finally {
+      watcher.close();
+      keys.clear();
+    }
+
+    log.info("Watched " + root + " for " + (watchMillis / 60000L) + " min: " + events + " events, " + expired
+        + " files expired, " + reconciliations + " walks, " + pending.size() + " files pending");
+  }
+
+  /**
+   * Walks the tree, registers directories and schedules files.
+   */
+  private void reconcile() {
+    reconciliations++;
+    scan(root, 0);
+  }
+
+  private void scan(final Path dir, final int depth) {
+
+    // Register before listing so that nothing created in between is missed
+    try {
+      final WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+      keys.put(key, new Watched(dir, depth));
+    } catch (IOException e) {
+      log.log(Level.FINE, "Unable to watch " + dir + ", handled by walks only", e);
+    }
+
+    final List<Path> subdirs = new ArrayList<Path>();
+    try {
+      final DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+      try {
+        for (Path path : stream) {
+          final BasicFileAttributes attrs = DirectoryWalker.attributes(path);
+          if (attrs.isDirectory()) {
+            if (depth < maxDepth) {
+              subdirs.add(path);
+            }
+          } else {
+            consider(path, attrs);
+          }
+        }
+      } finally {
+        stream.close();
+      }
+    } catch (IOException e) {
+      log.log(Level.FINE, "Listing for " + dir + " failed, ignoring!", e);
+    }
+
+    for (Path subdir : subdirs) {
+      scan(subdir, depth + 1);
+    }
+  }
+
+  /**
+   * Handles events of one directory. Returns true if events were lost.
+   */
+  private boolean handle(final WatchKey key) {
+    final Watched watched = keys.get(key);
+    boolean overflow = false;
+
+    for (WatchEvent<?> event : key.pollEvents()) {
+      events++;
+
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        overflow = true;
+        continue;
+      }
+      if (watched == null) {
+        continue;
+      }
+
+      final Path path = watched.dir.resolve((Path) event.context());
+
+      if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+        pending.remove(path);
+        continue;
+      }
+
+      final BasicFileAttributes attrs = DirectoryWalker.attributes(path);
+      if (attrs.isDirectory()) {
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && watched.depth < maxDepth) {
+          scan(path, watched.depth + 1);
+        }
+      } else if (attrs != DirectoryWalker.MISSING || Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+        consider(path, attrs);
+      }
+    }
+
+    if (!key.reset()) {
+      keys.remove(key);
+    }
+
+    return overflow;
+  }
+
+  /**
+   * Hands file to the filter if it is old enough, otherwise schedules it.
+   */
+  private void consider(final Path path, final BasicFileAttributes attrs) {
+    final long expiry;
+    try {
+      expiry = filter.expiryTime(path.toFile(), attrs);
+    } catch (Exception e) {
+      log.log(Level.INFO, "Filter failed for " + path, e);
+      return;
+    }
+
+    if (expiry < 0) {
+      pending.remove(path);
+      return;
+    }
+
+    final long now = System.currentTimeMillis();
+    if (expiry <= now) {
+      pending.remove(path);
+      filter.start = now;
+      filter.accept(path.toFile(), attrs);
+      return;
+    }
+
+    final Long previous = pending.put(path, expiry);
+    if (previous == null || previous.longValue() != expiry) {
+      wheel.schedule(path, expiry);
+    }
+  }
+
+  /**
+   * Checks files whose expiry time has passed.
+   */
+  private void expire(final long now) {
+    final List<Path> due = new ArrayList<Path>();
+    wheel.advance(now, due);
+
+    for (Path path : due) {
+      final Long expiry = pending.get(path);
+      if (expiry == null || expiry.longValue() > now) {
+        continue; // Deleted or rescheduled
+      }
+      pending.remove(path);
+      expired++;
+
+      final BasicFileAttributes attrs = DirectoryWalker.attributes(path);
+      if (attrs != DirectoryWalker.MISSING || Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+        consider(path, attrs);
+      }
+    }
+  }
+
+  /**
+   * Registered directory and its depth under root.
+   */
+  private static final class Watched {
+
+    final Path dir;
+
+    final int depth;
+
+    Watched(final Path dir, final int depth) {
+      this.dir = dir;
+      this.depth = depth;
+    }
+  }
+
+}
@@ -0,0 +1,239 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches file names against one or more fileMask regular expressions. A name
+ * matches if any of the masks matches the whole name.
+ *
+ * Literal prefix and suffix of each mask are extracted when it is compiled.
+ * Names not starting with the prefix, not ending with the suffix or too short
+ * for both are rejected without running the regular expression. Masks that
+ * are plain literals, literals around .* or .* alone are matched without the
+ * regular expression at all. Masks with alternation at top level, inline
+ * flags, quoting or escapes like \x41 and back references are always matched
+ * with the regular expression.
+ *
+ * Thread safe.
+ */
+final class FileMaskMatcher {
+
+  private static final String META = "\\.$^*+?()[]{}|";
+
+  private final Mask[] masks;
+
+  private final String text;
+
+  private FileMaskMatcher(final Mask[] masks, final String text) {
+    this.masks = masks;
+    this.text = text;
+  }
+
+  /**
+   * Compiles masks.
+   *
+   * @throws java.util.regex.PatternSyntaxException
+   *           if a mask is invalid
+   */
+  static FileMaskMatcher compile(final List<String> masks) {
+    final Mask[] compiled = new Mask[masks.size()];
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < compiled.length; i++) {
+      compiled[i] = new Mask(masks.get(i));
+      if (i > 0) {
+        text.append('\n');
+      }
+      text.append(masks.get(i));
+    }
+    return new FileMaskMatcher(compiled, text.toString());
+  }
+
+  boolean matches(final String name) {
+    for (Mask mask : masks) {
+      if (mask.matches(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns masks separated by newlines.
+   */
+  @Override
+  public String toString() {
+    return text;
+  }
+
+  /**
+   * One compiled mask.
+   */
+  private static final class Mask {
+
+    private final Pattern pattern;
+
+    private final String prefix;
+
+    private final String suffix;
+
+    // Decided from prefix and suffix only, without the regular expression
+    private final boolean literal;
+
+    private final boolean exact;
+
+    Mask(final String mask) {
+      pattern = Pattern.compile(mask);
+
+      if (!simple(mask)) {
+        prefix = "";
+        suffix = "";
+        literal = false;
+        exact = false;
+        return;
+      }
+
+      final int begin = mask.startsWith("^") ? 1 : 0;
+      int end = mask.length();
+      if (end > begin && mask.charAt(end - 1) == '$' && !escaped(mask, end - 1)) {
+        end--;
+      }
+
+      // Literal prefix, a character followed by a quantifier is optional
+      final StringBuilder head = new StringBuilder();
+      int p = begin;
+      while (p < end) {
+        final char c = mask.charAt(p);
+        final int next;
+        final char value;
+        if (c == '\\') {
+          if (p + 1 >= end || Character.isLetterOrDigit(mask.charAt(p + 1))) {
+            break;
+          }
+          value = mask.charAt(p + 1);
+          next = p + 2;
+        } else if (META.indexOf(c) >= 0) {
+          break;
+        } else {
+          value = c;
+          next = p + 1;
+        }
+        if (next < end && "*+?{".indexOf(mask.charAt(next)) >= 0) {
+          break;
+        }
+        head.append(value);
+        p = next;
+      }
+
+      if (p == end) {
+        // Whole mask is a literal
+        prefix = head.toString();
+        suffix = "";
+        literal = true;
+        exact = true;
+        return;
+      }
+
+      // Literal suffix, nothing follows its last character
+      final StringBuilder tail = new StringBuilder();
+      int s = end;
+      while (s > p) {
+        final char c = mask.charAt(s - 1);
+        if (escaped(mask, s - 1)) {
+          if (Character.isLetterOrDigit(c) || s - 2 < p) {
+            break;
+          }
+          tail.append(c);
+          s -= 2;
+        } else if (META.indexOf(c) >= 0) {
+          break;
+        } else {
+          tail.append(c);
+          s--;
+        }
+      }
+
+      prefix = head.toString();
+      suffix = tail.reverse().toString();
+      literal = mask.substring(p, s).equals(".*");
+      exact = false;
+    }
+
+    boolean matches(final String name) {
+      if (exact) {
+        return name.equals(prefix);
+      }
+      if (name.length() < prefix.length() + suffix.length() || !name.startsWith(prefix) || !name.endsWith(suffix)) {
+        return false;
+      }
+      if (literal && !lineTerminator(name, prefix.length(), name.length() - suffix.length())) {
+        return true;
+      }
+      return pattern.matcher(name).matches();
+    }
+
+    /**
+     * Returns true if a character . does not match is between from and to.
+     */
+    private static boolean lineTerminator(final String name, final int from, final int to) {
+      for (int i = from; i < to; i++) {
+        final char c = name.charAt(i);
+        if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Returns false for masks whose literals cannot be found by a simple
+     * scan: alternation at top level, inline flags, quoting and escapes
+     * spanning several characters.
+     */
+    private static boolean simple(final String mask) {
+      if (mask.contains("(?") || mask.contains("\\Q")) {
+        return false;
+      }
+      int depth = 0;
+      boolean inClass = false;
+      for (int i = 0; i < mask.length(); i++) {
+        final char c = mask.charAt(i);
+        if (c == '\\') {
+          if (i + 1 < mask.length() && "0123456789xuckpPN".indexOf(mask.charAt(i + 1)) >= 0) {
+            return false;
+          }
+          i++;
+        } else if (inClass) {
+          if (c == ']') {
+            inClass = false;
+          }
+        } else if (c == '[') {
+          inClass = true;
+          if (i + 1 < mask.length() && mask.charAt(i + 1) == ']') {
+            i++;
+          }
+        } else if (c == '(') {
+          depth++;
+        } else if (c == ')') {
+          depth--;
+        } else if (c == '|' && depth == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns true if character at index is escaped by an odd number of
+     * backslashes.
+     */
+    private static boolean escaped(final String mask, final int index) {
+      int count = 0;
+      for (int i = index - 1; i >= 0 && mask.charAt(i) == '\\'; i--) {
+        count++;
+      }
+      return count % 2 == 1;
+    }
+  }
+
+}
@@ -0,0 +1,140 @@
+package com.distocraft.dc5000.diskmanager;
+
+/**
+ * Limits bytes read, bytes written and file operations (unlinks and renames)
+ * per second with a token bucket each. Buckets hold at most one second worth
+ * of tokens, so short idle periods do not allow long bursts.
+ *
+ * A caller takes the tokens it needs, going into debt if there are not
+ * enough, and sleeps until the debt would have been paid back at the rate.
+ * Callers are thus served in the order they arrive and a request larger than
+ * the bucket only waits longer.
+ *
+ * Shared by all threads of a run.
+ */
+final class IoThrottle {
+
+  /**
+   * Throttle that never waits.
+   */
+  static final IoThrottle UNLIMITED = new IoThrottle(0L, 0L, 0L);
+
+  private final Bucket read;
+
+  private final Bucket write;
+
+  private final Bucket ops;
+
+  /**
+   * @param readBytesPerSecond
+   *          0 if reads are not limited
+   * @param writeBytesPerSecond
+   *          0 if writes are not limited
+   * @param opsPerSecond
+   *          0 if unlinks and renames are not limited
+   */
+  IoThrottle(final long readBytesPerSecond, final long writeBytesPerSecond, final long opsPerSecond) {
+    read = readBytesPerSecond > 0 ? new Bucket(readBytesPerSecond) : null;
+    write = writeBytesPerSecond > 0 ? new Bucket(writeBytesPerSecond) : null;
+    ops = opsPerSecond > 0 ? new Bucket(opsPerSecond) : null;
+  }
+
+  /**
+   * Returns throttle limited to readMBs and writeMBs megabytes and
+   * opsPerSecond operations per second, 0 for no limit. UNLIMITED if none are
+   * limited.
+   */
+  static IoThrottle create(final long readMBs, final long writeMBs, final long opsPerSecond) {
+    if (readMBs <= 0 && writeMBs <= 0 && opsPerSecond <= 0) {
+      return UNLIMITED;
+    }
+    return new IoThrottle(readMBs * 1048576L, writeMBs * 1048576L, opsPerSecond);
+  }
+
+  boolean isLimited() {
+    return read != null || write != null || ops != null;
+  }
+
+  /**
+   * Waits until bytes may be read.
+   */
+  void read(final long bytes) {
+    if (read != null) {
+      read.take(bytes);
+    }
+  }
+
+  /**
+   * Waits until bytes may be written.
+   */
+  void write(final long bytes) {
+    if (write != null) {
+      write.take(bytes);
+    }
+  }
+
+  /**
+   * Waits until a file may be unlinked or renamed.
+   */
+  void op() {
+    if (ops != null) {
+      ops.take(1L);
+    }
+  }
+
+  /**
+   * Returns milliseconds spent waiting.
+   */
+  long getWaitMillis() {
+    long nanos = 0L;
+    for (Bucket bucket : new Bucket[] { read, write, ops }) {
+      if (bucket != null) {
+        nanos += bucket.waited();
+      }
+    }
+    return nanos / 1000000L;
+  }
+
+  /**
+   * One token bucket.
+   */
+  static final class Bucket {
+
+    private final long rate;
+
+    private double tokens;
+
+    private long refilled = System.nanoTime();
+
+    private long waited = 0L;
+
+    Bucket(final long rate) {
+      this.rate = rate;
+      this.tokens = rate;
+    }
+
+    void take(final long count) {
+      final long wait;
+      synchronized (this) {
+        final long now = System.nanoTime();
+        tokens = Math.min(rate, tokens + (now - refilled) * rate / 1e9);
+        refilled = now;
+        tokens -= count;
+        wait = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0L;
+        waited += wait;
+      }
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    synchronized long waited() {
+      return waited;
+    }
+  }
+
+}
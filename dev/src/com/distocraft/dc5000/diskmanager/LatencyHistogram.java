@@ -0,0 +1,89 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with power of two buckets in microseconds. Bucket 0
+ * counts latencies under 1 us, bucket n latencies from 2^(n-1) to 2^n us.
+ * May be updated and read by several threads at the same time.
+ */
+final class LatencyHistogram {
+
+  static final int BUCKETS = 32;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+  private final AtomicLong count = new AtomicLong();
+
+  private final AtomicLong totalNanos = new AtomicLong();
+
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  void record(final long nanos) {
+    final long micros = nanos / 1000L;
+    final int bucket = micros <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    buckets.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  long getCount() {
+    return count.get();
+  }
+
+  long getMeanMicros() {
+    final long n = count.get();
+    return n > 0 ? totalNanos.get() / n / 1000L : 0L;
+  }
+
+  long getMaxMicros() {
+    return maxNanos.get() / 1000L;
+  }
+
+  /**
+   * Upper bound of the bucket holding the given fraction (0.0 - 1.0) of
+   * recorded latencies.
+   */
+  long getPercentileMicros(final double fraction) {
+    final long[] counts = getBuckets();
+    long total = 0L;
+    for (long c : counts) {
+      total += c;
+    }
+    if (total == 0) {
+      return 0L;
+    }
+    final long limit = (long) Math.ceil(total * fraction);
+    long seen = 0L;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= limit) {
+        return 1L << i;
+      }
+    }
+    return 1L << (BUCKETS - 1);
+  }
+
+  long[] getBuckets() {
+    final long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+    }
+    return counts;
+  }
+
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0L);
+    }
+    count.set(0L);
+    totalNanos.set(0L);
+    maxNanos.set(0L);
+  }
+
+}
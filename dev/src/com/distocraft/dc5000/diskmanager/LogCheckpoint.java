@@ -0,0 +1,265 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Offsets of live log files archived so far, kept between runs. A live log is
+ * written while it is archived, so it is not deleted: each run archives only
+ * the bytes appended after the offset archived by the previous run.
+ *
+ * For every log the file key (inode) and a checksum of the last bytes before
+ * the offset are recorded. The log is archived from the start again if it was
+ * rotated (file key changed), truncated (shorter than the offset) or truncated
+ * and written past the offset again (checksum changed).
+ */
+final class LogCheckpoint {
+
+  private static final int MAGIC = 0x44534c43; // DSLC
+
+  private static final int VERSION = 1;
+
+  // Bytes before the offset covered by the checksum
+  static final int FINGERPRINT_SIZE = 4096;
+
+  private final File file;
+
+  private final Logger log;
+
+  private final Map<String, Entry> entries;
+
+  private LogCheckpoint(final File file, final Logger log, final Map<String, Entry> entries) {
+    this.file = file;
+    this.log = log;
+    this.entries = entries;
+  }
+
+  /**
+   * Loads offsets from file. Returns an empty checkpoint if the file does not
+   * exist or cannot be read, logs are then archived from the start.
+   */
+  static LogCheckpoint load(final File file, final Logger log) {
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    try {
+      entries = read(file);
+      log.fine("Loaded " + entries.size() + " logs from checkpoint " + file);
+    } catch (FileNotFoundException e) {
+      log.fine("Log checkpoint " + file + " not found, logs are archived from start");
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Log checkpoint " + file + " is corrupted, logs are archived from start", e);
+    }
+    return new LogCheckpoint(file, log, entries);
+  }
+
+  /**
+   * Returns offset log should be archived from.
+   *
+   * @param key
+   *          file key of the log, null if the file system has none
+   * @param size
+   *          current size of the log
+   */
+  synchronized long start(final File logFile, final Object key, final long size) {
+    final Entry entry = entries.get(logFile.getPath());
+    if (entry == null) {
+      return 0L;
+    }
+    if (!entry.key.equals(key(key))) {
+      log.info("Log " + logFile + " has been rotated, archiving from start");
+      return 0L;
+    }
+    if (size < entry.offset) {
+      log.info("Log " + logFile + " has been truncated from " + entry.offset + " to " + size
+          + " bytes, archiving from start");
+      return 0L;
+    }
+    try {
+      final FileChannel in = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+      try {
+        if (fingerprint(in, entry.offset) != entry.fingerprint) {
+          log.info("Log " + logFile + " has been rewritten, archiving from start");
+          return 0L;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      log.log(Level.INFO, "Log " + logFile + " could not be checked, archiving from start", e);
+      return 0L;
+    }
+    return entry.offset;
+  }
+
+  /**
+   * Records log archived up to offset end. The checksum is read from in.
+   */
+  void archived(final File logFile, final Object key, final FileChannel in, final long end) throws IOException {
+    archived(range(logFile, key, in, end));
+  }
+
+  /**
+   * Returns log archived up to offset end, recorded by archived(Range) once
+   * the archive holding it is complete. The checksum is read from in.
+   */
+  static Range range(final File logFile, final Object key, final FileChannel in, final long end) throws IOException {
+    return new Range(logFile.getPath(), new Entry(key(key), end, fingerprint(in, end)));
+  }
+
+  /**
+   * Records log archived up to the end of range.
+   */
+  synchronized void archived(final Range range) {
+    entries.put(range.path, range.entry);
+  }
+
+  /**
+   * Returns offset archived so far, -1 if log is not in the checkpoint.
+   */
+  synchronized long getOffset(final File logFile) {
+    final Entry entry = entries.get(logFile.getPath());
+    return entry == null ? -1L : entry.offset;
+  }
+
+  /**
+   * Writes offsets. The file is replaced atomically.
+   */
+  synchronized void save() throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    final CheckedOutputStream checked = new CheckedOutputStream(new FileOutputStream(tmp), new CRC32());
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        final Entry entry = e.getValue();
+        out.writeUTF(e.getKey());
+        out.writeUTF(entry.key);
+        out.writeLong(entry.offset);
+        out.writeLong(entry.fingerprint);
+      }
+      out.flush();
+      out.writeLong(checked.getChecksum().getValue());
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log.fine("Saved " + entries.size() + " logs into checkpoint " + file);
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns checksum of up to FINGERPRINT_SIZE bytes before end.
+   */
+  static long fingerprint(final FileChannel in, final long end) throws IOException {
+    final long from = Math.max(0L, end - FINGERPRINT_SIZE);
+    final ByteBuffer buffer = ByteBuffer.allocate((int) (end - from));
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer, from + buffer.position()) < 0) {
+        break;
+      }
+    }
+    final CRC32 crc = new CRC32();
+    crc.update(buffer.array(), 0, buffer.position());
+    return crc.getValue();
+  }
+
+  private static String key(final Object key) {
+    return key == null ? "" : key.toString();
+  }
+
+  private static Map<String, Entry> read(final File file) throws IOException {
+    if (!file.exists()) {
+      throw new FileNotFoundException(file.getPath());
+    }
+    final byte[] bytes = Files.readAllBytes(file.toPath());
+    if (bytes.length < 8) {
+      throw new IOException("Truncated log checkpoint");
+    }
+    final CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length - 8);
+
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    try {
+      in.skipBytes(bytes.length - 8);
+      if (in.readLong() != crc.getValue()) {
+        throw new IOException("Checksum mismatch");
+      }
+      in.reset();
+
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a log checkpoint");
+      }
+      final int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported version " + version);
+      }
+      final int count = in.readInt();
+      if (count < 0) {
+        throw new IOException("Invalid log count " + count);
+      }
+      final Map<String, Entry> entries = new HashMap<String, Entry>(count * 2);
+      for (int i = 0; i < count; i++) {
+        final String path = in.readUTF();
+        entries.put(path, new Entry(in.readUTF(), in.readLong(), in.readLong()));
+      }
+      return entries;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Log archived up to an offset into an archive not yet complete.
+   */
+  static final class Range {
+
+    private final String path;
+
+    private final Entry entry;
+
+    private Range(final String path, final Entry entry) {
+      this.path = path;
+      this.entry = entry;
+    }
+  }
+
+  /**
+   * Archived part of one log.
+   */
+  private static final class Entry {
+
+    final String key;
+
+    final long offset;
+
+    final long fingerprint;
+
+    Entry(final String key, final long offset, final long fingerprint) {
+      this.key = key;
+      this.offset = offset;
+      this.fingerprint = fingerprint;
+    }
+  }
+
+}
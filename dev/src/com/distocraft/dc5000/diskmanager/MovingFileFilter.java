@@ -5,6 +5,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,12 +20,13 @@ import java.util.logging.Logger;
  */
 class MovingFileFilter extends DiskManagerFileFilter {
 
-  private static final int BUFFER_SIZE = 16384;
-
   private Logger log;
 
   private File targetDir;
 
+  // Are files renamed into targetDir, known after the first file in preview
+  private Boolean sameStore = null;
+
   MovingFileFilter(Properties conf, Logger log) throws Exception {
     super(conf);
 
@@ -61,27 +64,63 @@ class MovingFileFilter extends DiskManagerFileFilter {
       return true;
 	}
     
+    handle(f, null);
+
+    return false;
+
+  }
+
+  @Override
+  boolean accept(final File f, final BasicFileAttributes attrs) {
+
+    if (attrs.isDirectory()) {
+      return true;
+    }
+
+    handle(f, attrs);
+
+    return false;
+
+  }
+
+  private void handle(final File f, final BasicFileAttributes attrs) {
     try {
 
-      if (ageCheck(f) > 0){
-        move(f, targetDir);
+      if (ageCheck(f, attrs) > 0){
+        if (preview != null) {
+          preview.move(f, attrs == null ? f.length() : attrs.size(), !sameFileStore(f));
+          removed(f);
+        } else {
+          move(f, targetDir);
+        }
 	  }
 
     } catch (Exception e) {
       log.log(Level.INFO, "Filter failed for " + f, e);
     }
+  }
 
-    return false;
-
+  /**
+   * Returns true if file is on the file system of the target directory, so
+   * that it would be moved by renaming. Checked for the first file only.
+   */
+  private boolean sameFileStore(final File f) throws Exception {
+    if (sameStore == null) {
+      sameStore = Boolean.valueOf(Files.getFileStore(f.toPath()).equals(Files.getFileStore(targetDir.toPath())));
+    }
+    return sameStore.booleanValue();
   }
 
   private void move(File src, File tgtDir) throws Exception {
 
     File tgt = new File(tgtDir, src.getName());
 
+    throttle.op();
     boolean success = src.renameTo(tgt);
 
     if (success){
+      removed(src);
+      stats.moved(tgt.length());
       return;
 	}
     else{
@@ -91,16 +130,19 @@ class MovingFileFilter extends DiskManagerFileFilter {
     InputStream in = new FileInputStream(src);
     OutputStream out = new FileOutputStream(tgt);
 
-    byte[] buf = new byte[BUFFER_SIZE];
+    byte[] buf = new byte[ArchiveWriter.BUFFER_SIZE];
     int len;
     while ((len = in.read(buf)) > 0) {
       bytes += len;
+      throttle.read(len);
+      throttle.write(len);
       out.write(buf, 0, len);
     }
     in.close();
     out.close();
 
-    src.delete();
+    unlink(src);
+    stats.moved(tgt.length());
 
     log.finest("File successfully moved via copy & delete");
 
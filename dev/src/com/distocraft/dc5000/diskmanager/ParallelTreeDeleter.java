@@ -0,0 +1,177 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parallel version of DiskManager.recurseDeleteFiles. Every subdirectory is
+ * handled as its own fork-join task and files of large directories are split
+ * into batches, so deep and wide trees are deleted with parallelism threads.
+ *
+ * Files are checked with DeletingFileFilter.checkAge and counted per task.
+ * Counts of each task are added into the filter when the task is done.
+ *
+ * With a ConcurrencyLimiter the number of files being checked and deleted at
+ * the same time is adapted to their latency, parallelism is then the highest
+ * number of threads.
+ */
+final class ParallelTreeDeleter {
+
+  public static final int MAX_PARALLELISM = 64;
+
+  // Files of one directory checked and deleted by one task
+  static final int BATCH_SIZE = 512;
+
+  private static final String TAGFILE = ".tagfile";
+
+  private final DeletingFileFilter filter;
+
+  private final Logger log;
+
+  private final int parallelism;
+
+  // Adapts concurrency of file operations, null if all threads are used
+  private final ConcurrencyLimiter limiter;
+
+  ParallelTreeDeleter(final DeletingFileFilter filter, final Logger log, final int parallelism) {
+    this(filter, log, parallelism, null);
+  }
+
+  ParallelTreeDeleter(final DeletingFileFilter filter, final Logger log, final int parallelism,
+      final ConcurrencyLimiter limiter) {
+    this.filter = filter;
+    this.log = log;
+    this.parallelism = Math.max(1, Math.min(parallelism, MAX_PARALLELISM));
+    this.limiter = limiter;
+  }
+
+  /**
+   * Deletes old enough files under root. Directories are left in place.
+   */
+  void delete(final Path root) {
+    final ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(new DirectoryTask(root));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Lists one directory, forks a task for each subdirectory and handles the
+   * files in batches.
+   */
+  private final class DirectoryTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Path dir;
+
+    DirectoryTask(final Path dir) {
+      this.dir = dir;
+    }
+
+    @Override
+    protected void compute() {
+      log.finest("Managing subdirectory " + dir);
+
+      final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+      List<Path> batch = new ArrayList<Path>();
+
+      try {
+        final DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+        try {
+          for (Path path : stream) {
+            if (Files.isDirectory(path)) {
+              final DirectoryTask task = new DirectoryTask(path);
+              task.fork();
+              tasks.add(task);
+            } else {
+              batch.add(path);
+              if (batch.size() >= BATCH_SIZE) {
+                final FileTask task = new FileTask(batch);
+                task.fork();
+                tasks.add(task);
+                batch = new ArrayList<Path>();
+              }
+            }
+          }
+        } finally {
+          stream.close();
+        }
+      } catch (IOException e) {
+        log.log(Level.FINE, "Unable to list directory " + dir, e);
+      }
+
+      if (!batch.isEmpty()) {
+        new FileTask(batch).compute();
+      }
+
+      for (RecursiveAction task : tasks) {
+        task.join();
+      }
+
+      log.finest("Subdirectory " + dir + " managed");
+    }
+  }
+
+  /**
+   * Checks and deletes a batch of files of one directory.
+   */
+  private final class FileTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<Path> files;
+
+    FileTask(final List<Path> files) {
+      this.files = files;
+    }
+
+    @Override
+    protected void compute() {
+      final long now = System.currentTimeMillis();
+      int total = 0;
+      int handled = 0;
+
+      for (Path path : files) {
+        final File file = path.toFile();
+        total++;
+        if (limiter != null) {
+          limiter.acquire();
+        }
+        final long begin = System.nanoTime();
+        try {
+          if (filter.checkAge(file.lastModified(), now) > 0) {
+            handled++;
+            // HP49595, diskmanager should skip .tagfile(used by NAS)deletion
+            if (!file.getName().equals(TAGFILE)) {
+              log.finest("Deleting file :" + file);
+              if (!filter.unlink(file)) {
+                log.finest("Cannot delete file " + file);
+              } else {
+                filter.stats.deleted();
+              }
+            }
+          }
+        } finally {
+          if (limiter != null) {
+            limiter.release(System.nanoTime() - begin);
+          }
+        }
+      }
+
+      filter.addCounts(total, handled);
+    }
+  }
+
+}
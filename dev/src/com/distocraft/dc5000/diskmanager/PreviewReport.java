@@ -0,0 +1,244 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.zip.Deflater;
+
+/**
+ * Collects what a run in preview mode would do: files moved, archived and
+ * deleted and their bytes, and estimates how long the run would take.
+ *
+ * Nothing is written. To measure throughput, up to SAMPLE_BYTES of the files
+ * to be archived or copied are read, and the ones to be archived compressed
+ * into nothing at the configured level. The estimate is the time of the
+ * preview walk, as a real run walks the same tree, plus reading, compressing
+ * and writing at the sampled rates, writes assumed as fast as reads, plus one
+ * unlink or rename per file at the latency measured by earlier runs of the
+ * action, DEFAULT_UNLINK_MICROS if none.
+ *
+ * Shared by all threads of a run.
+ */
+final class PreviewReport {
+
+  // Bytes read to measure throughput
+  static final long SAMPLE_BYTES = 32L * 1048576L;
+
+  // Cost of one unlink or rename if none have been measured
+  static final double DEFAULT_UNLINK_MICROS = 100.0;
+
+  private final long start = System.currentTimeMillis();
+
+  private int moveFiles = 0;
+
+  private long moveBytes = 0L;
+
+  // Of moveBytes, bytes that would be copied instead of renamed
+  private long copyBytes = 0L;
+
+  private int compressFiles = 0;
+
+  private long compressBytes = 0L;
+
+  private int deleteFiles = 0;
+
+  private long deleteBytes = 0L;
+
+  private int directories = 0;
+
+  private long sampleNanos = 0L;
+
+  private long readBytes = 0L;
+
+  private long readNanos = 0L;
+
+  private long deflateIn = 0L;
+
+  private long deflateOut = 0L;
+
+  private long deflateNanos = 0L;
+
+  private double unlinkMicros = DEFAULT_UNLINK_MICROS;
+
+  private boolean unlinkMeasured = false;
+
+  private final byte[] buffer = new byte[ArchiveWriter.BUFFER_SIZE];
+
+  private final byte[] deflated = new byte[ArchiveWriter.BUFFER_SIZE];
+
+  /**
+   * Returns true if preview is set to 1 or true by key.
+   */
+  static boolean isSet(final Properties conf, final String key) {
+    final String value = conf.getProperty(key, "0").trim();
+    return "1".equals(value) || "true".equalsIgnoreCase(value);
+  }
+
+  /**
+   * Records file that would be moved.
+   *
+   * @param copy
+   *          would the file be copied to another file system
+   */
+  synchronized void move(final File file, final long size, final boolean copy) {
+    moveFiles++;
+    moveBytes += size;
+    if (copy) {
+      copyBytes += size;
+      sample(file, false, 0);
+    }
+  }
+
+  /**
+   * Records file that would be archived at compression level, and then
+   * deleted.
+   */
+  synchronized void compress(final File file, final long size, final int level) {
+    compressFiles++;
+    compressBytes += size;
+    sample(file, true, level);
+  }
+
+  /**
+   * Records file that would be deleted.
+   */
+  synchronized void delete(final long size) {
+    deleteFiles++;
+    deleteBytes += size;
+  }
+
+  /**
+   * Records directory that would be deleted.
+   */
+  synchronized void directory() {
+    directories++;
+  }
+
+  /**
+   * Sets unlink latency measured by earlier runs.
+   */
+  synchronized void setUnlinkMicros(final double micros) {
+    if (micros > 0) {
+      unlinkMicros = micros;
+      unlinkMeasured = true;
+    }
+  }
+
+  synchronized int getFiles() {
+    return moveFiles + compressFiles + deleteFiles;
+  }
+
+  /**
+   * Returns estimated runtime in milliseconds of the run previewed.
+   */
+  synchronized long estimateMillis() {
+    double millis = walkMillis();
+    final double readRate = readBytes > 0 && readNanos > 0 ? readBytes * 1e6 / readNanos : 0;
+    if (readRate > 0) {
+      millis += 2 * copyBytes / readRate;
+      millis += compressBytes * (1 + ratio()) / readRate;
+    }
+    if (deflateIn > 0 && deflateNanos > 0) {
+      millis += compressBytes / (deflateIn * 1e6 / deflateNanos);
+    }
+    millis += (moveFiles + compressFiles + deleteFiles) * unlinkMicros / 1000.0;
+    return Math.round(millis);
+  }
+
+  /**
+   * Returns the report.
+   */
+  synchronized String summary() {
+    final StringBuilder sb = new StringBuilder("Preview, nothing changed:");
+    sb.append("\n  move ").append(moveFiles).append(" files ").append(moveBytes).append(" bytes, ")
+        .append(copyBytes).append(" bytes copied");
+    sb.append("\n  archive ").append(compressFiles).append(" files ").append(compressBytes).append(" bytes");
+    if (deflateIn > 0) {
+      sb.append(", archives about ").append(Math.round(compressBytes * ratio())).append(" bytes");
+    }
+    sb.append("\n  delete ").append(deleteFiles).append(" files ").append(deleteBytes).append(" bytes, ")
+        .append(directories).append(" directories");
+    sb.append("\n  walk ").append(walkMillis()).append(" ms");
+    if (readBytes > 0) {
+      sb.append(", sampled ").append(readBytes).append(" bytes: read ").append(mbs(readBytes, readNanos))
+          .append("MB/s");
+    }
+    if (deflateIn > 0) {
+      sb.append(" deflate ").append(mbs(deflateIn, deflateNanos)).append("MB/s ratio ")
+          .append(Math.round(ratio() * 100)).append('%');
+    }
+    sb.append(", unlink ").append(Math.round(unlinkMicros)).append(" us")
+        .append(unlinkMeasured ? "" : " (assumed)");
+    sb.append("\n  estimated runtime ").append(estimateMillis()).append(" ms");
+    if (readBytes == 0 && (copyBytes > 0 || compressBytes > 0)) {
+      sb.append(" without reading and compressing, files could not be sampled");
+    }
+    return sb.toString();
+  }
+
+  private long walkMillis() {
+    return Math.max(0L, System.currentTimeMillis() - start - sampleNanos / 1000000L);
+  }
+
+  private double ratio() {
+    return deflateIn > 0 ? (double) deflateOut / deflateIn : 1.0;
+  }
+
+  private static long mbs(final long bytes, final long nanos) {
+    return nanos > 0 ? Math.round(bytes * 1e9 / nanos / 1048576.0) : 0L;
+  }
+
+  /**
+   * Reads file and compresses it at level if compress is set, until
+   * SAMPLE_BYTES have been sampled.
+   */
+  private void sample(final File file, final boolean compress, final int level) {
+    if (readBytes >= SAMPLE_BYTES) {
+      return;
+    }
+    final long begin = System.nanoTime();
+    final Deflater deflater = compress ? new Deflater(level, true) : null;
+    try {
+      final InputStream in = new FileInputStream(file);
+      try {
+        int len;
+        long read = System.nanoTime();
+        while (readBytes < SAMPLE_BYTES && (len = in.read(buffer)) > 0) {
+          final long now = System.nanoTime();
+          readNanos += now - read;
+          readBytes += len;
+          if (deflater != null) {
+            deflater.setInput(buffer, 0, len);
+            while (!deflater.needsInput()) {
+              deflateOut += deflater.deflate(deflated);
+            }
+            deflateIn += len;
+            deflateNanos += System.nanoTime() - now;
+          }
+          read = System.nanoTime();
+        }
+        if (deflater != null) {
+          // Each file is an entry of its own
+          final long now = System.nanoTime();
+          deflater.finish();
+          while (!deflater.finished()) {
+            deflateOut += deflater.deflate(deflated);
+          }
+          deflateNanos += System.nanoTime() - now;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // File cannot be read, it is not sampled
+    } finally {
+      if (deflater != null) {
+        deflater.end();
+      }
+      sampleNanos += System.nanoTime() - begin;
+    }
+  }
+
+}
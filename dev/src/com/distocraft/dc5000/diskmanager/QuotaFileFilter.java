@@ -0,0 +1,146 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * File filter that limits each directory to the newest keepNewestFiles files
+ * and to maxDirectoryMB megabytes of files matching fileMask. Older files are
+ * deleted regardless of fileAge.
+ *
+ * Files kept so far are in a heap with the oldest on top. Every listed file
+ * is added and the oldest files are removed and deleted as long as the
+ * directory is over either limit. Files listed later that are older than a
+ * file already removed are deleted right away, so only the newest files are
+ * kept. A file once removed cannot be kept, as the files listed after it only
+ * add to the files newer than it, so each directory is handled in one pass
+ * without sorting its listing and the heap never holds more than the files
+ * kept. Bytes reclaimed are logged per directory.
+ */
+class QuotaFileFilter extends DiskManagerFileFilter {
+
+  private static final Comparator<EvictingFileFilter.Candidate> OLDEST_FIRST =
+      new Comparator<EvictingFileFilter.Candidate>() {
+
+        @Override
+        public int compare(final EvictingFileFilter.Candidate a, final EvictingFileFilter.Candidate b) {
+          return a.time < b.time ? -1 : (a.time > b.time ? 1 : 0);
+        }
+      };
+
+  private final Logger log;
+
+  // 0 if not limited
+  private final long maxBytes;
+
+  // 0 if not limited
+  private final long maxFiles;
+
+  private final PriorityQueue<EvictingFileFilter.Candidate> kept = new PriorityQueue<EvictingFileFilter.Candidate>(
+      1024, OLDEST_FIRST);
+
+  private long keptBytes = 0L;
+
+  // Of the directory being listed
+  private long newestRemoved = Long.MIN_VALUE;
+
+  private int deleted = 0;
+
+  private long reclaimed = 0L;
+
+  private long freed = 0L;
+
+  QuotaFileFilter(final Properties conf, final Logger log) throws Exception {
+    super(conf);
+    this.log = log;
+
+    final long mb = parsePropertyAsLong(conf.getProperty("diskManager.dir.maxDirectoryMB", "0"),
+        "diskManager.dir.maxDirectoryMB");
+    maxBytes = mb * 1048576L;
+    maxFiles = parsePropertyAsLong(conf.getProperty("diskManager.dir.keepNewestFiles", "0"),
+        "diskManager.dir.keepNewestFiles");
+    if (maxBytes <= 0 && maxFiles <= 0) {
+      throw new Exception("Parameter maxDirectoryMB or keepNewestFiles must be defined");
+    }
+  }
+
+  /**
+   * Returns bytes of deleted files.
+   */
+  long getFreed() {
+    return freed;
+  }
+
+  @Override
+  public boolean accept(final File f) {
+    return accept(f, DirectoryWalker.attributes(f.toPath()));
+  }
+
+  /**
+   * Keeps file if it is among the newest within the limits and deletes files
+   * no longer kept. .tagfiles are kept.
+   */
+  @Override
+  boolean accept(final File f, final BasicFileAttributes attrs) {
+    if (attrs.isDirectory()) {
+      return true;
+    }
+    if (!attrs.isRegularFile()) {
+      return false;
+    }
+
+    addCounts(1, 0);
+    // HP49595, diskmanager should skip .tagfile(used by NAS)deletion
+    if (f.getName().equals(".tagfile") || !matchesMask(f.getName())) {
+      return false;
+    }
+
+    final EvictingFileFilter.Candidate file = new EvictingFileFilter.Candidate(f,
+        attrs.lastModifiedTime().toMillis(), attrs.size());
+    if (file.time <= newestRemoved) {
+      remove(file);
+      return false;
+    }
+
+    kept.add(file);
+    keptBytes += file.size;
+    while ((maxFiles > 0 && kept.size() > maxFiles) || (maxBytes > 0 && keptBytes > maxBytes)) {
+      final EvictingFileFilter.Candidate oldest = kept.poll();
+      keptBytes -= oldest.size;
+      newestRemoved = oldest.time;
+      remove(oldest);
+    }
+    return false;
+  }
+
+  private void remove(final EvictingFileFilter.Candidate file) {
+    log.finest("Deleting file " + file.file + " over quota");
+    if (unlink(file.file)) {
+      stats.deleted();
+      addCounts(0, 1);
+      deleted++;
+      reclaimed += file.size;
+    } else {
+      log.info("Cannot delete file " + file.file);
+    }
+  }
+
+  @Override
+  void directoryDone(final File dir) {
+    if (deleted > 0) {
+      log.info("Directory " + dir + ": deleted " + deleted + " files, reclaimed " + reclaimed + " bytes, kept "
+          + kept.size() + " files " + keptBytes + " bytes");
+    }
+    freed += reclaimed;
+    kept.clear();
+    keptBytes = 0L;
+    newestRemoved = Long.MIN_VALUE;
+    deleted = 0;
+    reclaimed = 0L;
+  }
+
+}
@@ -0,0 +1,249 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * File filter that applies an ordered list of rules in one walk of the tree.
+ * Each file is handed to the first rule whose fileMask matches it, files
+ * matching no rule are left alone.
+ *
+ * Rules are numbered from 1 and defined by diskManager.rule.N.archiveMode
+ * (0 move, 1-3 archive, 4 delete). Any other diskManager.dir parameter can be
+ * given for a rule as diskManager.rule.N.name, for example fileMask,
+ * fileAgeDay, outDir or archivePrefix. Parameters not given for a rule are
+ * taken from diskManager.dir, except fileMask that each rule must have. Each
+ * rule has a filter of its own created from its parameters, so rules count
+ * their files separately.
+ */
+class RuleFileFilter extends DiskManagerFileFilter {
+
+  static final String RULE_PREFIX = "diskManager.rule.";
+
+  private static final String DIR_PREFIX = "diskManager.dir.";
+
+  private final Logger log;
+
+  private final List<Rule> rules = new ArrayList<Rule>();
+
+  RuleFileFilter(final Properties conf, final Logger log) throws Exception {
+    super(ruleConf(conf, 0));
+    this.log = log;
+
+    final Set<String> archives = new HashSet<String>();
+    for (int n = 1; conf.getProperty(RULE_PREFIX + n + ".archiveMode") != null; n++) {
+      final Properties ruleConf = ruleConf(conf, n);
+      final int mode;
+      try {
+        mode = Integer.parseInt(ruleConf.getProperty(DIR_PREFIX + "archiveMode").trim());
+      } catch (NumberFormatException e) {
+        throw new Exception("Rule " + n + ": parameter archiveMode is invalid");
+      }
+
+      final DiskManagerFileFilter filter;
+      try {
+        if (mode == DiskManager.NOT_ARCHIVED) {
+          filter = new MovingFileFilter(ruleConf, log);
+        } else if (mode == DiskManager.ZIP_SEQUENCE || mode == DiskManager.ZIP_MINMAX
+            || mode == DiskManager.ZIP_CREATIONTIME) {
+          // Temporary and final archive names differ only by prefix
+          if (!archives.add(ruleConf.getProperty(DIR_PREFIX + "outDir") + "/"
+              + ruleConf.getProperty(DIR_PREFIX + "archivePrefix"))) {
+            throw new Exception("archivePrefix is used by another rule with the same outDir");
+          }
+          filter = new ZippingFileFilter(ruleConf, log);
+        } else if (mode == DiskManager.DELETED) {
+          filter = new DeletingFileFilter(ruleConf, log);
+        } else {
+          throw new Exception("archiveMode " + mode + " cannot be used in a rule");
+        }
+      } catch (Exception e) {
+        closeRules();
+        throw new Exception("Rule " + n + ": " + e.getMessage(), e);
+      }
+      rules.add(new Rule(n, mode, filter));
+    }
+
+    if (rules.isEmpty()) {
+      throw new Exception("No rules defined, " + RULE_PREFIX + "1.archiveMode not found");
+    }
+  }
+
+  /**
+   * Returns conf with parameters of rule n as diskManager.dir parameters.
+   * Rule 0 is the action itself, fileMask matching all files.
+   */
+  static Properties ruleConf(final Properties conf, final int n) {
+    final Properties ruleConf = new Properties();
+    ruleConf.putAll(conf);
+    for (String key : conf.stringPropertyNames()) {
+      if (key.startsWith(DIR_PREFIX + "fileMask")) {
+        ruleConf.remove(key);
+      }
+    }
+    if (n == 0) {
+      ruleConf.setProperty(DIR_PREFIX + "fileMask", ".*");
+      return ruleConf;
+    }
+    final String prefix = RULE_PREFIX + n + ".";
+    for (String key : conf.stringPropertyNames()) {
+      if (key.startsWith(prefix)) {
+        ruleConf.setProperty(DIR_PREFIX + key.substring(prefix.length()), conf.getProperty(key));
+      }
+    }
+    return ruleConf;
+  }
+
+  @Override
+  void setStats(final DiskManagerStats stats) {
+    super.setStats(stats);
+    for (Rule rule : rules) {
+      rule.filter.setStats(stats);
+    }
+  }
+
+  @Override
+  void setPreview(final PreviewReport preview) {
+    super.setPreview(preview);
+    for (Rule rule : rules) {
+      rule.filter.setPreview(preview);
+    }
+  }
+
+  @Override
+  void setThrottle(final IoThrottle throttle) {
+    super.setThrottle(throttle);
+    for (Rule rule : rules) {
+      rule.filter.setThrottle(throttle);
+    }
+  }
+
+  @Override
+  public boolean accept(final File f) {
+    return accept(f, DirectoryWalker.attributes(f.toPath()));
+  }
+
+  /**
+   * Hands file to the first rule matching it.
+   */
+  @Override
+  boolean accept(final File f, final BasicFileAttributes attrs) {
+    if (attrs.isDirectory()) {
+      return true;
+    }
+
+    final String name = f.getName();
+    for (Rule rule : rules) {
+      if (rule.filter.matchesMask(name)) {
+        rule.filter.accept(f, attrs);
+        return false;
+      }
+    }
+    addCounts(1, 0);
+    return false;
+  }
+
+  /**
+   * Returns files checked by all rules and files matching none.
+   */
+  @Override
+  int getTotalFiles() {
+    int total = totalfiles;
+    for (Rule rule : rules) {
+      total += rule.filter.getTotalFiles();
+    }
+    return total;
+  }
+
+  @Override
+  int getFiles() {
+    int handled = files;
+    for (Rule rule : rules) {
+      handled += rule.filter.getFiles();
+    }
+    return handled;
+  }
+
+  @Override
+  long getBytes() {
+    long total = bytes;
+    for (Rule rule : rules) {
+      total += rule.filter.getBytes();
+    }
+    return total;
+  }
+
+  @Override
+  void countRemovals(final File dir) {
+    for (Rule rule : rules) {
+      rule.filter.countRemovals(dir);
+    }
+  }
+
+  @Override
+  int takeRemovals(final File dir) {
+    int removed = 0;
+    for (Rule rule : rules) {
+      removed += rule.filter.takeRemovals(dir);
+    }
+    return removed;
+  }
+
+  @Override
+  void flush() {
+    for (Rule rule : rules) {
+      rule.filter.flush();
+    }
+  }
+
+  /**
+   * Finishes archives of zipping rules and logs counts of each rule.
+   */
+  void close() {
+    closeRules();
+    for (Rule rule : rules) {
+      log.info("Rule " + rule.number + " (archiveMode " + rule.mode + ", fileMask " + rule.filter.getFileMask()
+          + ") managed " + rule.filter.getFiles() + "/" + rule.filter.getTotalFiles() + " files ("
+          + rule.filter.getBytes() + "B)");
+    }
+    log.info("No rule matched " + totalfiles + " files");
+  }
+
+  private void closeRules() {
+    for (Rule rule : rules) {
+      if (rule.filter instanceof ZippingFileFilter) {
+        try {
+          ((ZippingFileFilter) rule.filter).close();
+        } catch (Exception e) {
+          log.log(Level.WARNING, "Closing rule " + rule.number + " failed", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * One rule with its filter.
+   */
+  private static final class Rule {
+
+    final int number;
+
+    final int mode;
+
+    final DiskManagerFileFilter filter;
+
+    Rule(final int number, final int mode, final DiskManagerFileFilter filter) {
+      this.number = number;
+      this.mode = mode;
+      this.filter = filter;
+    }
+  }
+
+}
@@ -0,0 +1,264 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Index of directories walked by DirectoryWalker, kept between runs. For
+ * every directory that had no files to handle it records modification time of
+ * the directory, modification times of its oldest and newest file matching
+ * fileMask and names of its subdirectories.
+ *
+ * A directory whose modification time has not changed and whose oldest file
+ * is still not old enough cannot contain files to handle, so it is not listed
+ * again. Its subdirectories are walked from the index. Only usable with file
+ * system age: files appearing, disappearing or being renamed change the
+ * directory modification time, aging does not.
+ *
+ * The index is rebuilt if the file is corrupted or was written with different
+ * inDir, fileAge, fileMask or directoryDepth.
+ */
+final class ScanIndex {
+
+  private static final int MAGIC = 0x44534349; // DSCI
+
+  private static final int VERSION = 1;
+
+  // Directories modified this close to the scan are not indexed, entries
+  // added during the same clock tick would not change the modification time
+  private static final long RACY_MILLIS = 2000L;
+
+  private final File file;
+
+  private final Path root;
+
+  private final long fileAge;
+
+  private final String mask;
+
+  private final int maxDepth;
+
+  private final Logger log;
+
+  // Entries of previous run
+  private final Map<String, Entry> previous;
+
+  // Entries of this run, saved at end
+  private final Map<String, Entry> current = new HashMap<String, Entry>();
+
+  private int skipped = 0;
+
+  private ScanIndex(final File file, final Path root, final long fileAge, final String mask, final int maxDepth,
+      final Logger log, final Map<String, Entry> previous) {
+    this.file = file;
+    this.root = root;
+    this.fileAge = fileAge;
+    this.mask = mask;
+    this.maxDepth = maxDepth;
+    this.log = log;
+    this.previous = previous;
+  }
+
+  /**
+   * Loads index from file. Returns an empty index if the file does not exist,
+   * cannot be read or was written with other parameters.
+   */
+  static ScanIndex load(final File file, final Path root, final long fileAge, final String mask, final int maxDepth,
+      final Logger log) {
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    try {
+      entries = read(file, root, fileAge, mask, maxDepth);
+      if (entries == null) {
+        log.info("Scan index " + file + " is outdated, rebuilding");
+        entries = new HashMap<String, Entry>();
+      } else {
+        log.fine("Loaded " + entries.size() + " directories from scan index " + file);
+      }
+    } catch (FileNotFoundException e) {
+      log.fine("Scan index " + file + " not found, building");
+    } catch (IOException e) {
+      log.log(Level.INFO, "Scan index " + file + " is corrupted, rebuilding", e);
+    }
+    return new ScanIndex(file, root, fileAge, mask, maxDepth, log, entries);
+  }
+
+  /**
+   * Returns indexed subdirectories of dir if the directory can be skipped,
+   * null if it has to be listed.
+   *
+   * @param modified
+   *          current modification time of the directory
+   * @param now
+   *          time the age of files is compared to
+   */
+  String[] skip(final Path dir, final long modified, final long now) {
+    final String key = key(dir);
+    final Entry entry = previous.get(key);
+    if (entry == null || entry.modified != modified || entry.newest > now) {
+      return null;
+    }
+    if (entry.oldest != Long.MAX_VALUE && (now - entry.oldest) > fileAge) {
+      return null;
+    }
+    current.put(key, entry);
+    skipped++;
+    return entry.subdirs;
+  }
+
+  /**
+   * Records directory listed with no files handled.
+   */
+  void record(final Path dir, final long modified, final long oldest, final long newest, final List<String> subdirs) {
+    if (System.currentTimeMillis() - modified < RACY_MILLIS) {
+      return;
+    }
+    current.put(key(dir), new Entry(modified, oldest, newest, subdirs.toArray(new String[subdirs.size()])));
+  }
+
+  /**
+   * Number of directories skipped during this run.
+   */
+  int getSkipped() {
+    return skipped;
+  }
+
+  int size() {
+    return current.size();
+  }
+
+  /**
+   * Writes directories indexed during this run. The file is replaced
+   * atomically.
+   */
+  void save() throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    final CheckedOutputStream checked = new CheckedOutputStream(new FileOutputStream(tmp), new CRC32());
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, ArchiveWriter.BUFFER_SIZE));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(root.toString());
+      out.writeLong(fileAge);
+      out.writeUTF(mask);
+      out.writeInt(maxDepth);
+      out.writeInt(current.size());
+      for (Map.Entry<String, Entry> e : current.entrySet()) {
+        final Entry entry = e.getValue();
+        out.writeUTF(e.getKey());
+        out.writeLong(entry.modified);
+        out.writeLong(entry.oldest);
+        out.writeLong(entry.newest);
+        out.writeInt(entry.subdirs.length);
+        for (String subdir : entry.subdirs) {
+          out.writeUTF(subdir);
+        }
+      }
+      out.flush();
+      out.writeLong(checked.getChecksum().getValue());
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log.fine("Saved " + current.size() + " directories into scan index " + file);
+  }
+
+  /**
+   * Reads entries from file. Returns null if the file was written with other
+   * parameters.
+   */
+  private static Map<String, Entry> read(final File file, final Path root, final long fileAge, final String mask,
+      final int maxDepth) throws IOException {
+    if (!file.exists()) {
+      throw new FileNotFoundException(file.getPath());
+    }
+    final byte[] bytes = Files.readAllBytes(file.toPath());
+    if (bytes.length < 8) {
+      throw new IOException("Truncated scan index");
+    }
+    final CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length - 8);
+
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    try {
+      in.skipBytes(bytes.length - 8);
+      if (in.readLong() != crc.getValue()) {
+        throw new IOException("Checksum mismatch");
+      }
+      in.reset();
+
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a scan index");
+      }
+      if (in.readInt() != VERSION || !in.readUTF().equals(root.toString()) || in.readLong() != fileAge
+          || !in.readUTF().equals(mask) || in.readInt() != maxDepth) {
+        return null;
+      }
+      final int count = in.readInt();
+      if (count < 0) {
+        throw new IOException("Invalid directory count " + count);
+      }
+      final Map<String, Entry> entries = new HashMap<String, Entry>(count * 2);
+      for (int i = 0; i < count; i++) {
+        final String key = in.readUTF();
+        final long modified = in.readLong();
+        final long oldest = in.readLong();
+        final long newest = in.readLong();
+        final int subdirCount = in.readInt();
+        if (subdirCount < 0) {
+          throw new IOException("Invalid subdirectory count " + subdirCount);
+        }
+        final String[] subdirs = new String[subdirCount];
+        for (int j = 0; j < subdirCount; j++) {
+          subdirs[j] = in.readUTF();
+        }
+        entries.put(key, new Entry(modified, oldest, newest, subdirs));
+      }
+      return entries;
+    } finally {
+      in.close();
+    }
+  }
+
+  private String key(final Path dir) {
+    return root.relativize(dir).toString();
+  }
+
+  /**
+   * Indexed directory.
+   */
+  private static final class Entry {
+
+    final long modified;
+
+    // Oldest and newest file matching fileMask, MAX_VALUE / MIN_VALUE if none
+    final long oldest;
+
+    final long newest;
+
+    final String[] subdirs;
+
+    Entry(final long modified, final long oldest, final long newest, final String[] subdirs) {
+      this.modified = modified;
+      this.oldest = oldest;
+      this.newest = newest;
+      this.subdirs = subdirs;
+    }
+  }
+
+}
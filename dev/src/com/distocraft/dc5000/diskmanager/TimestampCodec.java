@@ -0,0 +1,447 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Parses and formats timestamps of a SimpleDateFormat pattern. Patterns made
+ * of the numeric fields yyyy, yy, MM, dd, HH, hh, mm, ss and SSS and literals
+ * are compiled into fixed field digit parsers and formatters that allocate
+ * nothing while parsing. Other patterns fall back to a SimpleDateFormat per
+ * thread.
+ *
+ * Parsing follows lenient SimpleDateFormat: trailing text is ignored, fields
+ * out of range roll over into the next field, two digit years are within 80
+ * years before and 20 years after the codec was compiled and a field not
+ * followed by another numeric field takes as many digits as there are.
+ * Timestamps are in the default time zone at compile time.
+ *
+ * Thread safe.
+ */
+final class TimestampCodec {
+
+  private static final int LITERAL = 0;
+
+  private static final int YEAR = 1;
+
+  private static final int MONTH = 2;
+
+  private static final int DAY = 3;
+
+  private static final int HOUR = 4;
+
+  private static final int HOUR12 = 5;
+
+  private static final int MINUTE = 6;
+
+  private static final int SECOND = 7;
+
+  private static final int MILLISECOND = 8;
+
+  private static final long DAY_MILLIS = 86400000L;
+
+  // Digits read by a field not followed by another numeric field
+  private static final int MAX_DIGITS = 9;
+
+  private final String pattern;
+
+  private final TimeZone zone;
+
+  private final int[] fields;
+
+  private final int[] widths;
+
+  private final String[] literals;
+
+  private final boolean hasYear;
+
+  // Two digit years are in the century starting from this
+  private final long centuryStart;
+
+  private final int centuryStartYear;
+
+  private final ThreadLocal<SimpleDateFormat> fallback;
+
+  private TimestampCodec(final String pattern, final List<Integer> fields, final List<Integer> widths,
+      final List<String> literals, final boolean hasYear, final boolean compiled) {
+    this.pattern = pattern;
+    this.zone = (TimeZone) TimeZone.getDefault().clone();
+    this.fields = new int[fields.size()];
+    this.widths = new int[widths.size()];
+    for (int i = 0; i < this.fields.length; i++) {
+      this.fields[i] = fields.get(i).intValue();
+      this.widths[i] = widths.get(i).intValue();
+    }
+    this.literals = literals.toArray(new String[literals.size()]);
+    this.hasYear = hasYear;
+
+    final Calendar calendar = Calendar.getInstance(zone);
+    calendar.add(Calendar.YEAR, -80);
+    this.centuryStart = calendar.getTimeInMillis();
+    this.centuryStartYear = calendar.get(Calendar.YEAR);
+
+    if (compiled) {
+      this.fallback = null;
+    } else {
+      new SimpleDateFormat(pattern); // Validates pattern
+      this.fallback = new ThreadLocal<SimpleDateFormat>() {
+
+        @Override
+        protected SimpleDateFormat initialValue() {
+          final SimpleDateFormat format = new SimpleDateFormat(pattern);
+          format.setTimeZone(zone);
+          return format;
+        }
+      };
+    }
+  }
+
+  /**
+   * Compiles a SimpleDateFormat pattern.
+   *
+   * @throws IllegalArgumentException
+   *           if the pattern is invalid
+   */
+  static TimestampCodec compile(final String pattern) {
+    final List<Integer> fields = new ArrayList<Integer>();
+    final List<Integer> widths = new ArrayList<Integer>();
+    final List<String> literals = new ArrayList<String>();
+    boolean hasYear = false;
+    boolean compiled = true;
+
+    final StringBuilder literal = new StringBuilder();
+    int i = 0;
+    while (i < pattern.length()) {
+      final char c = pattern.charAt(i);
+
+      if (c == '\'') {
+        i++;
+        if (i < pattern.length() && pattern.charAt(i) == '\'') {
+          literal.append('\''); // '' is a quote
+          i++;
+          continue;
+        }
+        while (true) {
+          if (i >= pattern.length()) {
+            throw new IllegalArgumentException("Unterminated quote in " + pattern);
+          }
+          final char q = pattern.charAt(i++);
+          if (q != '\'') {
+            literal.append(q);
+          } else if (i < pattern.length() && pattern.charAt(i) == '\'') {
+            literal.append('\'');
+            i++;
+          } else {
+            break;
+          }
+        }
+        continue;
+      }
+
+      if ((c < 'a' || c > 'z') && (c < 'A' || c > 'Z')) {
+        literal.append(c);
+        i++;
+        continue;
+      }
+
+      int count = 1;
+      while (i + count < pattern.length() && pattern.charAt(i + count) == c) {
+        count++;
+      }
+      i += count;
+
+      final int field = field(c, count);
+      if (c == 'y') {
+        hasYear = true;
+      }
+      if (field == LITERAL) {
+        compiled = false;
+        continue;
+      }
+
+      if (literal.length() > 0) {
+        fields.add(Integer.valueOf(LITERAL));
+        widths.add(Integer.valueOf(literal.length()));
+        literals.add(literal.toString());
+        literal.setLength(0);
+      }
+      fields.add(Integer.valueOf(field));
+      widths.add(Integer.valueOf(count));
+      literals.add(null);
+    }
+
+    if (literal.length() > 0) {
+      fields.add(Integer.valueOf(LITERAL));
+      widths.add(Integer.valueOf(literal.length()));
+      literals.add(literal.toString());
+    }
+
+    return new TimestampCodec(pattern, fields, widths, literals, hasYear, compiled);
+  }
+
+  /**
+   * Returns field of a pattern letter repeated count times, LITERAL if not
+   * supported.
+   */
+  private static int field(final char c, final int count) {
+    switch (c) {
+    case 'y':
+      return count == 4 || count == 2 ? YEAR : LITERAL;
+    case 'M':
+      return count == 2 ? MONTH : LITERAL;
+    case 'd':
+      return count == 2 ? DAY : LITERAL;
+    case 'H':
+      return count == 2 ? HOUR : LITERAL;
+    case 'h':
+      return count == 2 ? HOUR12 : LITERAL;
+    case 'm':
+      return count == 2 ? MINUTE : LITERAL;
+    case 's':
+      return count == 2 ? SECOND : LITERAL;
+    case 'S':
+      return count == 3 ? MILLISECOND : LITERAL;
+    default:
+      return LITERAL;
+    }
+  }
+
+  /**
+   * Returns true if the pattern was compiled, false if SimpleDateFormat is
+   * used.
+   */
+  boolean isCompiled() {
+    return fallback == null;
+  }
+
+  /**
+   * Returns true if the pattern has a year field.
+   */
+  boolean hasYear() {
+    return hasYear;
+  }
+
+  long parse(final CharSequence text) throws ParseException {
+    return parse(text, 0, text.length(), 1970);
+  }
+
+  /**
+   * Parses timestamp from text between from and to.
+   *
+   * @param defaultYear
+   *          year used if the pattern has no year field
+   */
+  long parse(final CharSequence text, final int from, final int to, final int defaultYear) throws ParseException {
+    if (fallback != null) {
+      return parseFallback(text.subSequence(from, to).toString(), defaultYear);
+    }
+
+    int year = hasYear ? 1970 : defaultYear;
+    int month = 1;
+    int day = 1;
+    int hour = 0;
+    int minute = 0;
+    int second = 0;
+    int millisecond = 0;
+    boolean ambiguousYear = false;
+
+    int pos = from;
+    for (int f = 0; f < fields.length; f++) {
+      final int field = fields[f];
+
+      if (field == LITERAL) {
+        final String literal = literals[f];
+        if (to - pos < literal.length()) {
+          throw unparseable(text, from, to, pos);
+        }
+        for (int i = 0; i < literal.length(); i++) {
+          if (text.charAt(pos + i) != literal.charAt(i)) {
+            throw unparseable(text, from, to, pos);
+          }
+        }
+        pos += literal.length();
+        continue;
+      }
+
+      // Adjacent numeric fields have fixed width
+      final boolean fixed = f + 1 < fields.length && fields[f + 1] != LITERAL;
+      final int max = fixed ? widths[f] : MAX_DIGITS;
+      final int start = pos;
+      int value = 0;
+      while (pos < to && pos - start < max) {
+        final char c = text.charAt(pos);
+        if (c < '0' || c > '9') {
+          break;
+        }
+        value = value * 10 + (c - '0');
+        pos++;
+      }
+      if (pos == start || (fixed && pos - start < widths[f])) {
+        throw unparseable(text, from, to, start);
+      }
+
+      switch (field) {
+      case YEAR:
+        year = value;
+        if (widths[f] == 2 && pos - start == 2) {
+          final int ambiguous = centuryStartYear % 100;
+          year = value + (centuryStartYear / 100) * 100 + (value < ambiguous ? 100 : 0);
+          ambiguousYear = value == ambiguous;
+        }
+        break;
+      case MONTH:
+        month = value;
+        break;
+      case DAY:
+        day = value;
+        break;
+      case HOUR:
+        hour = value;
+        break;
+      case HOUR12:
+        hour = value == 12 ? 0 : value;
+        break;
+      case MINUTE:
+        minute = value;
+        break;
+      case SECOND:
+        second = value;
+        break;
+      default:
+        millisecond = value;
+        break;
+      }
+    }
+
+    long time = toMillis(year, month, day, hour, minute, second, millisecond);
+    if (ambiguousYear && time < centuryStart) {
+      time = toMillis(year + 100, month, day, hour, minute, second, millisecond);
+    }
+    return time;
+  }
+
+  /**
+   * Formats timestamp.
+   */
+  String format(final long time) {
+    if (fallback != null) {
+      return fallback.get().format(new Date(time));
+    }
+
+    final long local = time + zone.getOffset(time);
+    final long days = Math.floorDiv(local, DAY_MILLIS);
+    final int millisOfDay = (int) Math.floorMod(local, DAY_MILLIS);
+
+    // Civil date from days since epoch, proleptic Gregorian
+    final long z = days + 719468L;
+    final long era = Math.floorDiv(z, 146097L);
+    final int doe = (int) (z - era * 146097L);
+    final int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    final int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    final int mp = (5 * doy + 2) / 153;
+    final int day = doy - (153 * mp + 2) / 5 + 1;
+    final int month = mp < 10 ? mp + 3 : mp - 9;
+    final long year = yoe + era * 400L + (month <= 2 ? 1 : 0);
+
+    final int hour = millisOfDay / 3600000;
+
+    final StringBuilder out = new StringBuilder(pattern.length() + 4);
+    for (int f = 0; f < fields.length; f++) {
+      switch (fields[f]) {
+      case LITERAL:
+        out.append(literals[f]);
+        break;
+      case YEAR:
+        append(out, widths[f] == 2 ? Math.floorMod(year, 100L) : year, widths[f]);
+        break;
+      case MONTH:
+        append(out, month, 2);
+        break;
+      case DAY:
+        append(out, day, 2);
+        break;
+      case HOUR:
+        append(out, hour, 2);
+        break;
+      case HOUR12:
+        append(out, hour % 12 == 0 ? 12 : hour % 12, 2);
+        break;
+      case MINUTE:
+        append(out, (millisOfDay / 60000) % 60, 2);
+        break;
+      case SECOND:
+        append(out, (millisOfDay / 1000) % 60, 2);
+        break;
+      default:
+        append(out, millisOfDay % 1000, 3);
+        break;
+      }
+    }
+    return out.toString();
+  }
+
+  @Override
+  public String toString() {
+    return pattern;
+  }
+
+  private long parseFallback(final String text, final int defaultYear) throws ParseException {
+    final SimpleDateFormat format = fallback.get();
+    final Date date = format.parse(text);
+    if (hasYear) {
+      return date.getTime();
+    }
+    final Calendar calendar = format.getCalendar();
+    calendar.setTime(date);
+    calendar.set(Calendar.YEAR, defaultYear);
+    return calendar.getTimeInMillis();
+  }
+
+  /**
+   * Converts local time fields into milliseconds. Fields out of range roll
+   * over like in a lenient Calendar.
+   */
+  private long toMillis(final int year, final int month, final int day, final int hour, final int minute,
+      final int second, final int millisecond) {
+    final long y = year + Math.floorDiv(month - 1, 12);
+    final int m = Math.floorMod(month - 1, 12) + 1;
+
+    // Days since epoch of the first day of month, proleptic Gregorian
+    final long ye = m <= 2 ? y - 1 : y;
+    final long era = Math.floorDiv(ye, 400L);
+    final long yoe = ye - era * 400L;
+    final long doy = (153L * (m > 2 ? m - 3 : m + 9) + 2) / 5;
+    final long doe = yoe * 365L + yoe / 4 - yoe / 100 + doy;
+    final long days = era * 146097L + doe - 719468L + (day - 1);
+
+    final long local = days * DAY_MILLIS + hour * 3600000L + minute * 60000L + second * 1000L + millisecond;
+
+    // Offset at the local time, times skipped by daylight saving are moved
+    // forward like Calendar does
+    final int offset = zone.getOffset(local - zone.getRawOffset());
+    return local - zone.getOffset(local - offset);
+  }
+
+  private static void append(final StringBuilder out, final long value, final int width) {
+    if (value < 0) {
+      out.append(value);
+      return;
+    }
+    for (long limit = 10L, i = 1; i < width; i++, limit *= 10L) {
+      if (value < limit) {
+        out.append('0');
+      }
+    }
+    out.append(value);
+  }
+
+  private static ParseException unparseable(final CharSequence text, final int from, final int to, final int pos) {
+    return new ParseException("Unparseable date: \"" + text.subSequence(from, to) + "\"", pos - from);
+  }
+
+}
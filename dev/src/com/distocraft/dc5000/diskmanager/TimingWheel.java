@@ -0,0 +1,147 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel. Items are scheduled to expire at a time and
+ * collected when the wheel is advanced past it. Scheduling and expiring are
+ * O(1); items far in the future are kept on coarser levels and cascaded down
+ * as their time gets closer.
+ *
+ * Each level has 64 slots, a slot of level n spans 64^n ticks. Six levels
+ * cover over 2000 years with 1 second ticks, items beyond that are kept in
+ * the last slot of the top level.
+ *
+ * Not thread safe.
+ */
+final class TimingWheel<T> {
+
+  private static final int BITS = 6;
+
+  private static final int SLOTS = 1 << BITS;
+
+  private static final int MASK = SLOTS - 1;
+
+  private static final int LEVELS = 6;
+
+  private final long tickMillis;
+
+  private final List<List<Slot<T>>> levels = new ArrayList<List<Slot<T>>>(LEVELS);
+
+  // Current tick, everything at or before it has expired
+  private long current;
+
+  private int size = 0;
+
+  /**
+   * @param tickMillis
+   *          resolution of the wheel
+   * @param now
+   *          start time
+   */
+  TimingWheel(final long tickMillis, final long now) {
+    this.tickMillis = tickMillis;
+    this.current = now / tickMillis;
+    for (int l = 0; l < LEVELS; l++) {
+      final List<Slot<T>> slots = new ArrayList<Slot<T>>(SLOTS);
+      for (int i = 0; i < SLOTS; i++) {
+        slots.add(new Slot<T>());
+      }
+      levels.add(slots);
+    }
+  }
+
+  /**
+   * Schedules item to expire at time. Items whose time has already passed
+   * expire on next advance.
+   */
+  void schedule(final T item, final long time) {
+    add(item, Math.max(time / tickMillis + (time % tickMillis > 0 ? 1 : 0), current + 1));
+    size++;
+  }
+
+  /**
+   * Advances the wheel to time and adds the expired items into expired.
+   */
+  void advance(final long now, final List<T> expired) {
+    final long target = now / tickMillis;
+    while (current < target) {
+      current++;
+      final int index = (int) (current & MASK);
+      if (index == 0) {
+        // Lower level wrapped, move items of next slot on upper levels down
+        for (int l = 1; l < LEVELS; l++) {
+          final int upper = (int) ((current >>> (BITS * l)) & MASK);
+          cascade(l, upper);
+          if (upper != 0) {
+            break;
+          }
+        }
+      }
+      final Slot<T> slot = levels.get(0).get(index);
+      size -= slot.items.size();
+      expired.addAll(slot.items);
+      slot.items.clear();
+    }
+  }
+
+  /**
+   * Number of scheduled items.
+   */
+  int size() {
+    return size;
+  }
+
+  private void add(final T item, final long tick) {
+    final long delta = tick - current;
+    for (int l = 0; l < LEVELS; l++) {
+      if (delta < (1L << (BITS * (l + 1)))) {
+        levels.get(l).get((int) ((tick >>> (BITS * l)) & MASK)).add(item, tick);
+        return;
+      }
+    }
+    // Beyond the top level, keep in the slot expiring last
+    final long last = current + (1L << (BITS * LEVELS)) - 1;
+    levels.get(LEVELS - 1).get((int) ((last >>> (BITS * (LEVELS - 1))) & MASK)).add(item, tick);
+  }
+
+  private void cascade(final int level, final int index) {
+    final Slot<T> slot = levels.get(level).get(index);
+    if (slot.items.isEmpty()) {
+      return;
+    }
+    final List<T> items = new ArrayList<T>(slot.items);
+    final long[] ticks = slot.ticks;
+    slot.clear();
+    for (int i = 0; i < items.size(); i++) {
+      add(items.get(i), Math.max(ticks[i], current));
+    }
+  }
+
+  /**
+   * Items of one slot with the tick each expires at.
+   */
+  private static final class Slot<T> {
+
+    final List<T> items = new ArrayList<T>();
+
+    long[] ticks = new long[0];
+
+    void add(final T item, final long tick) {
+      if (ticks.length == items.size()) {
+        final long[] grown = new long[Math.max(4, ticks.length * 2)];
+        System.arraycopy(ticks, 0, grown, 0, ticks.length);
+        ticks = grown;
+      }
+      ticks[items.size()] = tick;
+      items.add(item);
+    }
+
+    void clear() {
+      items.clear();
+      ticks = new long[0];
+    }
+  }
+
+}
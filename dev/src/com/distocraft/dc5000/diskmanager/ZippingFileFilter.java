@@ -1,55 +1,147 @@
 package com.distocraft.dc5000.diskmanager;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.nio.file.Files;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import com.distocraft.dc5000.common.StaticProperties;
 
+/**
+ * File filter implementation that archives files into zip files.
+ *
+ * If diskManager.dir.zipThreads is greater than 1 the selected files are
+ * handed over to that many worker threads, each writing its own archive.
+ * Archives are rotated by maxFilesToArchive and diskManager.dir.maxArchiveMB.
+ * Every rotated archive is finalized and renamed when it is rotated, the last
+ * ones in close().
+ *
+ * Entries that would not compress (already compressed formats, high entropy
+ * data) are stored without compression unless
+ * diskManager.dir.storeIncompressible is false. Compression level and strategy
+ * are set by diskManager.dir.compressionLevel and
+ * diskManager.dir.compressionStrategy. If diskManager.dir.compressionTargetMBs
+ * is set, level and strategy of each new archive are adapted by a
+ * CompressionController to sustain that throughput. This needs archives
+ * rotated by diskManager.dir.maxArchiveMB, a thread writing a single archive
+ * per run never adapts.
+ *
+ * Unless diskManager.dir.journal is false, temporary archives and their
+ * entries are recorded in an ArchiveJournal before source files are deleted.
+ * Archives left unfinished by an earlier run are completed from its journal
+ * when the filter is created, so the files already archived are neither read
+ * nor compressed again.
+ *
+ * Live logs (catalina.out) are not deleted. Each run archives only the bytes
+ * appended since the previous run, offsets archived so far are kept in a
+ * LogCheckpoint saved after the archives have been closed.
+ *
+ * If diskManager.dir.fileList is set, a list of the files in each archive is
+ * written next to it, and the entries of the run are appended to the
+ * ArchiveCatalog of outDir when the filter is closed.
+ */
 class ZippingFileFilter extends DiskManagerFileFilter {
 
-  private static final int BUFFER_SIZE = 16384;
-
   public static final int MAX_ZIP_FILES = 60000;
 
+  public static final int MAX_ZIP_THREADS = 64;
+
+  private static final String TMP_PREFIX = "diskmanager_tmp_";
+
+  // Selected files waiting per zipping thread in parallel mode
+  private static final int QUEUE_PER_THREAD = 256;
+
   private Logger log;
 
   private int maxFilesToArchive;
 
+  // Archive size limit in bytes, 0 if archives are rotated by count only
+  private final long maxArchiveBytes;
+
+  // Directory of archives opened for the next files, changed for each failed
+  // directory of etldata and read by the walking thread only
   protected File targetDir = null;
-  
+
   protected File sourceDir = null;
 
-  private int zipFileCount = 0;
+  private final AtomicInteger zipFileCount = new AtomicInteger(0);
 
   private String archivePrefix;
 
   private int archiveMode;
 
-  private SimpleDateFormat outputFormat;
+  private TimestampCodec outputFormat;
+
+  private int zipThreads = 1;
+
+  private final CompressionClassifier classifier;
+
+  private final int compressionLevel;
+
+  private final int compressionStrategy;
+
+  private final boolean journaling;
+
+  // Adapts compression of new archives, null if compressionLevel is fixed
+  private final CompressionController controller;
+
+  // Configured outDir, targetDir is changed for each failed directory of etldata
+  private final File journalDir;
+
+  // Journal of this run, created when first archive is opened
+  private ArchiveJournal journal = null;
+
+  // Shard used by the calling thread in serial mode
+  private ZipShard serialShard = null;
+
+  // Parallel mode state
+  private final List<ZipShard> shards = new ArrayList<ZipShard>();
+
+  private final List<Thread> workers = new ArrayList<Thread>();
+
+  private BlockingQueue<ZipTask> queue = null;
 
-  private File outFile = null;
+  // Tasks queued and not yet handled by a zipping thread, guarded by queued
+  // which is notified when none are left
+  private final Object queued = new Object();
 
-  private ZipOutputStream out = null;
+  private int pending = 0;
 
-  private int fileCount = 0;
+  // Archive names produced during this run
+  private final Set<String> archiveNames = new HashSet<String>();
 
-  private long minDate = Long.MAX_VALUE;
+  // Live log files, archived from the offset reached by the previous run and not deleted.
+  private String[] liveLogs = {"catalina.out"};
 
-  private long maxDate = Long.MIN_VALUE;
-  
-  // Log files added to this array will be copied to a new file. The newly created file will then be archived and deleted.
-  private String[] logsToCopyThenZip = {"catalina.out"};
+  private final File checkpointFile;
+
+  // Offsets of live logs, loaded when first live log is selected
+  private LogCheckpoint checkpoint = null;
+
+  // Catalog of outDir, null if fileList is not set
+  private final ArchiveCatalog catalog;
+
+  private final String fileListExt;
+
+  // Entries of archives finished during this run, appended to catalog in close()
+  private final List<ArchiveCatalog.Record> listed = new ArrayList<ArchiveCatalog.Record>();
+
+  // Archives of earlier runs overwritten during this run, guarded by listed
+  private final Set<String> replaced = new HashSet<String>();
 
   ZippingFileFilter(Properties conf, Logger log) throws Exception {
     super(conf);
@@ -65,7 +157,32 @@ class ZippingFileFilter extends DiskManagerFileFilter {
     if (this.maxFilesToArchive > MAX_ZIP_FILES){
       this.maxFilesToArchive = MAX_ZIP_FILES;
     }
-    
+
+    maxArchiveBytes = Math.max(0L, parsePropertyAsLong(conf.getProperty("diskManager.dir.maxArchiveMB", "0"),
+        "diskManager.dir.maxArchiveMB")) * 1048576L;
+
+    final long threads = parsePropertyAsLong(conf.getProperty("diskManager.dir.zipThreads", "1"), "diskManager.dir.zipThreads");
+    if (threads > MAX_ZIP_THREADS) {
+      this.zipThreads = MAX_ZIP_THREADS;
+    } else if (threads > 1) {
+      this.zipThreads = (int) threads;
+    }
+
+    classifier = new CompressionClassifier("true".equalsIgnoreCase(conf.getProperty(
+        "diskManager.dir.storeIncompressible", "true")));
+    compressionLevel = ArchiveWriter.parseLevel(conf.getProperty("diskManager.dir.compressionLevel"),
+        ArchiveWriter.DEFAULT_LEVEL);
+    compressionStrategy = ArchiveWriter.parseStrategy(conf.getProperty("diskManager.dir.compressionStrategy"));
+    journaling = "true".equalsIgnoreCase(conf.getProperty("diskManager.dir.journal", "true"));
+
+    final long targetMBs = parsePropertyAsLong(conf.getProperty("diskManager.dir.compressionTargetMBs", "0"),
+        "diskManager.dir.compressionTargetMBs");
+    controller = targetMBs > 0 ? new CompressionController(compressionLevel, compressionStrategy,
+        targetMBs * 1048576L, 0L, zipThreads) : null;
+    if (controller != null && maxArchiveBytes == 0) {
+      log.info("Compression is adapted only when archives are rotated, set diskManager.dir.maxArchiveMB");
+    }
+
     String directory = conf.getProperty("diskManager.dir.outDir");
 
     if (directory.indexOf("${") >= 0) {
@@ -88,7 +205,9 @@ class ZippingFileFilter extends DiskManagerFileFilter {
     if (!targetDir.canWrite()){
       throw new Exception("Cannot write to target directory \"" + targetDir + "\"");
     }
-    
+
+    journalDir = targetDir;
+
     String srcDirectory = conf.getProperty("diskManager.dir.inDir");
 
     if (srcDirectory.indexOf("${") >= 0) {
@@ -111,7 +230,7 @@ class ZippingFileFilter extends DiskManagerFileFilter {
     if (!sourceDir.canWrite()){
       throw new Exception("Cannot write to target directory \"" + sourceDir + "\"");
     }
-    
+
     archiveMode = Integer.parseInt(conf.getProperty("diskManager.dir.archiveMode"));
 
     archivePrefix = conf.getProperty("diskManager.dir.archivePrefix");
@@ -120,12 +239,25 @@ class ZippingFileFilter extends DiskManagerFileFilter {
       throw new Exception("Parameter archivePrefix is invalid");
 	}
 
+    final String fileList = conf.getProperty("diskManager.dir.fileList", "0").trim();
+    catalog = "1".equals(fileList) || "true".equalsIgnoreCase(fileList) ? ArchiveCatalog.of(targetDir, archivePrefix)
+        : null;
+    fileListExt = conf.getProperty("diskManager.dir.fileListExt", ".txt");
+
+    final String checkpointName = conf.getProperty("diskManager.dir.logCheckpoint", "").trim();
+    checkpointFile = checkpointName.length() > 0 ? new File(checkpointName) : new File(targetDir, "diskmanager_"
+        + archivePrefix + ".logs");
+
     try {
-      outputFormat = new SimpleDateFormat(conf.getProperty("diskManager.dir.dateFormatOutput", "yyyyddMMhhmmss"));
+      outputFormat = TimestampCodec.compile(conf.getProperty("diskManager.dir.dateFormatOutput", "yyyyddMMhhmmss"));
     } catch (Exception e) {
       throw new Exception("Paramter dateFormatOuput is invalid", e);
     }
 
+    if (journaling && preview == null) {
+      recover();
+    }
+
   }
 
   public boolean accept(File f) {
@@ -134,133 +266,710 @@ class ZippingFileFilter extends DiskManagerFileFilter {
       return true;
 	}
 
-    BufferedInputStream bi = null;
+    select(f, null);
+
+    return false;
+  }
+
+  @Override
+  boolean accept(final File f, final BasicFileAttributes attrs) {
+
+    if (attrs.isDirectory()) {
+      return true;
+    }
+
+    select(f, attrs);
+
+    return false;
+  }
+
+  /**
+   * Archives file if it is old enough.
+   */
+  private void select(File f, final BasicFileAttributes attrs) {
 
     try {
 
-      long filemod = ageCheck(f);
+      long filemod = ageCheck(f, attrs);
 
       if (filemod < 0){
-        return false;
+        return;
 	  }
-      
-      String now = outputFormat.format(new Date());
-      
-      for(String logFile : logsToCopyThenZip) {
-	      if(f.getName().equalsIgnoreCase(logFile)) {
-	    	  
-	    	  // Coping the original file to a new file with time stamp. 
-	    	  // This will ensure that the original file is nor zipped or deleted. 
-	    	  File copy = new File(sourceDir, f.getName() + "." + now);
-	    	  Files.copy(f.toPath(), copy.toPath());
-	    	  
-	    	  f = copy;
-	    	  break;	    		  
-	      }
+
+      ZipTask task = new ZipTask(targetDir, f, filemod);
+
+      for (String logFile : liveLogs) {
+        if (f.getName().equalsIgnoreCase(logFile)) {
+          task = liveTask(f, attrs == null ? DirectoryWalker.attributes(f.toPath()) : attrs, filemod);
+          break;
+        }
       }
 
-      if (fileCount >= maxFilesToArchive || out == null) {
+      if (task == null) {
+        return;
+      }
 
-        String name = "diskmanager_tmp_" + now + ".zip";
+      if (preview != null) {
+        preview.compress(f, task.length >= 0 ? task.length : attrs == null ? f.length() : attrs.size(),
+            compressionLevel);
+        if (task.length < 0) {
+          removed(f);
+        }
+        return;
+      }
 
-        outFile = new File(targetDir, name);
+      if (zipThreads > 1) {
+        startWorkers();
+        synchronized (queued) {
+          pending++;
+        }
+        try {
+          queue.put(task);
+        } catch (InterruptedException e) {
+          handled();
+          throw e;
+        }
+      } else {
+        if (serialShard == null) {
+          serialShard = new ZipShard(0);
+        }
+        serialShard.add(task);
+      }
 
-        log.fine("Opening Zip file: " + outFile);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.log(Level.INFO, "Interrupted while queueing " + f, e);
+    } catch (Exception e) {
+      log.log(Level.INFO, "Filter failed for " + f, e);
+    }
+  }
+
+  /**
+   * Returns task archiving the part of live log appended since the previous
+   * run, null if nothing has been appended.
+   */
+  private ZipTask liveTask(final File f, final BasicFileAttributes attrs, final long filemod) {
+    if (checkpoint == null) {
+      checkpoint = LogCheckpoint.load(checkpointFile, log);
+    }
+    final long from = checkpoint.start(f, attrs.fileKey(), attrs.size());
+    if (attrs.size() <= from) {
+      log.fine("Nothing appended to " + f + " since offset " + from);
+      return null;
+    }
+    log.fine("Archiving " + f + " from offset " + from + ", " + (attrs.size() - from) + " bytes");
+    return new ZipTask(targetDir, f, filemod, from, attrs.size() - from, attrs.fileKey());
+  }
+
+  /**
+   * Returns total number of bytes read into the archives of all zipping
+   * threads.
+   */
+  @Override
+  long getBytes() {
+    long total = bytes;
+    if (serialShard != null) {
+      total += serialShard.bytes;
+    }
+    for (ZipShard shard : shards) {
+      total += shard.bytes;
+    }
+    return total;
+  }
 
-        out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outFile)));
+  void close() {
 
-        zipFileCount++;
+    stopWorkers();
 
-      }
+    if (serialShard != null) {
+      serialShard.finish();
+    }
+    for (ZipShard shard : shards) {
+      shard.finish();
+    }
 
-      byte data[] = new byte[BUFFER_SIZE];
+    if (catalog != null && (!listed.isEmpty() || !replaced.isEmpty())) {
+      try {
+        catalog.append(listed, replaced);
+        log.fine("Added " + listed.size() + " files into catalog " + catalog.getFile() + ", " + replaced.size()
+            + " replaced archives dropped");
+      } catch (Exception e) {
+        log.log(Level.WARNING, "Unable to update archive catalog " + catalog.getFile(), e);
+      }
+      listed.clear();
+      replaced.clear();
+    }
 
-      bi = new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE);
+    // Holds only ranges of archives closed successfully
+    if (checkpoint != null && preview == null) {
+      try {
+        checkpoint.save();
+      } catch (Exception e) {
+        log.log(Level.WARNING, "Unable to save log checkpoint " + checkpoint.getFile(), e);
+      }
+    }
 
-      ZipEntry entry = new ZipEntry(f.getName());
-      if (out == null){
-    	  out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outFile)));
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (Exception e) {
+        log.log(Level.WARNING, "Error while closing archive journal " + journal.getFile(), e);
       }
-      out.putNextEntry(entry);
-      int count;
+      journal = null;
+    }
 
-      while ((count = bi.read(data, 0, BUFFER_SIZE)) != -1) {
-        bytes += count;
-        out.write(data, 0, count);
+    if (classifier.getStoredEntries() > 0) {
+      log.info(classifier.summary());
+    }
+    if (controller != null) {
+      log.info(controller.summary());
+    }
+  }
+
+  /**
+   * Returns the journal of this run, creating it on first call.
+   */
+  private synchronized ArchiveJournal journal() throws Exception {
+    if (journal == null) {
+      journal = ArchiveJournal.create(journalDir, archivePrefix);
+      log.finest("Created archive journal " + journal.getFile());
+    }
+    return journal;
+  }
+
+  /**
+   * Completes archives left unfinished by earlier runs. Each archive is
+   * truncated after its last journaled entry and closed with central directory
+   * of the journaled entries. Journaled source files still existing unchanged
+   * are deleted, they were archived but the run died before deleting them.
+   */
+  private void recover() {
+    for (File file : ArchiveJournal.list(journalDir, archivePrefix)) {
+      try {
+
+        final ArchiveJournal.Replay replay = ArchiveJournal.replay(file);
+        if (replay == null) {
+          log.fine("Archive journal " + file + " is in use");
+          continue;
+        }
+
+        try {
+          if (replay.isTorn()) {
+            log.info("Archive journal " + file + " ends with incomplete record");
+          }
+          for (ArchiveJournal.Pending pending : replay.getPending()) {
+            recover(pending);
+          }
+          replay.delete();
+        } finally {
+          replay.close();
+        }
+
+      } catch (Exception e) {
+        log.log(Level.WARNING, "Recovery from archive journal " + file + " failed", e);
       }
+    }
+  }
 
-      log.finest("File " + f + " successfully added into zip");
+  private void recover(final ArchiveJournal.Pending pending) throws Exception {
 
-      if (filemod > maxDate){
-        maxDate = filemod;
-	  }
+    if (!pending.archive.exists()) {
+      log.warning("Unfinished archive " + pending.archive + " not found");
+      return;
+    }
 
-      if (filemod < minDate){
-        minDate = filemod;
+    if (pending.entries.isEmpty()) {
+      if (!pending.archive.delete()) {
+        log.warning("Unable to delete empty unfinished archive " + pending.archive);
+      } else {
+        log.info("Deleted empty unfinished archive " + pending.archive);
       }
+      return;
+    }
 
-      boolean succ = f.delete();
-      if (!succ){
-        log.warning("Unable delete file " + f);
-	  }
-      else{
-        log.finest("File " + f + " deleted");
-	  }
+    ArchiveWriter.resume(pending.archive, pending.entries, pending.end, compressionLevel, compressionStrategy,
+        classifier).close();
+
+    int deleted = 0;
+    for (int i = 0; i < pending.sources.size(); i++) {
+      final File source = pending.sources.get(i);
+      if (unchanged(source, pending.entries.get(i).getSize(), pending.times.get(i))) {
+        if (source.delete()) {
+          deleted++;
+        } else {
+          log.warning("Unable delete file " + source);
+        }
+      }
+    }
 
+    log.info("Recovered " + pending.entries.size() + " entries of unfinished archive " + pending.archive + ", "
+        + deleted + " archived files deleted");
+
+    list(rename(pending.archive, pending.minDate, pending.maxDate), pending.entries, pending.times);
+  }
+
+  /**
+   * Returns true if journaled source still is the file archived: it has the
+   * same size and the same time as when its age was checked. A file written
+   * again under the same name after the run died is not deleted.
+   */
+  private boolean unchanged(final File source, final long size, final long filemod) {
+    try {
+      return source.isFile() && source.length() == size && fileTime(source, null) == filemod;
     } catch (Exception e) {
-      log.log(Level.INFO, "Filter failed for " + f, e);
+      log.log(Level.FINE, "Unable to check time of " + source, e);
+      return false;
+    }
+  }
+
+  /**
+   * Writes list of files in finished archive and records them for the
+   * catalog, if fileList is set.
+   *
+   * @param times
+   *          timestamps of the files in the order of entries
+   */
+  private void list(final File archive, final List<ArchiveWriter.Entry> entries, final List<Long> times) {
+    if (catalog == null) {
+      return;
+    }
+
+    final String name = archive.getName();
+    final File listFile = new File(archive.getParentFile(), (name.endsWith(".zip") ? name.substring(0,
+        name.length() - 4) : name) + fileListExt);
+    try {
+      final Writer out = new OutputStreamWriter(new FileOutputStream(listFile), "UTF-8");
+      try {
+        for (ArchiveWriter.Entry entry : entries) {
+          out.write(entry.getName());
+          out.write('\n');
+        }
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Unable to write file list " + listFile, e);
+    }
+
+    final String path = catalog.name(archive);
+    synchronized (listed) {
+      for (int i = 0; i < entries.size(); i++) {
+        final ArchiveWriter.Entry entry = entries.get(i);
+        listed.add(new ArchiveCatalog.Record(entry.getName(), path, entry.getOffset(), entry.getSize(), times.get(i)));
+      }
+    }
+  }
+
+  /**
+   * Starts the zipping threads of parallel mode. Called on first selected
+   * file, so a run that selects nothing starts no threads.
+   */
+  private void startWorkers() {
+    if (queue != null) {
+      return;
+    }
+
+    queue = new ArrayBlockingQueue<ZipTask>(zipThreads * QUEUE_PER_THREAD);
+
+    for (int i = 0; i < zipThreads; i++) {
+      final ZipShard shard = new ZipShard(i + 1);
+      shards.add(shard);
+
+      final Thread worker = new Thread(new Runnable() {
+        public void run() {
+          work(shard);
+        }
+      }, "DiskManager-zip-" + shard.id);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+
+    log.fine("Started " + zipThreads + " zipping threads");
+  }
+
+  /**
+   * Stops the zipping threads after they have drained the queue.
+   */
+  private void stopWorkers() {
+    if (queue == null) {
+      return;
+    }
+
+    try {
+      for (int i = 0; i < workers.size(); i++) {
+        queue.put(ZipTask.END);
+      }
+      for (Thread worker : workers) {
+        worker.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.log(Level.WARNING, "Interrupted while waiting zipping threads to finish", e);
+    }
+
+    workers.clear();
+    queue = null;
+  }
+
+  /**
+   * Main loop of one zipping thread.
+   */
+  private void work(final ZipShard shard) {
+    try {
+      drain(shard);
     } finally {
-      if (f != null) {
+      ArchiveWriter.releaseWorkspace();
+    }
+  }
+
+  private void drain(final ZipShard shard) {
+    while (true) {
+      final ZipTask task;
+      try {
+        task = queue.take();
+      } catch (InterruptedException e) {
+        log.log(Level.WARNING, "Zipping thread " + shard.id + " interrupted", e);
+        return;
+      }
+
+      if (task == ZipTask.END) {
+        return;
+      }
+
+      try {
+        shard.add(task);
+      } catch (Exception e) {
+        log.log(Level.INFO, "Filter failed for " + task.file, e);
+      } finally {
+        handled();
+      }
+    }
+  }
+
+  private void handled() {
+    synchronized (queued) {
+      if (--pending == 0) {
+        queued.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Waits until the zipping threads have handled every queued file, so that
+   * DirectoryWalker sees the files they deleted. Gives up if the threads have
+   * died.
+   */
+  @Override
+  void flush() {
+    synchronized (queued) {
+      while (pending > 0 && working()) {
         try {
-          bi.close();
-        } catch (Exception e) {
+          queued.wait(1000L);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          log.log(Level.INFO, "Interrupted while waiting zipping threads", e);
+          return;
         }
       }
     }
+  }
 
+  private boolean working() {
+    for (Thread worker : workers) {
+      if (worker.isAlive()) {
+        return true;
+      }
+    }
     return false;
   }
 
-  void close() {
+  /**
+   * Formats timestamp using dateFormatOutput.
+   */
+  private String format(final long time) {
+    return outputFormat.format(time);
+  }
+
+  /**
+   * Renames finished temporary archive according to archive mode. Returns the
+   * archive, with the temporary name if renaming failed.
+   */
+  private File rename(final File tmpFile, final long minDate, final long maxDate) {
+    try {
+
+      String targetFilename = "error";
+
+      if (archiveMode == DiskManager.ZIP_CREATIONTIME) {
+
+        targetFilename = archivePrefix + format(minDate) + "-" + format(maxDate);
+
+      } else if (archiveMode == DiskManager.ZIP_MINMAX) {
+
+        targetFilename = archivePrefix + format(System.currentTimeMillis());
+
+      } else if (archiveMode == DiskManager.ZIP_SEQUENCE) {
+
+        targetFilename = archivePrefix + zipFileCount.incrementAndGet();
 
-    if (out != null) {
-      try {
-        out.close();
-      } catch (Exception e) {
       }
+
+      // Several archives of one run may get the same timestamp based name
+      synchronized (archiveNames) {
+        String name = targetFilename;
+        for (int i = 1; !archiveNames.add(name); i++) {
+          name = targetFilename + "_" + i;
+        }
+        targetFilename = name + ".zip";
+      }
+
+      File tfile = new File(tmpFile.getParentFile(), targetFilename);
+
+      if (tfile.exists()){
+        tfile.delete();
+        if (catalog != null) {
+          synchronized (listed) {
+            replaced.add(catalog.name(tfile));
+          }
+        }
+      }
+
+      throttle.op();
+      if (!tmpFile.renameTo(tfile)) {
+        log.warning("Unable to rename zip file " + tmpFile + " to " + tfile);
+      } else {
+        log.fine("Zip file " + tfile + " created");
+        return tfile;
+      }
+    } catch (Exception e) {
+      log.log(Level.WARNING, "Error while renaming zip file", e);
     }
+    return tmpFile;
+  }
 
-    if (null != outFile) {
-      try {
+  /**
+   * File selected for archiving, waiting for a zipping thread.
+   */
+  private static final class ZipTask {
+
+    static final ZipTask END = new ZipTask(null, null, -1L);
+
+    // Directory of the archive, zipping threads never read targetDir
+    final File dir;
 
-        String targetFilename = "error";
+    final File file;
 
-        if (archiveMode == DiskManager.ZIP_CREATIONTIME) {
+    final long filemod;
 
-          targetFilename = archivePrefix + outputFormat.format(new Date(minDate)) + "-"
-              + outputFormat.format(new Date(maxDate)) + ".zip";
+    // Range of a live log, length -1 for a whole file deleted when archived
+    final long from;
 
-        } else if (archiveMode == DiskManager.ZIP_MINMAX) {
+    final long length;
 
-          targetFilename = archivePrefix + outputFormat.format(new Date()) + ".zip";
+    final Object key;
 
-        } else if (archiveMode == DiskManager.ZIP_SEQUENCE) {
+    ZipTask(final File dir, final File file, final long filemod) {
+      this(dir, file, filemod, 0L, -1L, null);
+    }
+
+    ZipTask(final File dir, final File file, final long filemod, final long from, final long length,
+        final Object key) {
+      this.dir = dir;
+      this.file = file;
+      this.filemod = filemod;
+      this.from = from;
+      this.length = length;
+      this.key = key;
+    }
+  }
+
+  /**
+   * Archive written by one thread. Rotated to a new archive after
+   * maxFilesToArchive entries, when the next file would make it larger than
+   * maxArchiveBytes or belongs to another target directory.
+   */
+  private final class ZipShard {
+
+    final int id;
+
+    private File outFile = null;
+
+    private ArchiveWriter out = null;
+
+    private int fileCount = 0;
 
-          targetFilename = archivePrefix + zipFileCount + ".zip";
+    private long minDate = Long.MAX_VALUE;
 
+    private long maxDate = Long.MIN_VALUE;
+
+    // Compression step, input and time of the open archive for the controller
+    private int step = 0;
+
+    private long archiveBytes = 0L;
+
+    private long archiveNanos = 0L;
+
+    // Entries of the open archive and timestamps of their files for fileList
+    private final List<ArchiveWriter.Entry> entries = new ArrayList<ArchiveWriter.Entry>();
+
+    private final List<Long> times = new ArrayList<Long>();
+
+    // Live log ranges of the open archive, checkpointed when it is closed
+    private final List<LogCheckpoint.Range> ranges = new ArrayList<LogCheckpoint.Range>();
+
+    long bytes = 0;
+
+    ZipShard(final int id) {
+      this.id = id;
+    }
+
+    void add(final ZipTask task) throws Exception {
+
+      final File f = task.file;
+      final long filemod = task.filemod;
+      final boolean live = task.length >= 0;
+
+      if (fileCount >= maxFilesToArchive || (out != null && !task.dir.equals(outFile.getParentFile()))
+          || (maxArchiveBytes > 0 && out != null && out.isFull(live ? task.length : f.length(), maxArchiveBytes))) {
+        finish();
+      }
+
+      if (out == null) {
+
+        // Prefix keeps archives of rules writing into the same directory apart
+        String name = TMP_PREFIX + archivePrefix + "_" + format(System.currentTimeMillis()) + (id > 0 ? "_" + id : "")
+            + ".zip";
+
+        outFile = new File(task.dir, name);
+
+        log.fine("Opening Zip file: " + outFile);
+
+        if (controller != null) {
+          step = controller.next();
+          out = new ArchiveWriter(outFile, CompressionController.level(step), controller.strategy(step), classifier);
+        } else {
+          out = new ArchiveWriter(outFile, compressionLevel, compressionStrategy, classifier);
+        }
+        out.setThrottle(throttle);
+
+        if (journaling) {
+          journal().opened(outFile);
+        }
+
+      }
+
+      fileCount++;
+      final long begin = System.nanoTime();
+      final ArchiveWriter.Entry entry;
+      if (live) {
+        final FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+          entry = out.add(in, task.from, task.length, f.getName() + "." + format(System.currentTimeMillis()),
+              System.currentTimeMillis());
+          ranges.add(LogCheckpoint.range(f, task.key, in, task.from + entry.getSize()));
+        } finally {
+          in.close();
         }
+      } else {
+        entry = out.add(f, f.getName(), System.currentTimeMillis());
+      }
+      final long nanos = System.nanoTime() - begin;
+      stats.compress(nanos);
+      stats.archived(entry.getSize());
+      archiveNanos += nanos;
+      archiveBytes += entry.getSize();
+      bytes += entry.getSize();
+
+      if (journaling) {
+        journal().committed(outFile, entry, out.size(), filemod, live ? null : f);
+      }
+
+      if (catalog != null) {
+        entries.add(entry);
+        times.add(filemod);
+      }
+
+      log.finest("File " + f + " successfully added into zip");
+
+      if (filemod > maxDate){
+        maxDate = filemod;
+      }
 
-        File tfile = new File(targetDir, targetFilename);
+      if (filemod < minDate){
+        minDate = filemod;
+      }
 
-        if (tfile.exists()){
-          tfile.delete();
-		}
+      if (live) {
+        log.finest("Live log " + f + " archived up to offset " + (task.from + entry.getSize()));
+        return;
+      }
 
-        outFile.renameTo(tfile);
-        out=null;
+      boolean succ = unlink(f);
+      if (!succ){
+        log.warning("Unable delete file " + f);
+      }
+      else{
+        log.finest("File " + f + " deleted");
+      }
+    }
+
+    /**
+     * Closes and renames the archive currently open, if any.
+     */
+    void finish() {
+
+      if (out == null) {
+        return;
+      }
+
+      boolean closed = false;
+      try {
+        out.close();
+        closed = true;
+        if (controller != null) {
+          controller.finished(step, archiveBytes, out.size(), archiveNanos);
+        }
       } catch (Exception e) {
-        log.log(Level.WARNING, "Error while renaming zip file", e);
+        log.log(Level.WARNING, "Error while closing zip file " + outFile, e);
+      }
+
+      if (closed) {
+        for (LogCheckpoint.Range range : ranges) {
+          checkpoint.archived(range);
+        }
+      } else if (!ranges.isEmpty()) {
+        log.warning(ranges.size() + " live log ranges of zip file " + outFile + " are archived again by next run");
       }
+
+      if (journaling && !closed) {
+        log.warning("Zip file " + outFile + " left to be completed from archive journal");
+      } else {
+        final File archive = rename(outFile, minDate, maxDate);
+        if (journaling && archive == outFile) {
+          log.warning("Zip file " + outFile + " left to be renamed from archive journal");
+        } else {
+          // Done only when renamed, recovery completes and renames it otherwise
+          if (journaling) {
+            try {
+              journal().done(outFile);
+            } catch (Exception e) {
+              log.log(Level.WARNING, "Unable to journal zip file " + archive, e);
+            }
+          }
+          list(archive, entries, times);
+        }
+      }
+
+      entries.clear();
+      times.clear();
+      ranges.clear();
+      out = null;
+      outFile = null;
+      fileCount = 0;
+      archiveBytes = 0L;
+      archiveNanos = 0L;
+      minDate = Long.MAX_VALUE;
+      maxDate = Long.MIN_VALUE;
     }
   }
 
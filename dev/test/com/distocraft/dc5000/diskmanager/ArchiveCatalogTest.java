@@ -0,0 +1,229 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArchiveCatalogTest {
+
+  private static final long HOUR = 3600000L;
+
+  private File dir;
+
+  private ArchiveCatalog catalog;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File("CatalogDir");
+    dir.mkdirs();
+    catalog = ArchiveCatalog.of(dir, "arch");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * Files are found by name pattern and time range from all runs.
+   */
+  @Test
+  public void testFind() throws Exception {
+    catalog.append(run("arch1.zip", 0L, "A20260101.0000_node1.xml", "A20260101.0000_node2.xml", "B20260101.xml"));
+    catalog.append(run("arch2.zip", 2 * HOUR, "A20260101.0200_node1.xml", "A20260101.0200_node2.xml"));
+    assertEquals(2, catalog.getSegments());
+
+    List<ArchiveCatalog.Record> found = catalog.find("A20260101\\..*_node1\\.xml", Long.MIN_VALUE, Long.MAX_VALUE);
+    assertEquals(2, found.size());
+    assertEquals("A20260101.0000_node1.xml", found.get(0).name);
+    assertEquals("arch1.zip", found.get(0).archive);
+    assertEquals("arch2.zip", found.get(1).archive);
+
+    found = catalog.find(null, HOUR, 3 * HOUR);
+    assertEquals(2, found.size());
+    assertEquals("arch2.zip", found.get(0).archive);
+
+    found = catalog.find("B.*|.*0200_node2.*", Long.MIN_VALUE, Long.MAX_VALUE);
+    assertEquals(2, found.size());
+
+    assertTrue(catalog.find("C.*", Long.MIN_VALUE, Long.MAX_VALUE).isEmpty());
+  }
+
+  @Test
+  public void testLiteralPrefix() throws Exception {
+    assertEquals("A20260101.", ArchiveCatalog.literalPrefix("A20260101\\..*"));
+    assertEquals("A2026", ArchiveCatalog.literalPrefix("A20260?"));
+    assertEquals("A", ArchiveCatalog.literalPrefix("A\\d+"));
+    assertEquals("", ArchiveCatalog.literalPrefix("A.*|B.*"));
+    assertEquals("", ArchiveCatalog.literalPrefix(".*xml"));
+  }
+
+  /**
+   * Segment left incomplete by a crash is ignored and overwritten.
+   */
+  @Test
+  public void testTornSegment() throws Exception {
+    catalog.append(run("arch1.zip", 0L, "a", "b"));
+    final long length = catalog.getFile().length();
+    catalog.append(run("arch2.zip", 0L, "c"));
+
+    final RandomAccessFile raf = new RandomAccessFile(catalog.getFile(), "rw");
+    raf.setLength(catalog.getFile().length() - 3);
+    raf.close();
+    assertEquals(1, catalog.getSegments());
+    assertEquals(2, catalog.find(null, Long.MIN_VALUE, Long.MAX_VALUE).size());
+
+    catalog.append(run("arch3.zip", 0L, "d"));
+    assertEquals(2, catalog.getSegments());
+    assertTrue(catalog.getFile().length() > length);
+    assertEquals(3, catalog.find(null, Long.MIN_VALUE, Long.MAX_VALUE).size());
+  }
+
+  /**
+   * Segments are merged when there are too many, entries of deleted archives
+   * are dropped.
+   */
+  @Test
+  public void testCompaction() throws Exception {
+    for (int i = 0; i < ArchiveCatalog.MAX_SEGMENTS; i++) {
+      new File(dir, "arch" + i + ".zip").createNewFile();
+      catalog.append(run("arch" + i + ".zip", i * HOUR, "f" + i));
+    }
+    assertEquals(ArchiveCatalog.MAX_SEGMENTS, catalog.getSegments());
+    new File(dir, "arch0.zip").delete();
+
+    catalog.append(run("arch99.zip", 0L, "g"));
+    assertEquals(1, catalog.getSegments());
+    assertEquals(ArchiveCatalog.MAX_SEGMENTS, catalog.find(null, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    assertTrue(catalog.find("f0", Long.MIN_VALUE, Long.MAX_VALUE).isEmpty());
+  }
+
+  /**
+   * Workers of one JVM append to the same catalog through instances of their
+   * own.
+   */
+  @Test
+  public void testConcurrentAppend() throws Exception {
+    final List<Thread> threads = new ArrayList<Thread>();
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    for (int t = 0; t < 4; t++) {
+      final int id = t;
+      threads.add(new Thread(new Runnable() {
+        public void run() {
+          try {
+            final ArchiveCatalog own = ArchiveCatalog.of(new File(dir.getPath()), "arch");
+            for (int i = 0; i < 3; i++) {
+              own.append(ArchiveCatalogTest.run("arch" + id + "_" + i + ".zip", 0L, "f" + id + "_" + i));
+            }
+          } catch (Throwable e) {
+            failures.add(e);
+          }
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertEquals(12, catalog.find(null, Long.MIN_VALUE, Long.MAX_VALUE).size());
+  }
+
+  /**
+   * Entries of an archive overwritten by a later run are dropped.
+   */
+  @Test
+  public void testReplaced() throws Exception {
+    new File(dir, "arch1.zip").createNewFile();
+    new File(dir, "arch2.zip").createNewFile();
+    catalog.append(run("arch1.zip", 0L, "a", "b"));
+    catalog.append(run("arch2.zip", 0L, "c"));
+
+    catalog.append(run("arch1.zip", HOUR, "d"), Collections.singleton("arch1.zip"));
+    assertEquals(1, catalog.getSegments());
+    final List<ArchiveCatalog.Record> found = catalog.find(null, Long.MIN_VALUE, Long.MAX_VALUE);
+    assertEquals(2, found.size());
+    assertEquals("c", found.get(0).name);
+    assertEquals("d", found.get(1).name);
+  }
+
+  /**
+   * Archive outside the catalog directory, like one in a failed directory of
+   * etldata, is recorded with its absolute path.
+   */
+  @Test
+  public void testArchiveElsewhere() throws Exception {
+    final File failed = new File(dir, "failed");
+    failed.mkdir();
+    try {
+      final File archive = new File(failed, "arch0.zip");
+      archive.createNewFile();
+      assertEquals("arch1.zip", catalog.name(new File(dir, "arch1.zip")));
+      assertEquals(archive.getAbsolutePath(), catalog.name(archive));
+
+      // Kept when segments are merged
+      for (int i = 0; i <= ArchiveCatalog.MAX_SEGMENTS; i++) {
+        catalog.append(run(catalog.name(archive), 0L, "f" + i));
+      }
+      assertEquals(1, catalog.getSegments());
+      final List<ArchiveCatalog.Record> found = catalog.find(null, Long.MIN_VALUE, Long.MAX_VALUE);
+      assertEquals(ArchiveCatalog.MAX_SEGMENTS + 1, found.size());
+      assertEquals(archive.getAbsoluteFile(), catalog.archive(found.get(0)));
+
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(0, ArchiveCatalog.run(new String[] { dir.getPath(), "-name", "f1" }, new PrintStream(out),
+          new PrintStream(new ByteArrayOutputStream())));
+      assertTrue(out.toString(), out.toString().contains(archive.getAbsolutePath() + " 0 "));
+    } finally {
+      TestFiles.delete(failed);
+    }
+  }
+
+  @Test
+  public void testCommandLine() throws Exception {
+    new File(dir, "arch1.zip").createNewFile();
+    catalog.append(run("arch1.zip", 0L, "A1.xml", "A2.xml"));
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final ByteArrayOutputStream err = new ByteArrayOutputStream();
+    assertEquals(0, ArchiveCatalog.run(new String[] { dir.getPath(), "-name", "A2.*" }, new PrintStream(out),
+        new PrintStream(err)));
+    final String printed = out.toString();
+    assertTrue(printed, printed.trim().endsWith(" A2.xml"));
+    assertTrue(printed, printed.contains("arch1.zip"));
+    assertTrue(err.toString().startsWith("1 files found"));
+
+    assertEquals(2, ArchiveCatalog.run(new String[] { dir.getPath(), "-size" }, new PrintStream(out),
+        new PrintStream(err)));
+  }
+
+  private static List<ArchiveCatalog.Record> run(final String archive, final long time, final String... names) {
+    final List<ArchiveCatalog.Record> records = new ArrayList<ArchiveCatalog.Record>();
+    long offset = 0L;
+    for (String name : names) {
+      records.add(new ArchiveCatalog.Record(name, archive, offset, 100L, time));
+      offset += 150L;
+    }
+    return records;
+  }
+
+}
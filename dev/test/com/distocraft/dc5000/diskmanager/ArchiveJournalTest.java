@@ -0,0 +1,153 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArchiveJournalTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File("ArchiveJournalDir");
+    dir.mkdir();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * Archive of a run that died while writing its third entry is restored with
+   * the two journaled entries.
+   */
+  @Test
+  public void testResumeUnfinishedArchive() throws Exception {
+    final File archive = new File(dir, "diskmanager_tmp_1.zip");
+    final ArchiveJournal journal = ArchiveJournal.create(dir, "arch");
+    final ArchiveWriter out = new ArchiveWriter(archive, ArchiveWriter.DEFAULT_LEVEL, Deflater.DEFAULT_STRATEGY, null);
+    journal.opened(archive);
+
+    for (int i = 0; i < 2; i++) {
+      final File src = write("A" + i + ".xml", 1000 + i);
+      final ArchiveWriter.Entry entry = out.add(src, src.getName(), 1388534400000L);
+      journal.committed(archive, entry, out.size(), 1388534400000L + i, src);
+      if (i == 0) {
+        src.delete();
+      }
+    }
+    final File third = write("A2.xml", 5000);
+    out.add(third, third.getName(), 1388534400000L);
+
+    // Process dies: no central directory, no record of the third entry
+    out.abort();
+    journal.close();
+    append(journal.getFile(), new byte[] { 0, 0, 1 });
+
+    assertEquals(1, ArchiveJournal.list(dir, "arch").length);
+
+    final ArchiveJournal.Replay replay = ArchiveJournal.replay(journal.getFile());
+    assertTrue(replay.isTorn());
+    final List<ArchiveJournal.Pending> pending = replay.getPending();
+    assertEquals(1, pending.size());
+    assertEquals(2, pending.get(0).entries.size());
+    assertEquals(1388534400000L, pending.get(0).minDate);
+    assertEquals(1388534400001L, pending.get(0).maxDate);
+    assertEquals(new File(dir, "A1.xml"), pending.get(0).sources.get(1));
+
+    ArchiveWriter.resume(archive, pending.get(0).entries, pending.get(0).end, ArchiveWriter.DEFAULT_LEVEL,
+        Deflater.DEFAULT_STRATEGY, null).close();
+    replay.delete();
+
+    assertEquals(0, ArchiveJournal.list(dir, "arch").length);
+
+    final ZipFile zf = new ZipFile(archive);
+    try {
+      assertEquals(2, zf.size());
+      assertEquals(1000, zf.getEntry("A0.xml").getSize());
+      assertEquals(1001, zf.getEntry("A1.xml").getSize());
+      assertNull(zf.getEntry("A2.xml"));
+    } finally {
+      zf.close();
+    }
+  }
+
+  /**
+   * Journal of a run that finished its archives is removed on close.
+   */
+  @Test
+  public void testFinishedJournalRemoved() throws Exception {
+    final File archive = new File(dir, "diskmanager_tmp_2.zip");
+    final ArchiveJournal journal = ArchiveJournal.create(dir, "arch");
+    journal.opened(archive);
+    journal.done(archive);
+    journal.close();
+
+    assertFalse(journal.getFile().exists());
+  }
+
+  /**
+   * Journal of one prefix is not listed for a prefix it starts with.
+   */
+  @Test
+  public void testJournalPrefix() throws Exception {
+    final ArchiveJournal journal = ArchiveJournal.create(dir, "arch_b");
+    try {
+      assertEquals(1, ArchiveJournal.list(dir, "arch_b").length);
+      assertEquals(0, ArchiveJournal.list(dir, "arch").length);
+    } finally {
+      journal.close();
+    }
+  }
+
+  /**
+   * Journal of an active run is not replayed.
+   */
+  @Test
+  public void testActiveJournalSkipped() throws Exception {
+    final ArchiveJournal journal = ArchiveJournal.create(dir, "arch");
+    try {
+      assertNull(ArchiveJournal.replay(journal.getFile()));
+    } finally {
+      journal.close();
+    }
+  }
+
+  private File write(final String name, final int len) throws Exception {
+    final File f = new File(dir, name);
+    final FileOutputStream out = new FileOutputStream(f);
+    for (int i = 0; i < len; i++) {
+      out.write('a' + (i % 11));
+    }
+    out.close();
+    return f;
+  }
+
+  private static void append(final File f, final byte[] data) throws Exception {
+    final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    try {
+      raf.seek(raf.length());
+      raf.write(data);
+    } finally {
+      raf.close();
+    }
+  }
+
+}
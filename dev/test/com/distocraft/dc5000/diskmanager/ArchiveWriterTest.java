@@ -0,0 +1,218 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArchiveWriterTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File("ArchiveWriterDir");
+    dir.mkdir();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * Archive written with ArchiveWriter is readable both through the central
+   * directory (ZipFile) and sequentially (ZipInputStream).
+   */
+  @Test
+  public void testReadableArchive() throws Exception {
+    final byte[] text = new byte[200000];
+    for (int i = 0; i < text.length; i++) {
+      text[i] = (byte) ('a' + (i % 17));
+    }
+    final byte[] random = new byte[100000];
+    new Random(3).nextBytes(random);
+
+    final File textFile = write("A20140101.0000-0015.xml", text);
+    final File randomFile = write("B.bin", random);
+    final File emptyFile = write("C.empty", new byte[0]);
+
+    final File zip = new File(dir, "test.zip");
+    final ArchiveWriter out = new ArchiveWriter(zip, ArchiveWriter.DEFAULT_LEVEL, Deflater.DEFAULT_STRATEGY,
+        new CompressionClassifier(true));
+    final ArchiveWriter.Entry a = out.add(textFile, textFile.getName(), System.currentTimeMillis());
+    final ArchiveWriter.Entry b = out.add(randomFile, randomFile.getName(), System.currentTimeMillis());
+    out.add(emptyFile, "\u00e4\u00f6.empty", System.currentTimeMillis());
+    out.close();
+
+    assertEquals(0L, a.getOffset());
+    assertEquals(ArchiveWriter.DEFLATED, a.getMethod());
+    assertTrue(a.getCompressedSize() < text.length);
+    assertEquals(ArchiveWriter.STORED, b.getMethod());
+    assertEquals(zip.length(), out.size());
+
+    final ZipFile zf = new ZipFile(zip);
+    try {
+      assertEquals(3, zf.size());
+      assertArrayEquals(text, read(zf.getInputStream(zf.getEntry(textFile.getName()))));
+      assertArrayEquals(random, read(zf.getInputStream(zf.getEntry(randomFile.getName()))));
+      assertEquals(0L, zf.getEntry("\u00e4\u00f6.empty").getSize());
+    } finally {
+      zf.close();
+    }
+
+    final ZipInputStream zin = new ZipInputStream(new FileInputStream(zip));
+    try {
+      assertEquals(textFile.getName(), zin.getNextEntry().getName());
+      assertArrayEquals(text, read(zin));
+      assertEquals(randomFile.getName(), zin.getNextEntry().getName());
+      assertArrayEquals(random, read(zin));
+      assertEquals("\u00e4\u00f6.empty", zin.getNextEntry().getName());
+      assertNull(zin.getNextEntry());
+    } finally {
+      zin.close();
+    }
+  }
+
+  /**
+   * Range of a file is archived as its own entry.
+   */
+  @Test
+  public void testAddRange() throws Exception {
+    final File src = write("catalina.out", "first line\nsecond line\n".getBytes());
+
+    final File zip = new File(dir, "range.zip");
+    final ArchiveWriter out = new ArchiveWriter(zip, ArchiveWriter.FAST_LEVEL, Deflater.DEFAULT_STRATEGY, null);
+    final FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+    out.add(in, 11L, 100L, "catalina.out.1", System.currentTimeMillis());
+    in.close();
+    out.close();
+
+    final ZipFile zf = new ZipFile(zip);
+    try {
+      assertEquals("second line\n", new String(read(zf.getInputStream(zf.getEntry("catalina.out.1")))));
+    } finally {
+      zf.close();
+    }
+  }
+
+  /**
+   * More than 65535 entries need zip64 end of central directory.
+   */
+  @Test
+  public void testZip64EntryCount() throws Exception {
+    final File src = write("small.txt", "x".getBytes());
+    final int count = 70000;
+
+    final File zip = new File(dir, "many.zip");
+    final ArchiveWriter out = new ArchiveWriter(zip, ArchiveWriter.FAST_LEVEL, Deflater.DEFAULT_STRATEGY, null);
+    for (int i = 0; i < count; i++) {
+      out.add(src, "f" + i, System.currentTimeMillis());
+    }
+    out.close();
+
+    final ZipFile zf = new ZipFile(zip);
+    try {
+      assertEquals(count, zf.size());
+      int n = 0;
+      for (Enumeration<? extends ZipEntry> e = zf.entries(); e.hasMoreElements(); e.nextElement()) {
+        n++;
+      }
+      assertEquals(count, n);
+      assertEquals("x", new String(read(zf.getInputStream(zf.getEntry("f69999")))));
+    } finally {
+      zf.close();
+    }
+  }
+
+  /**
+   * Failed entry is rolled back and the archive stays valid.
+   */
+  @Test
+  public void testFailedEntryRollsBack() throws Exception {
+    final File src = write("ok.txt", "ok".getBytes());
+
+    final File zip = new File(dir, "rollback.zip");
+    final ArchiveWriter out = new ArchiveWriter(zip, ArchiveWriter.DEFAULT_LEVEL, Deflater.DEFAULT_STRATEGY, null);
+    out.add(src, "ok.txt", System.currentTimeMillis());
+    final long size = out.size();
+    try {
+      out.add(dir, "directory", System.currentTimeMillis());
+      fail("Archiving a directory should fail");
+    } catch (Exception e) {
+      // Expected
+    }
+    assertEquals(size, out.size());
+    out.add(src, "ok2.txt", System.currentTimeMillis());
+    out.close();
+
+    final ZipFile zf = new ZipFile(zip);
+    try {
+      assertEquals(2, zf.size());
+      assertEquals("ok", new String(read(zf.getInputStream(zf.getEntry("ok2.txt")))));
+    } finally {
+      zf.close();
+    }
+  }
+
+  /**
+   * Archive is full when the next file, compressed like the entries so far,
+   * would exceed the limit. Empty archive is never full.
+   */
+  @Test
+  public void testFull() throws Exception {
+    final byte[] random = new byte[100000];
+    new Random(5).nextBytes(random);
+    final File randomFile = write("R.bin", random);
+
+    final ArchiveWriter out = new ArchiveWriter(new File(dir, "full.zip"), ArchiveWriter.DEFAULT_LEVEL,
+        Deflater.DEFAULT_STRATEGY, new CompressionClassifier(true));
+    try {
+      assertFalse(out.isFull(10000000L, 1000L));
+      out.add(randomFile, randomFile.getName(), System.currentTimeMillis());
+      assertTrue(out.isFull(random.length, 2 * random.length));
+      assertFalse(out.isFull(random.length, 3 * random.length));
+    } finally {
+      out.close();
+    }
+  }
+
+  private File write(final String name, final byte[] data) throws Exception {
+    final File f = new File(dir, name);
+    final FileOutputStream out = new FileOutputStream(f);
+    out.write(data);
+    out.close();
+    return f;
+  }
+
+  private static byte[] read(final InputStream in) throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final byte[] buf = new byte[4096];
+    int count;
+    while ((count = in.read(buf)) != -1) {
+      bytes.write(buf, 0, count);
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,144 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressionClassifierTest {
+
+  private final int[] histogram = new int[256];
+
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File("ClassifierDir");
+    dir.mkdir();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * Gzipped data is recognized from magic bytes even if the sample is short.
+   */
+  @Test
+  public void testStoresCompressedFormat() throws Exception {
+    final byte[] gz = gzip("A20140101.0000-0015_SubNetwork=ONRM_RootMo".getBytes());
+
+    assertTrue(new CompressionClassifier(true).shouldStore(gz, gz.length, histogram));
+  }
+
+  @Test
+  public void testStoresRandomData() throws Exception {
+    final byte[] data = new byte[CompressionClassifier.SAMPLE_SIZE];
+    new Random(1).nextBytes(data);
+
+    assertTrue(new CompressionClassifier(true).shouldStore(data, data.length, histogram));
+  }
+
+  @Test
+  public void testDeflatesText() throws Exception {
+    final byte[] data = xml(CompressionClassifier.SAMPLE_SIZE);
+
+    assertFalse(new CompressionClassifier(true).shouldStore(data, data.length, histogram));
+  }
+
+  @Test
+  public void testDisabledAlwaysDeflates() throws Exception {
+    final byte[] data = new byte[CompressionClassifier.SAMPLE_SIZE];
+    new Random(1).nextBytes(data);
+
+    assertFalse(new CompressionClassifier(false).shouldStore(data, data.length, histogram));
+  }
+
+  /**
+   * Stored and deflated entries are both readable and counted.
+   */
+  @Test
+  public void testWriteMixedArchive() throws Exception {
+    final byte[] text = xml(100000);
+    final byte[] random = new byte[50000];
+    new Random(2).nextBytes(random);
+
+    final File textFile = write("A.xml", text);
+    final File gzFile = write("B.xml.gz", gzip(random));
+
+    final CompressionClassifier classifier = new CompressionClassifier(true);
+    final File zip = new File(dir, "test.zip");
+    final ArchiveWriter out = new ArchiveWriter(zip, ArchiveWriter.DEFAULT_LEVEL, Deflater.DEFAULT_STRATEGY, classifier);
+    out.add(textFile, textFile.getName(), System.currentTimeMillis());
+    out.add(gzFile, gzFile.getName(), System.currentTimeMillis());
+    out.close();
+
+    assertEquals(1, classifier.getStoredEntries());
+    assertEquals(gzFile.length(), classifier.getStoredBytes());
+    assertEquals(1, classifier.getDeflatedEntries());
+    assertEquals(text.length, classifier.getDeflatedBytes());
+
+    final ZipFile zf = new ZipFile(zip);
+    try {
+      assertEquals(ZipEntry.DEFLATED, zf.getEntry("A.xml").getMethod());
+      assertEquals(ZipEntry.STORED, zf.getEntry("B.xml.gz").getMethod());
+      assertArrayEquals(text, read(zf.getInputStream(zf.getEntry("A.xml"))));
+      assertArrayEquals(gzip(random), read(zf.getInputStream(zf.getEntry("B.xml.gz"))));
+    } finally {
+      zf.close();
+    }
+  }
+
+  private File write(final String name, final byte[] data) throws Exception {
+    final File f = new File(dir, name);
+    final FileOutputStream out = new FileOutputStream(f);
+    out.write(data);
+    out.close();
+    return f;
+  }
+
+  private static byte[] xml(final int len) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; sb.length() < len; i++) {
+      sb.append("<mv><moid>ManagedElement=1,Cell=").append(i).append("</moid><r>").append(i * 7).append("</r></mv>\n");
+    }
+    return sb.substring(0, len).getBytes();
+  }
+
+  private static byte[] gzip(final byte[] data) throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(data);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static byte[] read(final InputStream in) throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final byte[] buf = new byte[4096];
+    int count;
+    while ((count = in.read(buf)) != -1) {
+      bytes.write(buf, 0, count);
+    }
+    in.close();
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,101 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+public class CompressionControllerTest {
+
+  private static final long MB = 1048576L;
+
+  /**
+   * Too slow archives make the next ones faster, fast ones smaller. Step is
+   * changed only after an archive written with it has finished.
+   */
+  @Test
+  public void testAdapts() throws Exception {
+    final CompressionController controller = new CompressionController(6, Deflater.DEFAULT_STRATEGY, 100 * MB, 0L, 2);
+
+    int step = controller.next();
+    assertEquals(6, CompressionController.level(step));
+
+    // 30 MB/s per writer, 50 needed
+    controller.finished(step, 30 * MB, 10 * MB, 1000000000L);
+    step = controller.next();
+    assertEquals(5, CompressionController.level(step));
+    assertEquals(step, controller.next());
+
+    // 20 MB/s, less than half of needed
+    controller.finished(step, 20 * MB, 8 * MB, 1000000000L);
+    step = controller.next();
+    assertEquals(3, CompressionController.level(step));
+
+    // 80 MB/s, headroom to compress harder
+    controller.finished(step, 80 * MB, 30 * MB, 1000000000L);
+    step = controller.next();
+    assertEquals(4, CompressionController.level(step));
+
+    assertTrue(controller.summary(), controller.summary().contains("level 6: 1 archives 30MB 60MB/s ratio 33%"));
+  }
+
+  /**
+   * Smaller step that gains no ratio is left for the faster one and not used
+   * again.
+   */
+  @Test
+  public void testNoGain() throws Exception {
+    final CompressionController controller = new CompressionController(6, Deflater.DEFAULT_STRATEGY, 100 * MB, 0L, 1);
+
+    int step = controller.next();
+    controller.finished(step, 200 * MB, 50 * MB, 1000000000L);
+    step = controller.next();
+    assertEquals(7, CompressionController.level(step));
+
+    // Same ratio, slower
+    controller.finished(step, 150 * MB, 37 * MB, 1000000000L);
+    step = controller.next();
+    assertEquals(6, CompressionController.level(step));
+
+    controller.finished(step, 200 * MB, 50 * MB, 1000000000L);
+    assertEquals(step, controller.next());
+  }
+
+  /**
+   * Fastest steps are level 0 and Huffman coding only.
+   */
+  @Test
+  public void testFastestSteps() throws Exception {
+    final CompressionController controller = new CompressionController(1, Deflater.FILTERED, 100 * MB, 0L, 1);
+    int step = controller.next();
+    assertEquals(Deflater.FILTERED, controller.strategy(step));
+
+    controller.finished(step, 80 * MB, 30 * MB, 1000000000L);
+    step = controller.next();
+    assertEquals(Deflater.HUFFMAN_ONLY, controller.strategy(step));
+
+    controller.finished(step, 10 * MB, 8 * MB, 1000000000L);
+    step = controller.next();
+    assertEquals(Deflater.NO_COMPRESSION, CompressionController.level(step));
+  }
+
+  /**
+   * With a budget the rate needed comes from the work left.
+   */
+  @Test
+  public void testBudget() throws Exception {
+    final CompressionController controller = new CompressionController(9, Deflater.DEFAULT_STRATEGY, 0L, 60000L, 1);
+    controller.setUnits(100);
+
+    int step = controller.next();
+    controller.finished(step, 10 * MB, 2 * MB, 1000000000L);
+    assertEquals(step, controller.next());
+
+    // 99 units of 10 MB left in under a minute needs 16.5 MB/s, 10 measured
+    controller.unitDone();
+    step = controller.next();
+    assertEquals(8, CompressionController.level(step));
+  }
+
+}
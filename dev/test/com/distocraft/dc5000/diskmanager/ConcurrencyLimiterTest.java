@@ -0,0 +1,113 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+
+  /**
+   * Limit grows by one per window while latency stays low and the limit is
+   * used, and stops at max.
+   */
+  @Test
+  public void testAdditiveIncrease() throws Exception {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 5, 0L);
+    assertEquals(2, limiter.getLimit());
+
+    for (int w = 0; w < 10; w++) {
+      window(limiter, limiter.getLimit(), 100000L);
+    }
+    assertEquals(5, limiter.getLimit());
+  }
+
+  /**
+   * Limit is not increased if it was not reached.
+   */
+  @Test
+  public void testNotSaturated() throws Exception {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 5, 0L);
+
+    for (int w = 0; w < 5; w++) {
+      window(limiter, 1, 100000L);
+    }
+    assertEquals(2, limiter.getLimit());
+  }
+
+  /**
+   * Limit is halved when latency grows over twice the lowest, but not below
+   * min.
+   */
+  @Test
+  public void testMultiplicativeDecrease() throws Exception {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(3, 32, 0L);
+    for (int w = 0; w < 40; w++) {
+      window(limiter, limiter.getLimit(), 100000L);
+    }
+    assertEquals(32, limiter.getLimit());
+
+    window(limiter, limiter.getLimit(), 300000L);
+    assertEquals(16, limiter.getLimit());
+    window(limiter, limiter.getLimit(), 300000L);
+    assertEquals(8, limiter.getLimit());
+    window(limiter, limiter.getLimit(), 300000L);
+    window(limiter, limiter.getLimit(), 300000L);
+    assertEquals(3, limiter.getLimit());
+
+    assertTrue(limiter.summary(), limiter.summary().startsWith("Concurrency 3 at end"));
+  }
+
+  /**
+   * Configured target is used instead of the lowest latency.
+   */
+  @Test
+  public void testTarget() throws Exception {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 8, 1000000L);
+    for (int w = 0; w < 3; w++) {
+      window(limiter, limiter.getLimit(), 900000L);
+    }
+    assertEquals(4, limiter.getLimit());
+    window(limiter, limiter.getLimit(), 1100000L);
+    assertEquals(2, limiter.getLimit());
+  }
+
+  /**
+   * Threads over the limit wait.
+   */
+  @Test
+  public void testWaits() throws Exception {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 0L);
+    limiter.acquire();
+
+    final Thread waiter = new Thread() {
+      public void run() {
+        limiter.acquire();
+        limiter.release(1L);
+      }
+    };
+    waiter.start();
+    waiter.join(200);
+    assertTrue(waiter.isAlive());
+
+    limiter.release(1L);
+    waiter.join(5000);
+    assertFalse(waiter.isAlive());
+  }
+
+  /**
+   * Runs a window of operations with inFlight of them at a time.
+   */
+  private static void window(final ConcurrencyLimiter limiter, final int inFlight, final long nanos) {
+    for (int done = 0; done < ConcurrencyLimiter.WINDOW;) {
+      final int n = Math.min(inFlight, ConcurrencyLimiter.WINDOW - done);
+      for (int i = 0; i < n; i++) {
+        limiter.acquire();
+      }
+      for (int i = 0; i < n; i++) {
+        limiter.release(nanos);
+      }
+      done += n;
+    }
+  }
+
+}
@@ -0,0 +1,156 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectoryDiskManagerTest {
+
+  private File in;
+
+  private File out;
+
+  @Before
+  public void setUp() throws Exception {
+    in = new File("DirectoryIn");
+    out = new File("DirectoryOut");
+    in.mkdirs();
+    out.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TestFiles.delete(in);
+    TestFiles.delete(out);
+  }
+
+  /**
+   * With parallelism every directory is archived and then deleted, and no more
+   * than maxInFlight directories are archived or waiting for deletion at a
+   * time.
+   */
+  @Test
+  public void testPipelined() throws Exception {
+    for (int d = 0; d < 8; d++) {
+      directory("dir" + d + "_20100101000" + d, 3);
+    }
+
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger highest = new AtomicInteger();
+    final DirectoryDiskManager ddm = new DirectoryDiskManager(conf(2, 3), "TP", "type", "set") {
+
+      @Override
+      public void zipDirectory(final File dir) throws Exception {
+        final int now = inFlight.incrementAndGet();
+        synchronized (highest) {
+          highest.set(Math.max(highest.get(), now));
+        }
+        Thread.sleep(20);
+        super.zipDirectory(dir);
+      }
+
+      @Override
+      public void delDirectory(final File dir) throws Exception {
+        // Deleted only after its archive is complete
+        assertEquals(3, entries(new File(out, "arch" + dir.getName() + ".zip")));
+        super.delDirectory(dir);
+        inFlight.decrementAndGet();
+      }
+    };
+
+    ddm.execute();
+
+    assertEquals(0, in.list().length);
+    assertEquals(8, out.list().length);
+    for (int d = 0; d < 8; d++) {
+      assertEquals(3, entries(new File(out, "archdir" + d + "_20100101000" + d + ".zip")));
+    }
+    assertEquals(0, inFlight.get());
+    assertTrue(String.valueOf(highest.get()), highest.get() <= 3);
+  }
+
+  /**
+   * First failure stops taking new directories and is thrown after the
+   * running ones have finished.
+   */
+  @Test
+  public void testPipelinedFailure() throws Exception {
+    for (int d = 0; d < 20; d++) {
+      directory("dir" + d + "_201001010000", 1);
+    }
+
+    final AtomicInteger started = new AtomicInteger();
+    final AtomicInteger running = new AtomicInteger();
+    final Exception failure = new Exception("Archiving failed");
+    final DirectoryDiskManager ddm = new DirectoryDiskManager(conf(2, 2), "TP", "type", "set") {
+
+      @Override
+      public void zipDirectory(final File dir) throws Exception {
+        if (started.incrementAndGet() == 1) {
+          throw failure;
+        }
+        running.incrementAndGet();
+        try {
+          Thread.sleep(20);
+          super.zipDirectory(dir);
+        } finally {
+          running.decrementAndGet();
+        }
+      }
+    };
+
+    try {
+      ddm.execute();
+      fail("Failure not thrown");
+    } catch (Exception e) {
+      assertSame(failure, e);
+    }
+
+    assertEquals(0, running.get());
+    assertTrue(String.valueOf(started.get()), started.get() < 20);
+    // Directories archived before the failure was seen are deleted
+    assertEquals(20 - out.list().length, in.list().length);
+  }
+
+  private Properties conf(final int parallelism, final int maxInFlight) {
+    final Properties conf = new Properties();
+    conf.setProperty("directoryDiskManager.inDir", in.getPath());
+    conf.setProperty("directoryDiskManager.outDir", out.getPath());
+    conf.setProperty("directoryDiskManager.prefix", "arch");
+    conf.setProperty("directoryDiskManager.timeLimit", "2");
+    conf.setProperty("directoryDiskManager.parallelism", String.valueOf(parallelism));
+    conf.setProperty("directoryDiskManager.maxInFlight", String.valueOf(maxInFlight));
+    return conf;
+  }
+
+  private void directory(final String name, final int files) throws Exception {
+    final File dir = new File(in, name);
+    dir.mkdirs();
+    for (int i = 0; i < files; i++) {
+      final FileOutputStream fos = new FileOutputStream(new File(dir, "f" + i + ".xml"));
+      try {
+        fos.write(("<data>" + name + i + "</data>").getBytes("US-ASCII"));
+      } finally {
+        fos.close();
+      }
+    }
+  }
+
+  private static int entries(final File archive) throws Exception {
+    final ZipFile zf = new ZipFile(archive);
+    try {
+      return zf.size();
+    } finally {
+      zf.close();
+    }
+  }
+
+}
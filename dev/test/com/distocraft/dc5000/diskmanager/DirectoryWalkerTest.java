@@ -0,0 +1,198 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectoryWalkerTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File("WalkerDir");
+    new File(dir, "a/b/c").mkdirs();
+    new File(dir, "empty").mkdirs();
+    new File(dir, "f0").createNewFile();
+    new File(dir, "a/f1").createNewFile();
+    new File(dir, "a/b/f2").createNewFile();
+    new File(dir, "a/b/c/f3").createNewFile();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TestFiles.delete(dir);
+  }
+
+  /**
+   * Files down to directoryDepth are handed to the filter with attributes.
+   */
+  @Test
+  public void testDepth() throws Exception {
+    final RecordingFilter filter = new RecordingFilter();
+
+    new DirectoryWalker(1, false, Logger.getAnonymousLogger()).walk(dir.toPath(), filter);
+
+    assertTrue(filter.files.contains("f0"));
+    assertTrue(filter.files.contains("f1"));
+    assertFalse(filter.files.contains("f2"));
+    assertTrue(new File(dir, "empty").exists());
+  }
+
+  /**
+   * Empty directories are deleted when walked.
+   */
+  @Test
+  public void testDeleteEmpty() throws Exception {
+    new DirectoryWalker(3, true, Logger.getAnonymousLogger()).walk(dir.toPath(), new RecordingFilter());
+
+    assertFalse(new File(dir, "empty").exists());
+    assertTrue(new File(dir, "a/b/c/f3").exists());
+  }
+
+  /**
+   * Directories emptied by deletions below them are deleted in the same walk,
+   * directories with something left are kept.
+   */
+  @Test
+  public void testPrunePostOrder() throws Exception {
+    final RecordingFilter filter = new RecordingFilter("f2");
+
+    new DirectoryWalker(3, true, Logger.getAnonymousLogger()).walk(dir.toPath(), filter);
+
+    assertEquals(3, filter.getFiles());
+    assertFalse(new File(dir, "a/b/c").exists());
+    assertFalse(new File(dir, "empty").exists());
+    assertTrue(new File(dir, "a/b/f2").exists());
+
+    new File(dir, "a/b/f2").delete();
+    new DirectoryWalker(3, true, Logger.getAnonymousLogger()).walk(dir.toPath(), new RecordingFilter(""));
+    assertFalse(dir.exists());
+  }
+
+  /**
+   * Directory below directoryDepth is left, so its parent is not empty.
+   */
+  @Test
+  public void testPruneDepth() throws Exception {
+    new DirectoryWalker(1, true, Logger.getAnonymousLogger()).walk(dir.toPath(), new RecordingFilter(""));
+
+    assertFalse(new File(dir, "a/f1").exists());
+    assertTrue(new File(dir, "a/b/c/f3").exists());
+    assertTrue(new File(dir, "a/b").exists());
+  }
+
+  /**
+   * Symbolic link to a missing file is seen with modification time 0.
+   */
+  @Test
+  public void testBrokenLink() throws Exception {
+    final File link = new File(dir, "link");
+    try {
+      Files.createSymbolicLink(link.toPath(), new File(dir, "missing").toPath());
+    } catch (Exception e) {
+      return; // No symbolic links on this file system
+    }
+
+    final RecordingFilter filter = new RecordingFilter();
+    new DirectoryWalker(0, false, Logger.getAnonymousLogger()).walk(dir.toPath(), filter);
+
+    assertTrue(filter.files.contains("link"));
+    assertEquals(0L, filter.missingTime);
+  }
+
+  /**
+   * Directories emptied by zipping threads are deleted in the same walk,
+   * directory of a live log that is archived but not deleted is kept.
+   */
+  @Test
+  public void testPruneParallelZip() throws Exception {
+    final File in = new File(dir, "in");
+    final File out = new File(dir, "out");
+    new File(in, "x/y").mkdirs();
+    new File(in, "logs").mkdirs();
+    out.mkdirs();
+    final long old = System.currentTimeMillis() - 2 * 24 * 3600 * 1000L;
+    final String[] names = { "x/x0.xml", "x/x1.xml", "x/y/y0.xml", "x/y/y1.xml", "x/y/y2.xml", "logs/catalina.out" };
+    for (String name : names) {
+      final File f = new File(in, name);
+      Files.write(f.toPath(), name.getBytes("US-ASCII"));
+      f.setLastModified(old);
+    }
+
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.inDir", in.getPath());
+    conf.setProperty("diskManager.dir.outDir", out.getPath());
+    conf.setProperty("diskManager.dir.archiveMode", String.valueOf(DiskManager.ZIP_SEQUENCE));
+    conf.setProperty("diskManager.dir.archivePrefix", "arch");
+    conf.setProperty("diskManager.dir.fileMask", ".*");
+    conf.setProperty("diskManager.dir.fileAgeDay", "1");
+    conf.setProperty("diskManager.dir.zipThreads", "2");
+    final ZippingFileFilter zff = new ZippingFileFilter(conf, Logger.getAnonymousLogger());
+    try {
+      new DirectoryWalker(3, true, Logger.getAnonymousLogger()).walk(in.toPath(), zff);
+
+      assertFalse(new File(in, "x").exists());
+      assertTrue(new File(in, "logs/catalina.out").exists());
+      assertTrue(in.exists());
+    } finally {
+      zff.close();
+    }
+    assertEquals(names.length, zff.getFiles());
+  }
+
+  private static final class RecordingFilter extends DiskManagerFileFilter {
+
+    final List<String> files = new ArrayList<String>();
+
+    long missingTime = -1L;
+
+    // Files deleted unless named keep, null to delete nothing
+    private final String keep;
+
+    RecordingFilter() throws Exception {
+      this(null);
+    }
+
+    RecordingFilter(final String keep) throws Exception {
+      super(conf());
+      this.keep = keep;
+    }
+
+    private static Properties conf() {
+      final Properties conf = new Properties();
+      conf.setProperty("diskManager.dir.fileMask", ".*");
+      return conf;
+    }
+
+    @Override
+    public boolean accept(final File f) {
+      fail("Walker must pass attributes");
+      return false;
+    }
+
+    @Override
+    boolean accept(final File f, final BasicFileAttributes attrs) {
+      if (attrs.isDirectory()) {
+        return true;
+      }
+      files.add(f.getName());
+      if (attrs == DirectoryWalker.MISSING) {
+        missingTime = attrs.lastModifiedTime().toMillis();
+      }
+      addCounts(1, keep != null && !keep.equals(f.getName()) && unlink(f) ? 1 : 0);
+      return false;
+    }
+  }
+
+}
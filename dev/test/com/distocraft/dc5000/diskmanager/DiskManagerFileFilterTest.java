@@ -3,6 +3,8 @@ package com.distocraft.dc5000.diskmanager;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
 import java.util.Properties;
 
 import org.junit.Before;
@@ -146,6 +148,54 @@ public class DiskManagerFileFilterTest {
 			assertEquals("Expected exception not thrown.", expectedMsg, actualmsg);
 		}
 	}
+
+	/**
+	 * Check that numbered fileMasks are used together with fileMask
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSeveralFileMasks() throws Exception {
+		simpleProps.setProperty("diskManager.dir.fileMask", "A.*");
+		simpleProps.setProperty("diskManager.dir.fileMask.1", ".*\\.zip");
+		simpleProps.setProperty("diskManager.dir.fileMask.2", "B\\d");
+
+		MockedDiskManagerFileFilter dmff = new MockedDiskManagerFileFilter(simpleProps);
+		assertTrue(dmff.matchesMask("A.xml"));
+		assertTrue(dmff.matchesMask("C.zip"));
+		assertTrue(dmff.matchesMask("B1"));
+		assertFalse(dmff.matchesMask("C.xml"));
+	}
+
+	/**
+	 * Check that the time of a file is parsed from its name in filename age mode, and that a
+	 * timestamp without year is given the current year or the previous one if in future
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFilenameAge() throws Exception {
+		simpleProps.setProperty("diskManager.dir.fileAgeMode", "1");
+		simpleProps.setProperty("diskManager.dir.timeMask", "A(\\d{12})");
+		simpleProps.setProperty("diskManager.dir.dateFormatInput", "yyyyMMddHHmm");
+
+		MockedDiskManagerFileFilter dmff = new MockedDiskManagerFileFilter(simpleProps);
+		long expected = new SimpleDateFormat("yyyyMMddHHmm").parse("201403151230").getTime();
+		assertEquals(expected, dmff.fileTime(new File("A201403151230.xml"), null));
+
+		simpleProps.setProperty("diskManager.dir.timeMask", "A(\\d{8})");
+		simpleProps.setProperty("diskManager.dir.dateFormatInput", "MMddHHmm");
+		dmff = new MockedDiskManagerFileFilter(simpleProps);
+
+		final Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(dmff.start);
+		calendar.add(Calendar.MONTH, 1);
+		final String future = new SimpleDateFormat("MMddHHmm").format(calendar.getTime());
+		calendar.add(Calendar.YEAR, -1);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		assertEquals(calendar.getTimeInMillis(), dmff.fileTime(new File("A" + future + ".xml"), null));
+	}
 }
 
 /**
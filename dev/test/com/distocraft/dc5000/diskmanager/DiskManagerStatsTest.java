@@ -0,0 +1,67 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class DiskManagerStatsTest {
+
+  private final Logger log = Logger.getAnonymousLogger();
+
+  /**
+   * Action is registered once and counters are readable through JMX.
+   */
+  @Test
+  public void testRegistered() throws Exception {
+    final DiskManagerStats stats = DiskManagerStats.forAction("DiskManager", "DC_E_TEST", "Maintenance",
+        "DiskManager,x", log);
+    assertSame(stats, DiskManagerStats.forAction("DiskManager", "DC_E_TEST", "Maintenance", "DiskManager,x", log));
+
+    stats.start();
+    stats.scanned();
+    stats.matched(1);
+    stats.archived(100L);
+    stats.deleted();
+
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(DiskManagerStats.DOMAIN
+        + ":type=DiskManager,techpack=DC_E_TEST,setType=Maintenance,setName=" + ObjectName.quote("DiskManager,x"));
+    assertEquals(Boolean.TRUE, server.getAttribute(name, "Running"));
+    assertEquals(1L, server.getAttribute(name, "FilesScanned"));
+    assertEquals(1L, server.getAttribute(name, "FilesArchived"));
+    assertEquals(100L, server.getAttribute(name, "Bytes"));
+
+    stats.stop();
+    stats.start();
+    assertEquals(0L, server.getAttribute(name, "FilesScanned"));
+  }
+
+  /**
+   * Latencies fall into power of two buckets.
+   */
+  @Test
+  public void testHistogram() throws Exception {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(500L);
+    for (int i = 0; i < 98; i++) {
+      histogram.record(3000L);
+    }
+    histogram.record(5000000L);
+
+    final long[] buckets = histogram.getBuckets();
+    assertEquals(1L, buckets[0]);
+    assertEquals(98L, buckets[2]);
+    assertEquals(1L, buckets[13]);
+    assertEquals(100L, histogram.getCount());
+    assertEquals(5000L, histogram.getMaxMicros());
+    assertEquals(4L, histogram.getPercentileMicros(0.99));
+    assertEquals(8192L, histogram.getPercentileMicros(1.0));
+  }
+
+}
@@ -0,0 +1,400 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiskManagerTest {
+
+  private static final long OLD = System.currentTimeMillis() - 10L * 24 * 3600000L;
+
+  private File etldata;
+
+  private File out;
+
+  @Before
+  public void setUp() throws Exception {
+    etldata = new File("DiskManager_etldata");
+    out = new File("DiskManagerOut");
+    etldata.mkdirs();
+    out.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TestFiles.delete(etldata);
+    TestFiles.delete(out);
+  }
+
+  /**
+   * Archives of failed directories are journaled in outDir, so an archive left
+   * unfinished by a dead run is completed in its failed directory by the next
+   * one.
+   */
+  @Test
+  public void testEtldataRecovered() throws Exception {
+    final File failed = new File(etldata, "dc_e_abc/failed");
+    failed.mkdirs();
+    for (int i = 0; i < 3; i++) {
+      create(new File(failed, "A" + i + ".xml"), OLD);
+    }
+
+    final Properties conf = conf();
+    final ZippingFileFilter zff = new ZippingFileFilter(conf, Logger.getAnonymousLogger());
+    new DiskManager(conf, "TP", "type", "set").sendFilesForZipping(etldata, zff);
+    ArchiveWriter.crashOnClose = true;
+    try {
+      zff.close();
+    } finally {
+      ArchiveWriter.crashOnClose = false;
+    }
+
+    assertEquals(1, ArchiveJournal.list(out, "arch").length);
+    assertEquals(0, ArchiveJournal.list(failed, "arch").length);
+    final String[] left = failed.list();
+    assertEquals(1, left.length);
+    assertTrue(left[0], left[0].startsWith("diskmanager_tmp_"));
+
+    new ZippingFileFilter(conf, Logger.getAnonymousLogger()).close();
+
+    assertEquals(0, ArchiveJournal.list(out, "arch").length);
+    assertEquals(Arrays.asList("arch1.zip"), Arrays.asList(failed.list()));
+    assertEquals(3, entries(new File(failed, "arch1.zip")));
+  }
+
+  /**
+   * Filters of two prefixes sharing an outDir recover only their own
+   * archives.
+   */
+  @Test
+  public void testPrefixesRecoveredApart() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      create(new File(etldata, "A" + i + ".xml"), OLD);
+    }
+    final Properties alpha = conf();
+    alpha.setProperty("diskManager.dir.archivePrefix", "alpha_");
+    alpha.setProperty("diskManager.dir.archiveMode", String.valueOf(DiskManager.ZIP_CREATIONTIME));
+    final Properties beta = conf();
+    beta.setProperty("diskManager.dir.archivePrefix", "beta_");
+
+    final ZippingFileFilter zff = new ZippingFileFilter(alpha, Logger.getAnonymousLogger());
+    new DirectoryWalker(0, false, Logger.getAnonymousLogger()).walk(etldata.toPath(), zff);
+    ArchiveWriter.crashOnClose = true;
+    try {
+      zff.close();
+    } finally {
+      ArchiveWriter.crashOnClose = false;
+    }
+    assertEquals(1, ArchiveJournal.list(out, "alpha_").length);
+    assertEquals(0, ArchiveJournal.list(out, "beta_").length);
+
+    new ZippingFileFilter(beta, Logger.getAnonymousLogger()).close();
+    assertEquals(1, ArchiveJournal.list(out, "alpha_").length);
+    String[] names = out.list();
+    assertEquals(2, names.length);
+    for (String name : names) {
+      assertTrue(name, name.startsWith("diskmanager_"));
+    }
+
+    new ZippingFileFilter(alpha, Logger.getAnonymousLogger()).close();
+    assertEquals(0, ArchiveJournal.list(out, "alpha_").length);
+    names = out.list();
+    assertEquals(1, names.length);
+    assertTrue(names[0], names[0].startsWith("alpha_") && names[0].endsWith(".zip"));
+    assertEquals(3, entries(new File(out, names[0])));
+  }
+
+  /**
+   * Archive closed by a run that died before renaming it is renamed by the
+   * next one.
+   */
+  @Test
+  public void testClosedArchiveRenamed() throws Exception {
+    final File archive = new File(out, "diskmanager_tmp_arch_1.zip");
+    final ArchiveJournal journal = ArchiveJournal.create(out, "arch");
+    final ArchiveWriter writer = new ArchiveWriter(archive, ArchiveWriter.DEFAULT_LEVEL, Deflater.DEFAULT_STRATEGY,
+        null);
+    journal.opened(archive);
+    for (int i = 0; i < 2; i++) {
+      final File src = new File(etldata, "A" + i + ".xml");
+      create(src, OLD);
+      journal.committed(archive, writer.add(src, src.getName(), OLD), writer.size(), OLD, src);
+      src.delete();
+    }
+    writer.close();
+    journal.close();
+
+    new ZippingFileFilter(conf(), Logger.getAnonymousLogger()).close();
+
+    assertEquals(Arrays.asList("arch1.zip"), Arrays.asList(out.list()));
+    assertEquals(2, entries(new File(out, "arch1.zip")));
+  }
+
+  /**
+   * Journaled source still existing is deleted on recovery only if it has not
+   * been modified since it was archived.
+   */
+  @Test
+  public void testChangedSourceKept() throws Exception {
+    final File archive = new File(out, "diskmanager_tmp_arch_1.zip");
+    final ArchiveJournal journal = ArchiveJournal.create(out, "arch");
+    final ArchiveWriter writer = new ArchiveWriter(archive, ArchiveWriter.DEFAULT_LEVEL, Deflater.DEFAULT_STRATEGY,
+        null);
+    journal.opened(archive);
+    final File[] sources = new File[2];
+    for (int i = 0; i < sources.length; i++) {
+      sources[i] = new File(etldata, "A" + i + ".xml");
+      create(sources[i], OLD);
+      journal.committed(archive, writer.add(sources[i], sources[i].getName(), OLD), writer.size(), OLD, sources[i]);
+    }
+    writer.abort();
+    journal.close();
+
+    // Written again with the same size after the run died
+    create(sources[1], OLD + 60000L);
+
+    new ZippingFileFilter(conf(), Logger.getAnonymousLogger()).close();
+
+    assertFalse(sources[0].exists());
+    assertTrue(sources[1].exists());
+    assertEquals(2, entries(new File(out, "arch1.zip")));
+  }
+
+  /**
+   * Catalog keeps only the entries of the latest archive of a sequence name
+   * reused by the next run.
+   */
+  @Test
+  public void testReplacedArchiveUncatalogued() throws Exception {
+    final Properties conf = conf();
+    conf.setProperty("diskManager.dir.fileList", "true");
+    for (int run = 0; run < 2; run++) {
+      create(new File(etldata, "R" + run + ".xml"), OLD);
+      final ZippingFileFilter zff = new ZippingFileFilter(conf, Logger.getAnonymousLogger());
+      new DirectoryWalker(0, false, Logger.getAnonymousLogger()).walk(etldata.toPath(), zff);
+      zff.close();
+    }
+
+    final List<ArchiveCatalog.Record> found = ArchiveCatalog.of(out, "arch").find(null, Long.MIN_VALUE,
+        Long.MAX_VALUE);
+    assertEquals(1, found.size());
+    assertEquals("R1.xml", found.get(0).name);
+    assertEquals("arch1.zip", found.get(0).archive);
+  }
+
+  /**
+   * Mount points on one device are zipped one after another by the same
+   * worker, devices in parallel. Counts of the workers are added into the
+   * filter and every worker appends its entries to the shared catalog.
+   */
+  @Test
+  public void testMountPointsZipped() throws Exception {
+    final List<File> mounts = new ArrayList<File>();
+    for (int m = 0; m < 4; m++) {
+      mounts.add(mount(m, 3));
+    }
+    final Properties conf = conf();
+    conf.setProperty("diskManager.dir.fileList", "true");
+
+    final Map<String, String> threads = new ConcurrentHashMap<String, String>();
+    final DiskManager dm = new DiskManager(conf, "TP", "type", "set") {
+
+      @Override
+      Object device(final File mount) {
+        return Integer.parseInt(mount.getName()) % 2;
+      }
+
+      @Override
+      void sendFilesForZipping(final File inDir, final ZippingFileFilter zff) {
+        threads.put(inDir.getName(), Thread.currentThread().getName());
+        super.sendFilesForZipping(inDir, zff);
+      }
+    };
+    final ZippingFileFilter zff = new ZippingFileFilter(conf, Logger.getAnonymousLogger());
+    dm.handleMountPoints(mounts, zff);
+    zff.close();
+
+    assertEquals(threads.get("0"), threads.get("2"));
+    assertEquals(threads.get("1"), threads.get("3"));
+    assertFalse(threads.get("0").equals(threads.get("1")));
+    assertTrue(threads.get("0"), threads.get("0").startsWith("DiskManager-mount"));
+
+    assertEquals(12, zff.getTotalFiles());
+    assertEquals(12, zff.getFiles());
+    // One archive in each failed directory holding its own files
+    for (File mount : mounts) {
+      int archives = 0;
+      for (File f : new File(mount, "dc_e_abc/failed").listFiles()) {
+        if (f.getName().endsWith(".zip")) {
+          archives++;
+          assertEquals(f.getName(), 3, entries(f));
+        } else {
+          assertTrue(f.getName(), f.getName().endsWith(".txt"));
+        }
+      }
+      assertEquals(mount.getName(), 1, archives);
+    }
+
+    final ArchiveCatalog catalog = ArchiveCatalog.of(out, "arch");
+    final List<ArchiveCatalog.Record> found = catalog.find(null, Long.MIN_VALUE, Long.MAX_VALUE);
+    assertEquals(12, found.size());
+    for (ArchiveCatalog.Record record : found) {
+      assertTrue(record.archive, catalog.archive(record).exists());
+    }
+    assertEquals(0, ArchiveJournal.list(out, "arch").length);
+  }
+
+  /**
+   * No more than mountParallelism devices are handled at a time.
+   */
+  @Test
+  public void testMountParallelism() throws Exception {
+    final List<File> mounts = new ArrayList<File>();
+    for (int m = 0; m < 4; m++) {
+      mounts.add(mount(m, 2));
+    }
+    final Properties conf = conf();
+    conf.setProperty("diskManager.dir.mountParallelism", "2");
+
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger highest = new AtomicInteger();
+    final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+    final DiskManager dm = new DiskManager(conf, "TP", "type", "set") {
+
+      @Override
+      Object device(final File mount) {
+        return mount;
+      }
+
+      @Override
+      void sendFilesForDeletion(final File inDir, final DeletingFileFilter dff) {
+        final int now = running.incrementAndGet();
+        synchronized (highest) {
+          highest.set(Math.max(highest.get(), now));
+        }
+        threads.add(Thread.currentThread().getName());
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        super.sendFilesForDeletion(inDir, dff);
+        running.decrementAndGet();
+      }
+    };
+    final DeletingFileFilter dff = new DeletingFileFilter(conf, Logger.getAnonymousLogger());
+    dm.handleMountPoints(mounts, dff);
+
+    assertTrue(String.valueOf(highest.get()), highest.get() <= 2);
+    assertEquals(2, threads.size());
+    assertEquals(8, dff.getTotalFiles());
+    assertEquals(8, dff.getFiles());
+    for (File mount : mounts) {
+      assertEquals(0, new File(mount, "dc_e_abc/failed").list().length);
+    }
+  }
+
+  /**
+   * First failure of a worker is thrown after the other workers are done,
+   * their counts are still added into the filter.
+   */
+  @Test
+  public void testMountPointFailure() throws Exception {
+    final List<File> mounts = new ArrayList<File>();
+    for (int m = 0; m < 3; m++) {
+      mounts.add(mount(m, 2));
+    }
+    final Properties conf = conf();
+
+    final RuntimeException failure = new IllegalStateException("Mount point failed");
+    final DiskManager dm = new DiskManager(conf, "TP", "type", "set") {
+
+      @Override
+      Object device(final File mount) {
+        return mount;
+      }
+
+      @Override
+      void sendFilesForDeletion(final File inDir, final DeletingFileFilter dff) {
+        if ("0".equals(inDir.getName())) {
+          throw failure;
+        }
+        super.sendFilesForDeletion(inDir, dff);
+      }
+    };
+    final DeletingFileFilter dff = new DeletingFileFilter(conf, Logger.getAnonymousLogger());
+    try {
+      dm.handleMountPoints(mounts, dff);
+      fail("Failure not thrown");
+    } catch (Exception e) {
+      assertSame(failure, e);
+    }
+
+    assertEquals(4, dff.getFiles());
+    assertEquals(2, new File(mounts.get(0), "dc_e_abc/failed").list().length);
+    assertEquals(0, new File(mounts.get(1), "dc_e_abc/failed").list().length);
+    assertEquals(0, new File(mounts.get(2), "dc_e_abc/failed").list().length);
+  }
+
+  /**
+   * Creates mount point with one failed directory of old files.
+   */
+  private File mount(final int m, final int files) throws Exception {
+    final File mount = new File(etldata, String.valueOf(m));
+    final File failed = new File(mount, "dc_e_abc/failed");
+    failed.mkdirs();
+    for (int i = 0; i < files; i++) {
+      create(new File(failed, "M" + m + "_" + i + ".xml"), OLD);
+    }
+    return mount;
+  }
+
+  private Properties conf() {
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.inDir", etldata.getPath());
+    conf.setProperty("diskManager.dir.outDir", out.getPath());
+    conf.setProperty("diskManager.dir.archiveMode", String.valueOf(DiskManager.ZIP_SEQUENCE));
+    conf.setProperty("diskManager.dir.archivePrefix", "arch");
+    conf.setProperty("diskManager.dir.fileMask", ".*\\.xml");
+    conf.setProperty("diskManager.dir.fileAgeDay", "1");
+    return conf;
+  }
+
+  private static void create(final File f, final long modified) throws Exception {
+    final FileOutputStream fos = new FileOutputStream(f);
+    try {
+      fos.write(("<data>" + f.getName() + "</data>").getBytes("US-ASCII"));
+    } finally {
+      fos.close();
+    }
+    f.setLastModified(modified);
+  }
+
+  private static int entries(final File archive) throws Exception {
+    final ZipFile zf = new ZipFile(archive);
+    try {
+      return zf.size();
+    } finally {
+      zf.close();
+    }
+  }
+
+}
@@ -0,0 +1,143 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EvictingFileFilterTest {
+
+  private static final long NOW = System.currentTimeMillis();
+
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File("EvictDir");
+    new File(dir, "sub/deeper").mkdirs();
+
+    // Ten files of 100 bytes on a file system of 1000 bytes, file0 is the oldest
+    for (int i = 0; i < 10; i++) {
+      create(new File(dir, (i % 2 == 0 ? "sub/deeper/" : "") + "file" + i), NOW - (10 - i) * 3600000L, 100);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TestFiles.delete(dir);
+  }
+
+  /**
+   * Oldest files in the whole tree are deleted until usage is at the low
+   * watermark.
+   */
+  @Test
+  public void testEvictOldest() throws Exception {
+    final EvictingFileFilter filter = filter(new Properties());
+
+    filter.evict(dir.toPath(), new DirectoryWalker(Integer.MAX_VALUE, false, Logger.getAnonymousLogger()));
+
+    assertFalse(new File(dir, "sub/deeper/file0").exists());
+    assertFalse(new File(dir, "file1").exists());
+    assertTrue(new File(dir, "sub/deeper/file2").exists());
+    assertEquals(2, filter.getFiles());
+    assertEquals(200L, filter.getFreed());
+    assertEquals(0L, filter.excess(dir.toPath()));
+  }
+
+  /**
+   * Usage below the high watermark deletes nothing.
+   */
+  @Test
+  public void testBelowHighWatermark() throws Exception {
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.highWatermarkPercent", "100");
+    conf.setProperty("diskManager.dir.lowWatermarkPercent", "50");
+    final EvictingFileFilter filter = filter(conf);
+
+    filter.evict(dir.toPath(), new DirectoryWalker(Integer.MAX_VALUE, false, Logger.getAnonymousLogger()));
+
+    assertEquals(0, filter.getFiles());
+    assertEquals(0, filter.getTotalFiles());
+  }
+
+  /**
+   * With fewer candidates than needed the tree is walked again, .tagfiles and
+   * files not matching fileMask are kept.
+   */
+  @Test
+  public void testSeveralPasses() throws Exception {
+    new File(dir, "file1").renameTo(new File(dir, "other1"));
+    new File(dir, "sub/deeper/file0").renameTo(new File(dir, "sub/deeper/.tagfile"));
+
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.evictionCandidates", "1");
+    final EvictingFileFilter filter = filter(conf);
+
+    filter.evict(dir.toPath(), new DirectoryWalker(Integer.MAX_VALUE, false, Logger.getAnonymousLogger()));
+
+    assertTrue(new File(dir, "sub/deeper/.tagfile").exists());
+    assertTrue(new File(dir, "other1").exists());
+    assertFalse(new File(dir, "sub/deeper/file2").exists());
+    assertFalse(new File(dir, "file3").exists());
+    assertTrue(new File(dir, "sub/deeper/file4").exists());
+    assertEquals(2, filter.getFiles());
+  }
+
+  @Test(expected = Exception.class)
+  public void testInvalidWatermarks() throws Exception {
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.lowWatermarkPercent", "95");
+    filter(conf);
+  }
+
+  /**
+   * Returns filter seeing a file system of 1000 bytes holding only the files of
+   * the test directory.
+   */
+  private EvictingFileFilter filter(final Properties conf) throws Exception {
+    conf.setProperty("diskManager.dir.fileMask", "file.*|\\.tagfile");
+    return new EvictingFileFilter(conf, Logger.getAnonymousLogger()) {
+
+      @Override
+      long totalSpace(final Path root) {
+        return 1000L;
+      }
+
+      @Override
+      long usableSpace(final Path root) {
+        return 1000L - size(dir);
+      }
+    };
+  }
+
+  private static long size(final File f) {
+    final File[] files = f.listFiles();
+    if (files == null) {
+      return f.length();
+    }
+    long size = 0L;
+    for (File child : files) {
+      size += size(child);
+    }
+    return size;
+  }
+
+  private static void create(final File f, final long modified, final int size) throws Exception {
+    final FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(new byte[size]);
+    } finally {
+      out.close();
+    }
+    f.setLastModified(modified);
+  }
+
+}
@@ -0,0 +1,71 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExpiryDaemonTest {
+
+  private File inDir;
+
+  private File outDir;
+
+  @Before
+  public void setUp() throws Exception {
+    inDir = new File("ExpiryInDir");
+    outDir = new File("ExpiryOutDir");
+    new File(inDir, "sub").mkdirs();
+    outDir.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TestFiles.delete(inDir);
+    TestFiles.delete(outDir);
+  }
+
+  /**
+   * Files existing at start and files created while watching are moved once
+   * old enough, files not matching fileMask are left.
+   */
+  @Test
+  public void testMoveWhenOld() throws Exception {
+    final File old = new File(inDir, "A_old");
+    old.createNewFile();
+    old.setLastModified(System.currentTimeMillis() - 60000L);
+
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.fileMask", "A.*");
+    conf.setProperty("diskManager.dir.outDir", outDir.getPath());
+    final MovingFileFilter filter = new MovingFileFilter(conf, Logger.getAnonymousLogger());
+    filter.fileAge = 1500L;
+
+    final Thread creator = new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(300L);
+          new File(inDir, "sub/A_new").createNewFile();
+          new File(inDir, "sub/B_other").createNewFile();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    creator.start();
+
+    new ExpiryDaemon(filter, inDir.toPath(), 1, 60000L, Logger.getAnonymousLogger()).run(4500L);
+    creator.join();
+
+    assertTrue(new File(outDir, "A_old").exists());
+    assertTrue(new File(outDir, "A_new").exists());
+    assertTrue(new File(inDir, "sub/B_other").exists());
+    assertEquals(2, filter.getFiles());
+  }
+
+}
@@ -0,0 +1,48 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class FileMaskMatcherTest {
+
+  private static final String[] MASKS = { ".*", "A.*\\.xml", "^A.*\\.xml$", ".*\\.zip", "A2014.*", "exact.txt",
+      "ab?c.*", "abc+", "a.*b.*c", ".*_RNC0[0-4]\\d_.*statsfile\\.xml", "A.*(RNC|NodeB).*\\.(xml|gz)", "x|y.*",
+      "(?i)a.*", ".*\\\\", ".*\\x41", "(a)\\1", "\\Qa.b\\E", "[]a]x", ".*\\$", "a{2}b", "\\d+\\.log", "a\\.b" };
+
+  private static final String[] NAMES = { "", "A", "A.xml", "A2014010100.xml", "B.xml", "A.xml.gz", "a.zip",
+      "exact.txt", "exactXtxt", "ac", "abc", "abbb", "abcc", "aXbYc", "ab", "C_RNC012_x_statsfile.xml",
+      "C_RNC052_x_statsfile.xml", "ARNC.gz", "ANodeB.xml", "ARBS.xml", "x", "y", "yz", "xz", "ABC", "a\\", "zA",
+      "aa", "a.b", "axb", "]x", "ax", "a$", "aab", "ab\nc", "A\n.xml", "123.log", "a.log" };
+
+  /**
+   * Every mask matches the same names as the regular expression.
+   */
+  @Test
+  public void testSameAsPattern() throws Exception {
+    for (String mask : MASKS) {
+      final FileMaskMatcher matcher = FileMaskMatcher.compile(Collections.singletonList(mask));
+      final Pattern pattern = Pattern.compile(mask);
+      for (String name : NAMES) {
+        assertEquals(mask + " " + name, pattern.matcher(name).matches(), matcher.matches(name));
+      }
+    }
+  }
+
+  /**
+   * Name matches if any of the masks matches.
+   */
+  @Test
+  public void testSeveralMasks() throws Exception {
+    final FileMaskMatcher matcher = FileMaskMatcher.compile(Arrays.asList("A.*\\.xml", ".*\\.zip"));
+    assertTrue(matcher.matches("A1.xml"));
+    assertTrue(matcher.matches("B.zip"));
+    assertFalse(matcher.matches("B.xml"));
+    assertEquals("A.*\\.xml\n.*\\.zip", matcher.toString());
+  }
+
+}
@@ -0,0 +1,148 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogCheckpointTest {
+
+  private File log;
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    log = new File("checkpoint_catalina.out");
+    file = new File("checkpoint.logs");
+    append(6000);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    log.delete();
+    file.delete();
+    new File(file.getPath() + ".tmp").delete();
+  }
+
+  /**
+   * Log is archived from the offset saved by the previous run.
+   */
+  @Test
+  public void testAppended() throws Exception {
+    LogCheckpoint checkpoint = LogCheckpoint.load(file, Logger.getAnonymousLogger());
+    assertEquals(0L, checkpoint.start(log, "inode", log.length()));
+    archived(checkpoint, "inode", log.length());
+    checkpoint.save();
+
+    append(100);
+    checkpoint = LogCheckpoint.load(file, Logger.getAnonymousLogger());
+    assertEquals(6000L, checkpoint.getOffset(log));
+    assertEquals(6000L, checkpoint.start(log, "inode", log.length()));
+  }
+
+  /**
+   * Range is not saved before it is recorded as archived.
+   */
+  @Test
+  public void testRange() throws Exception {
+    final LogCheckpoint checkpoint = LogCheckpoint.load(file, Logger.getAnonymousLogger());
+    final FileChannel in = FileChannel.open(log.toPath(), StandardOpenOption.READ);
+    final LogCheckpoint.Range range;
+    try {
+      range = LogCheckpoint.range(log, "inode", in, log.length());
+    } finally {
+      in.close();
+    }
+    checkpoint.save();
+    assertEquals(-1L, LogCheckpoint.load(file, Logger.getAnonymousLogger()).getOffset(log));
+
+    checkpoint.archived(range);
+    checkpoint.save();
+    assertEquals(6000L, LogCheckpoint.load(file, Logger.getAnonymousLogger()).start(log, "inode", log.length()));
+  }
+
+  @Test
+  public void testRotated() throws Exception {
+    final LogCheckpoint checkpoint = LogCheckpoint.load(file, Logger.getAnonymousLogger());
+    archived(checkpoint, "inode", log.length());
+    append(100);
+
+    assertEquals(0L, checkpoint.start(log, "other", log.length()));
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    final LogCheckpoint checkpoint = LogCheckpoint.load(file, Logger.getAnonymousLogger());
+    archived(checkpoint, "inode", log.length());
+
+    final RandomAccessFile raf = new RandomAccessFile(log, "rw");
+    raf.setLength(1000);
+    raf.close();
+    assertEquals(0L, checkpoint.start(log, "inode", log.length()));
+  }
+
+  /**
+   * Log truncated and written past the offset again is detected by checksum.
+   */
+  @Test
+  public void testRewritten() throws Exception {
+    final LogCheckpoint checkpoint = LogCheckpoint.load(file, Logger.getAnonymousLogger());
+    archived(checkpoint, "inode", log.length());
+
+    final RandomAccessFile raf = new RandomAccessFile(log, "rw");
+    raf.setLength(0);
+    for (int i = 0; i < 7000; i++) {
+      raf.write('x');
+    }
+    raf.close();
+    assertEquals(0L, checkpoint.start(log, "inode", log.length()));
+  }
+
+  @Test
+  public void testCorrupted() throws Exception {
+    final LogCheckpoint checkpoint = LogCheckpoint.load(file, Logger.getAnonymousLogger());
+    archived(checkpoint, null, log.length());
+    checkpoint.save();
+    assertEquals(6000L, LogCheckpoint.load(file, Logger.getAnonymousLogger()).start(log, null, log.length()));
+
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(10);
+    raf.write(0xff);
+    raf.close();
+    assertEquals(-1L, LogCheckpoint.load(file, Logger.getAnonymousLogger()).getOffset(log));
+  }
+
+  private void archived(final LogCheckpoint checkpoint, final Object key, final long end) throws Exception {
+    final FileChannel in = FileChannel.open(log.toPath(), StandardOpenOption.READ);
+    try {
+      checkpoint.archived(log, key, in, end);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void append(final int bytes) throws Exception {
+    final FileOutputStream out = new FileOutputStream(log, true);
+    try {
+      final long base = log.length();
+      for (int i = 0; i < bytes / 10; i++) {
+        out.write(String.format("%9d\n", base + i).getBytes("US-ASCII"));
+      }
+      for (int i = 0; i < bytes % 10; i++) {
+        out.write('.');
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+}
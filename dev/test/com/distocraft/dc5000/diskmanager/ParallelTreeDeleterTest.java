@@ -0,0 +1,96 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelTreeDeleterTest {
+
+  private static final long OLD = System.currentTimeMillis() - 100L * 24 * 3600000L;
+
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File("ParallelDeleteDir");
+    dir.mkdir();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TestFiles.delete(dir);
+  }
+
+  /**
+   * Old files are deleted from every level of the tree, new files and
+   * .tagfiles are left and counts of all tasks end up in the filter.
+   */
+  @Test
+  public void testDeleteTree() throws Exception {
+    int oldFiles = 0;
+    for (int d = 0; d < 4; d++) {
+      final File sub = new File(dir, "sub" + d + "/deeper");
+      sub.mkdirs();
+      for (int i = 0; i < ParallelTreeDeleter.BATCH_SIZE + 10; i++) {
+        create(new File(sub, "old" + i), OLD);
+        oldFiles++;
+      }
+      create(new File(sub, "new"), System.currentTimeMillis());
+      create(new File(sub.getParentFile(), ".tagfile"), OLD);
+      create(new File(sub.getParentFile(), "old"), OLD);
+      oldFiles += 2;
+    }
+
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.fileMask", ".*");
+    conf.setProperty("diskManager.dir.fileAgeDay", "65");
+    final DeletingFileFilter filter = new DeletingFileFilter(conf, Logger.getAnonymousLogger());
+
+    new ParallelTreeDeleter(filter, Logger.getAnonymousLogger(), 4).delete(dir.toPath());
+
+    assertEquals(oldFiles + 4, filter.getTotalFiles());
+    assertEquals(oldFiles, filter.getFiles());
+    for (int d = 0; d < 4; d++) {
+      assertEquals(1, new File(dir, "sub" + d + "/deeper").list().length);
+      assertTrue(new File(dir, "sub" + d + "/.tagfile").exists());
+      assertFalse(new File(dir, "sub" + d + "/old").exists());
+    }
+  }
+
+  /**
+   * With a limiter all old files are deleted too and the limit stays within
+   * its bounds.
+   */
+  @Test
+  public void testDeleteAdaptive() throws Exception {
+    final File sub = new File(dir, "sub");
+    sub.mkdirs();
+    for (int i = 0; i < 4 * ParallelTreeDeleter.BATCH_SIZE; i++) {
+      create(new File(sub, "old" + i), OLD);
+    }
+
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.fileMask", ".*");
+    conf.setProperty("diskManager.dir.fileAgeDay", "65");
+    final DeletingFileFilter filter = new DeletingFileFilter(conf, Logger.getAnonymousLogger());
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 4, 0L);
+
+    new ParallelTreeDeleter(filter, Logger.getAnonymousLogger(), 4, limiter).delete(dir.toPath());
+
+    assertEquals(4 * ParallelTreeDeleter.BATCH_SIZE, filter.getFiles());
+    assertEquals(0, sub.list().length);
+    assertTrue(limiter.getLimit() >= 1 && limiter.getLimit() <= 4);
+  }
+
+  private static void create(final File f, final long modified) throws Exception {
+    f.createNewFile();
+    f.setLastModified(modified);
+  }
+
+}
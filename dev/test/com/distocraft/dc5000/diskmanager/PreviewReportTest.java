@@ -0,0 +1,106 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PreviewReportTest {
+
+  private static final long OLD = System.currentTimeMillis() - 100L * 24 * 3600000L;
+
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File("PreviewDir");
+    new File(dir, "sub/empty").mkdirs();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TestFiles.delete(dir);
+  }
+
+  /**
+   * Files are counted and sampled, the estimate includes reading, compressing
+   * and unlinking them.
+   */
+  @Test
+  public void testReport() throws Exception {
+    final File file = new File(dir, "data");
+    create(file, OLD, 1048576);
+
+    final PreviewReport report = new PreviewReport();
+    report.setUnlinkMicros(1000.0);
+    report.compress(file, file.length(), Deflater.BEST_SPEED);
+    report.delete(100L);
+    report.delete(200L);
+    report.directory();
+
+    assertEquals(3, report.getFiles());
+    assertTrue(report.estimateMillis() >= 3);
+    final String summary = report.summary();
+    assertTrue(summary, summary.contains("archive 1 files 1048576 bytes"));
+    assertTrue(summary, summary.contains("delete 2 files 300 bytes, 1 directories"));
+    assertTrue(summary, summary.contains("unlink 1000 us"));
+    assertFalse(summary, summary.contains("assumed"));
+  }
+
+  /**
+   * Deleting filter in preview mode counts the files it would delete, walker
+   * does not delete empty directories.
+   */
+  @Test
+  public void testNothingDeleted() throws Exception {
+    create(new File(dir, "sub/old"), OLD, 10);
+    create(new File(dir, "sub/new"), System.currentTimeMillis(), 10);
+
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.fileMask", ".*");
+    conf.setProperty("diskManager.dir.fileAgeDay", "65");
+    conf.setProperty("diskManager.dir.preview", "1");
+    final DeletingFileFilter filter = new DeletingFileFilter(conf, Logger.getAnonymousLogger());
+    final PreviewReport report = new PreviewReport();
+    filter.setPreview(report);
+
+    new DirectoryWalker(5, true, Logger.getAnonymousLogger()).walk(dir.toPath(), filter);
+
+    assertTrue(new File(dir, "sub/old").exists());
+    assertTrue(new File(dir, "sub/empty").exists());
+    assertEquals(1, filter.getFiles());
+    assertTrue(report.summary(), report.summary().contains("delete 1 files 10 bytes, 1 directories"));
+  }
+
+  @Test
+  public void testIsSet() throws Exception {
+    final Properties conf = new Properties();
+    assertFalse(PreviewReport.isSet(conf, "diskManager.dir.preview"));
+    conf.setProperty("diskManager.dir.preview", "1");
+    assertTrue(PreviewReport.isSet(conf, "diskManager.dir.preview"));
+    conf.setProperty("diskManager.dir.preview", "0");
+    assertFalse(PreviewReport.isSet(conf, "diskManager.dir.preview"));
+  }
+
+  private static void create(final File f, final long modified, final int size) throws Exception {
+    final FileOutputStream out = new FileOutputStream(f);
+    try {
+      final byte[] data = new byte[size];
+      for (int i = 0; i < size; i++) {
+        data[i] = (byte) (i % 7);
+      }
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    f.setLastModified(modified);
+  }
+
+}
@@ -0,0 +1,126 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QuotaFileFilterTest {
+
+  private static final long NOW = System.currentTimeMillis();
+
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File("QuotaDir");
+    for (String node : new String[] { "node1", "node2" }) {
+      new File(dir, node).mkdirs();
+      // file0 is the oldest, files are listed in no particular order
+      for (int i = 0; i < 10; i++) {
+        create(new File(dir, node + "/file" + i), NOW - (10 - i) * 3600000L, 102400 * (i + 1));
+      }
+      create(new File(dir, node + "/.tagfile"), NOW - 100 * 3600000L, 0);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TestFiles.delete(dir);
+  }
+
+  /**
+   * Newest files of each directory are kept.
+   */
+  @Test
+  public void testKeepNewest() throws Exception {
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.keepNewestFiles", "3");
+    final QuotaFileFilter filter = walk(conf);
+
+    for (String node : new String[] { "node1", "node2" }) {
+      assertEquals(4, new File(dir, node).list().length);
+      assertTrue(new File(dir, node + "/file7").exists());
+      assertTrue(new File(dir, node + "/.tagfile").exists());
+    }
+    assertEquals(14, filter.getFiles());
+    assertEquals(22, filter.getTotalFiles());
+    assertEquals(2 * 102400L * (1 + 2 + 3 + 4 + 5 + 6 + 7), filter.getFreed());
+  }
+
+  /**
+   * Newest files within the quota of each directory are kept.
+   */
+  @Test
+  public void testQuota() throws Exception {
+    // file9 and file8 fit in 2 MB, file7 more would not
+    final QuotaFileFilter filter = walk(conf("2"));
+
+    for (String node : new String[] { "node1", "node2" }) {
+      assertEquals(3, new File(dir, node).list().length);
+      assertTrue(new File(dir, node + "/file8").exists());
+      assertFalse(new File(dir, node + "/file7").exists());
+    }
+    assertEquals(16, filter.getFiles());
+    assertEquals(2 * 102400L * (1 + 2 + 3 + 4 + 5 + 6 + 7 + 8), filter.getFreed());
+  }
+
+  /**
+   * Both limits apply together.
+   */
+  @Test
+  public void testBothLimits() throws Exception {
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.keepNewestFiles", "5");
+    conf.setProperty("diskManager.dir.fileMask", "file[0-8]");
+    conf.setProperty("diskManager.dir.maxDirectoryMB", "2");
+    final QuotaFileFilter filter = walk(conf);
+
+    // file9 does not match fileMask, of the newest 5 of the rest only file8
+    // and file7 fit in 2 MB
+    for (String node : new String[] { "node1", "node2" }) {
+      assertTrue(new File(dir, node + "/file9").exists());
+      assertTrue(new File(dir, node + "/file7").exists());
+      assertFalse(new File(dir, node + "/file6").exists());
+    }
+    assertEquals(14, filter.getFiles());
+  }
+
+  @Test(expected = Exception.class)
+  public void testNoLimits() throws Exception {
+    new QuotaFileFilter(conf("0"), Logger.getAnonymousLogger());
+  }
+
+  private QuotaFileFilter walk(final Properties conf) throws Exception {
+    if (conf.getProperty("diskManager.dir.fileMask") == null) {
+      conf.setProperty("diskManager.dir.fileMask", ".*");
+    }
+    final QuotaFileFilter filter = new QuotaFileFilter(conf, Logger.getAnonymousLogger());
+    new DirectoryWalker(1, false, Logger.getAnonymousLogger()).walk(dir.toPath(), filter);
+    return filter;
+  }
+
+  private static Properties conf(final String mb) {
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.fileMask", ".*");
+    conf.setProperty("diskManager.dir.maxDirectoryMB", mb);
+    return conf;
+  }
+
+  private static void create(final File f, final long modified, final int size) throws Exception {
+    final FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(new byte[size]);
+    } finally {
+      out.close();
+    }
+    f.setLastModified(modified);
+  }
+
+}
@@ -0,0 +1,145 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RuleFileFilterTest {
+
+  private static final long OLD = System.currentTimeMillis() - 10L * 24 * 3600000L;
+
+  private File dir;
+
+  private File out;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File("RuleDir");
+    out = new File("RuleOut");
+    new File(dir, "sub").mkdirs();
+    out.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TestFiles.delete(dir);
+    TestFiles.delete(out);
+  }
+
+  /**
+   * Each file is handled by the first rule matching it, in one walk.
+   */
+  @Test
+  public void testFirstMatchWins() throws Exception {
+    create(new File(dir, "a.xml"), OLD);
+    create(new File(dir, "sub/b.xml"), OLD);
+    create(new File(dir, "sub/c.log"), OLD);
+    create(new File(dir, "d.log"), System.currentTimeMillis());
+    create(new File(dir, "e.txt"), OLD);
+
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.outDir", out.getPath());
+    conf.setProperty("diskManager.dir.fileAgeDay", "1");
+    conf.setProperty("diskManager.rule.1.archiveMode", "4");
+    conf.setProperty("diskManager.rule.1.fileMask", ".*\\.xml");
+    conf.setProperty("diskManager.rule.2.archiveMode", "0");
+    conf.setProperty("diskManager.rule.2.fileMask", ".*\\.(xml|log)");
+    conf.setProperty("diskManager.rule.3.archiveMode", "4");
+    conf.setProperty("diskManager.rule.3.fileMask", ".*\\.txt");
+    conf.setProperty("diskManager.rule.3.fileAgeDay", "30");
+    final RuleFileFilter filter = new RuleFileFilter(conf, Logger.getAnonymousLogger());
+
+    new DirectoryWalker(1, false, Logger.getAnonymousLogger()).walk(dir.toPath(), filter);
+    filter.close();
+
+    // Rule 1 deletes old xml files, rule 2 would have moved them
+    assertFalse(new File(dir, "a.xml").exists());
+    assertFalse(new File(dir, "sub/b.xml").exists());
+    assertFalse(new File(out, "a.xml").exists());
+    // Rule 2 moves old log files
+    assertTrue(new File(out, "c.log").exists());
+    assertTrue(new File(dir, "d.log").exists());
+    // Rule 3 has an age of its own
+    assertTrue(new File(dir, "e.txt").exists());
+
+    assertEquals(5, filter.getTotalFiles());
+    assertEquals(3, filter.getFiles());
+  }
+
+  /**
+   * Files matching no rule are counted and left alone.
+   */
+  @Test
+  public void testNoMatch() throws Exception {
+    create(new File(dir, "a.dat"), OLD);
+
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.fileMask", ".*");
+    conf.setProperty("diskManager.rule.1.archiveMode", "4");
+    conf.setProperty("diskManager.rule.1.fileMask", ".*\\.xml");
+    final RuleFileFilter filter = new RuleFileFilter(conf, Logger.getAnonymousLogger());
+
+    new DirectoryWalker(1, false, Logger.getAnonymousLogger()).walk(dir.toPath(), filter);
+
+    assertTrue(new File(dir, "a.dat").exists());
+    assertEquals(1, filter.getTotalFiles());
+    assertEquals(0, filter.getFiles());
+  }
+
+  @Test
+  public void testRuleConf() throws Exception {
+    final Properties conf = new Properties();
+    conf.setProperty("diskManager.dir.fileMask", ".*");
+    conf.setProperty("diskManager.dir.fileMask.1", "x");
+    conf.setProperty("diskManager.dir.fileAgeDay", "1");
+    conf.setProperty("diskManager.dir.outDir", "/out");
+    conf.setProperty("diskManager.rule.2.fileMask", "a.*");
+    conf.setProperty("diskManager.rule.2.fileAgeDay", "2");
+
+    final Properties rule = RuleFileFilter.ruleConf(conf, 2);
+    assertEquals("a.*", rule.getProperty("diskManager.dir.fileMask"));
+    assertNull(rule.getProperty("diskManager.dir.fileMask.1"));
+    assertEquals("2", rule.getProperty("diskManager.dir.fileAgeDay"));
+    assertEquals("/out", rule.getProperty("diskManager.dir.outDir"));
+  }
+
+  @Test
+  public void testInvalidRules() throws Exception {
+    final Properties conf = new Properties();
+    try {
+      new RuleFileFilter(conf, Logger.getAnonymousLogger());
+      fail("No rules accepted");
+    } catch (Exception e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("No rules defined"));
+    }
+
+    conf.setProperty("diskManager.rule.1.archiveMode", "4");
+    try {
+      new RuleFileFilter(conf, Logger.getAnonymousLogger());
+      fail("Rule without fileMask accepted");
+    } catch (Exception e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Rule 1: "));
+    }
+
+    conf.setProperty("diskManager.rule.1.fileMask", ".*");
+    conf.setProperty("diskManager.rule.1.archiveMode", "7");
+    try {
+      new RuleFileFilter(conf, Logger.getAnonymousLogger());
+      fail("Rule with archiveMode 7 accepted");
+    } catch (Exception e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("cannot be used in a rule"));
+    }
+  }
+
+  private static void create(final File f, final long modified) throws Exception {
+    f.createNewFile();
+    f.setLastModified(modified);
+  }
+
+}
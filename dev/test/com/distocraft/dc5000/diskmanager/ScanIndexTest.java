@@ -0,0 +1,141 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScanIndexTest {
+
+  private static final long HOUR = 3600000L;
+
+  private final Logger log = Logger.getAnonymousLogger();
+
+  private File dir;
+
+  private File indexFile;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File("ScanIndexDir");
+    for (int d = 0; d < 3; d++) {
+      final File sub = new File(dir, "sub" + d + "/inner");
+      sub.mkdirs();
+      create(new File(sub, "A" + d), System.currentTimeMillis() - HOUR);
+      sub.setLastModified(System.currentTimeMillis() - HOUR);
+      sub.getParentFile().setLastModified(System.currentTimeMillis() - HOUR);
+    }
+    dir.setLastModified(System.currentTimeMillis() - HOUR);
+    indexFile = new File("ScanIndexDir.idx");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TestFiles.delete(dir);
+    indexFile.delete();
+  }
+
+  /**
+   * Second walk lists only the directory that changed.
+   */
+  @Test
+  public void testSkipUnchanged() throws Exception {
+    assertEquals(3, walk().size());
+
+    final File changed = new File(dir, "sub1/inner");
+    create(new File(changed, "B"), System.currentTimeMillis() - HOUR);
+    changed.setLastModified(System.currentTimeMillis() - HOUR / 2);
+
+    final List<String> seen = walk();
+    assertEquals(2, seen.size());
+    assertTrue(seen.contains("A1"));
+    assertTrue(seen.contains("B"));
+  }
+
+  /**
+   * Directory holding a file old enough is listed again.
+   */
+  @Test
+  public void testOldFileListed() throws Exception {
+    walk();
+
+    final ScanIndex index = ScanIndex.load(indexFile, dir.toPath(), HOUR / 2, ".*", 2, log);
+    assertNull(index.skip(new File(dir, "sub0/inner").toPath(),
+        new File(dir, "sub0/inner").lastModified(), System.currentTimeMillis()));
+  }
+
+  /**
+   * Corrupted or outdated index is rebuilt.
+   */
+  @Test
+  public void testRebuild() throws Exception {
+    walk();
+
+    final FileOutputStream out = new FileOutputStream(indexFile, true);
+    out.write(1);
+    out.close();
+    assertEquals(3, walk().size());
+
+    assertEquals(0, walk().size());
+    final ScanIndex outdated = ScanIndex.load(indexFile, dir.toPath(), 2 * HOUR, "A.*", 2, log);
+    assertNull(outdated.skip(dir.toPath(), dir.lastModified(), System.currentTimeMillis()));
+  }
+
+  private List<String> walk() throws Exception {
+    final CountingFilter filter = new CountingFilter();
+    final ScanIndex index = ScanIndex.load(indexFile, dir.toPath(), filter.fileAge, filter.getFileMask(), 2, log);
+    new DirectoryWalker(2, false, index, log).walk(dir.toPath(), filter);
+    index.save();
+    return filter.seen;
+  }
+
+  private static void create(final File f, final long modified) throws Exception {
+    f.createNewFile();
+    f.setLastModified(modified);
+  }
+
+  private static final class CountingFilter extends DiskManagerFileFilter {
+
+    final List<String> seen = new ArrayList<String>();
+
+    CountingFilter() throws Exception {
+      super(conf());
+    }
+
+    private static Properties conf() {
+      final Properties conf = new Properties();
+      conf.setProperty("diskManager.dir.fileMask", ".*");
+      conf.setProperty("diskManager.dir.fileAgeHour", "2");
+      return conf;
+    }
+
+    @Override
+    public boolean accept(final File f) {
+      return f.isDirectory();
+    }
+
+    @Override
+    boolean accept(final File f, final BasicFileAttributes attrs) {
+      if (attrs.isDirectory()) {
+        return true;
+      }
+      seen.add(f.getName());
+      try {
+        ageCheck(f, attrs);
+      } catch (Exception e) {
+        fail(e.toString());
+      }
+      return false;
+    }
+  }
+
+}
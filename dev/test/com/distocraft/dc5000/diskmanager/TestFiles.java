@@ -0,0 +1,26 @@
+package com.distocraft.dc5000.diskmanager;
+
+import java.io.File;
+
+/**
+ * File helpers shared by the tests.
+ */
+final class TestFiles {
+
+  private TestFiles() {
+  }
+
+  /**
+   * Deletes file or directory tree.
+   */
+  static void delete(final File f) {
+    final File[] files = f.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+
+}
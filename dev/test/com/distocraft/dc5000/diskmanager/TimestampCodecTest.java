@@ -0,0 +1,101 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimestampCodecTest {
+
+  private static final String[] PATTERNS = { "yyyyMMddHHmm", "yyyyddMMhhmmss", "yyyy-MM-dd'T'HH:mm:ss.SSS",
+      "dd.MM.yy HH'h'mm", "'A'yyyyMMdd.HHmm" };
+
+  private TimeZone zone;
+
+  @Before
+  public void setUp() {
+    zone = TimeZone.getDefault();
+    TimeZone.setDefault(TimeZone.getTimeZone("Europe/Helsinki"));
+  }
+
+  @After
+  public void tearDown() {
+    TimeZone.setDefault(zone);
+  }
+
+  /**
+   * Compiled patterns format and parse like SimpleDateFormat, also over
+   * daylight saving changes.
+   */
+  @Test
+  public void testSameAsSimpleDateFormat() throws Exception {
+    final Random random = new Random(1L);
+    for (String pattern : PATTERNS) {
+      final TimestampCodec codec = TimestampCodec.compile(pattern);
+      assertTrue(pattern, codec.isCompiled());
+      final SimpleDateFormat format = new SimpleDateFormat(pattern);
+
+      for (int i = 0; i < 20000; i++) {
+        final long time = 946684800000L + (long) (random.nextDouble() * 40L * 365L * 86400000L);
+        final String text = format.format(new java.util.Date(time));
+        assertEquals(pattern, text, codec.format(time));
+        assertEquals(pattern + " " + text, format.parse(text).getTime(), codec.parse(text));
+      }
+    }
+  }
+
+  /**
+   * Fields out of range roll over, separated fields take any number of digits
+   * and trailing text is ignored.
+   */
+  @Test
+  public void testLenient() throws Exception {
+    final SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmm");
+    final TimestampCodec codec = TimestampCodec.compile("yyyyMMddHHmm");
+    for (String text : new String[] { "201213320000", "201302290261", "201303310330", "201310270330",
+        "201001011200_rest" }) {
+      assertEquals(text, format.parse(text).getTime(), codec.parse(text));
+    }
+
+    final SimpleDateFormat dotted = new SimpleDateFormat("dd.MM.yyyy");
+    assertEquals(dotted.parse("1.2.2013").getTime(), TimestampCodec.compile("dd.MM.yyyy").parse("1.2.2013"));
+
+    try {
+      codec.parse("2013010");
+      fail("Parsed truncated timestamp");
+    } catch (ParseException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Part of a file name is parsed with the given year if the pattern has none.
+   */
+  @Test
+  public void testDefaultYear() throws Exception {
+    final TimestampCodec codec = TimestampCodec.compile("MMddHHmm");
+    assertFalse(codec.hasYear());
+    final String name = "A_03151200_B";
+    assertEquals(new SimpleDateFormat("yyyyMMddHHmm").parse("201403151200").getTime(),
+        codec.parse(name, 2, 10, 2014));
+  }
+
+  /**
+   * Other patterns use SimpleDateFormat.
+   */
+  @Test
+  public void testFallback() throws Exception {
+    final TimestampCodec codec = TimestampCodec.compile("dd MMM yyyy");
+    assertFalse(codec.isCompiled());
+    final SimpleDateFormat format = new SimpleDateFormat("dd MMM yyyy");
+    assertEquals(format.parse("05 Mar 2014").getTime(), codec.parse("05 Mar 2014"));
+    assertEquals(format.format(new java.util.Date(1400000000000L)), codec.format(1400000000000L));
+  }
+
+}
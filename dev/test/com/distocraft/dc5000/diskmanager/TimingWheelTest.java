@@ -0,0 +1,64 @@
+package com.distocraft.dc5000.diskmanager;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+  /**
+   * Items expire at the first advance past their time, on every level.
+   */
+  @Test
+  public void testExpiryOrder() throws Exception {
+    final long start = 1000000L;
+    final TimingWheel<Long> wheel = new TimingWheel<Long>(1L, start);
+    final Random random = new Random(5);
+    final List<Long> times = new ArrayList<Long>();
+    for (int i = 0; i < 2000; i++) {
+      final long time = start + 1 + (long) Math.pow(2, random.nextInt(20)) + random.nextInt(50);
+      times.add(time);
+      wheel.schedule(time, time);
+    }
+    assertEquals(2000, wheel.size());
+
+    final List<Long> expired = new ArrayList<Long>();
+    for (long now = start; now < start + (1L << 20) + 100; now += 1 + random.nextInt(7)) {
+      expired.clear();
+      wheel.advance(now, expired);
+      for (Long time : expired) {
+        assertTrue("Expired " + time + " early at " + now, time <= now);
+        assertTrue("Expired " + time + " late at " + now, time > now - 7);
+        times.remove(time);
+      }
+    }
+    assertTrue(times.isEmpty());
+    assertEquals(0, wheel.size());
+  }
+
+  /**
+   * Past times expire on next advance, times are rounded up to ticks.
+   */
+  @Test
+  public void testPastAndRounding() throws Exception {
+    final TimingWheel<String> wheel = new TimingWheel<String>(1000L, 10000L);
+    wheel.schedule("past", 5000L);
+    wheel.schedule("rounded", 11001L);
+
+    final List<String> expired = new ArrayList<String>();
+    wheel.advance(11000L, expired);
+    assertEquals(1, expired.size());
+    assertEquals("past", expired.get(0));
+
+    expired.clear();
+    wheel.advance(11999L, expired);
+    assertTrue(expired.isEmpty());
+    wheel.advance(12000L, expired);
+    assertEquals("rounded", expired.get(0));
+  }
+
+}